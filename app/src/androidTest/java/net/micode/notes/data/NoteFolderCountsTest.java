@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.test.AndroidTestCase;
+
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.gtask.remote.IsolatedNotesContext;
+
+import java.util.ArrayList;
+
+/**
+ * Runs the writes of the app through {@link NotesProvider} on a database of its own, and
+ * checks that notes_count of every folder still equals its children. The counts are kept
+ * per statement by {@link NoteFolderCounts}, nothing repairs them at runtime.
+ */
+public class NoteFolderCountsTest extends AndroidTestCase {
+    private static final String FILE_PREFIX = "foldercounts.";
+
+    private IsolatedNotesContext mContext;
+
+    private ContentResolver mResolver;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = new IsolatedNotesContext(getContext(), FILE_PREFIX);
+        mResolver = mContext.getContentResolver();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.release();
+        super.tearDown();
+    }
+
+    public void testInsertAndMove() {
+        long folderA = insert(Notes.ID_ROOT_FOLDER, Notes.TYPE_FOLDER);
+        long folderB = insert(Notes.ID_ROOT_FOLDER, Notes.TYPE_FOLDER);
+        long note = insert(folderA, Notes.TYPE_NOTE);
+        insert(folderA, Notes.TYPE_NOTE);
+        insert(folderB, Notes.TYPE_NOTE);
+        assertCount(folderA, 2);
+        assertCount(folderB, 1);
+
+        move(note, folderB);
+        assertCount(folderA, 1);
+        assertCount(folderB, 2);
+        assertNoMismatch();
+    }
+
+    public void testFolderToTrash() {
+        long folder = insert(Notes.ID_ROOT_FOLDER, Notes.TYPE_FOLDER);
+        insert(folder, Notes.TYPE_NOTE);
+        insert(folder, Notes.TYPE_NOTE);
+        int trashCount = count(Notes.ID_TRASH_FOLER);
+
+        // 移入回收站的文件夹中的便签也一起移入回收站
+        move(folder, Notes.ID_TRASH_FOLER);
+        assertCount(folder, 0);
+        assertCount(Notes.ID_TRASH_FOLER, trashCount + 3);
+        assertNoMismatch();
+    }
+
+    public void testDeleteFolder() {
+        long folder = insert(Notes.ID_ROOT_FOLDER, Notes.TYPE_FOLDER);
+        insert(folder, Notes.TYPE_NOTE);
+        long note = insert(Notes.ID_ROOT_FOLDER, Notes.TYPE_NOTE);
+        int rootCount = count(Notes.ID_ROOT_FOLDER);
+
+        mResolver.delete(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, folder), null, null);
+        mResolver.delete(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, note), null, null);
+        assertCount(Notes.ID_ROOT_FOLDER, rootCount - 2);
+        assertNoMismatch();
+    }
+
+    public void testBatch() throws Exception {
+        long folderA = insert(Notes.ID_ROOT_FOLDER, Notes.TYPE_FOLDER);
+        long folderB = insert(Notes.ID_ROOT_FOLDER, Notes.TYPE_FOLDER);
+        long note = insert(folderA, Notes.TYPE_NOTE);
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        for (int i = 0; i < 3; i++) {
+            operations.add(ContentProviderOperation.newInsert(Notes.CONTENT_NOTE_URI)
+                    .withValues(values(folderA, Notes.TYPE_NOTE)).build());
+        }
+        operations.add(ContentProviderOperation.newUpdate(
+                ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, note))
+                .withValue(NoteColumns.PARENT_ID, folderB).build());
+        mResolver.applyBatch(Notes.AUTHORITY, operations);
+
+        assertCount(folderA, 3);
+        assertCount(folderB, 1);
+        assertNoMismatch();
+    }
+
+    private static ContentValues values(long parentId, int type) {
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.PARENT_ID, parentId);
+        values.put(NoteColumns.TYPE, type);
+        values.put(NoteColumns.SNIPPET, type == Notes.TYPE_FOLDER ? "folder" : "note");
+        return values;
+    }
+
+    private long insert(long parentId, int type) {
+        Uri uri = mResolver.insert(Notes.CONTENT_NOTE_URI, values(parentId, type));
+        return ContentUris.parseId(uri);
+    }
+
+    private void move(long id, long parentId) {
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.PARENT_ID, parentId);
+        assertEquals(1, mResolver.update(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, id),
+                values, null, null));
+    }
+
+    private int count(long folderId) {
+        Cursor c = mResolver.query(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, folderId),
+                new String[] { NoteColumns.NOTES_COUNT }, null, null, null);
+        assertNotNull(c);
+        try {
+            return c.moveToFirst() ? c.getInt(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    private void assertCount(long folderId, int expected) {
+        assertEquals("notes_count of folder " + folderId, expected, count(folderId));
+    }
+
+    // 检查所有文件夹，不做修正
+    private void assertNoMismatch() {
+        assertEquals(0, NoteFolderCounts.check(
+                NotesDatabaseHelper.getInstance(mContext).getReadableDatabase(), false));
+    }
+}
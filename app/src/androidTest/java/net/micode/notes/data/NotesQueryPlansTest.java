@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.test.AndroidTestCase;
+import android.test.RenamingDelegatingContext;
+
+import net.micode.notes.data.Notes.CallNote;
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+
+/**
+ * Checks that the hot queries of the app are answered through an index, not by scanning a
+ * table or sorting in a temp b-tree. The note list is checked with the selections and page
+ * parts the list and the provider actually use, the other statements mirror the alarm
+ * receiver, the widgets, sync and call notes; keep them in step when those queries change.
+ */
+public class NotesQueryPlansTest extends AndroidTestCase {
+    private static final String FILE_PREFIX = "queryplans.";
+
+    private static final String DB_NAME = "note.db";
+
+    private Context mContext;
+
+    private NotesDatabaseHelper mHelper;
+
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext = new RenamingDelegatingContext(getContext(), FILE_PREFIX);
+        mContext.deleteDatabase(DB_NAME);
+        mHelper = NotesDatabaseHelper.getInstance(mContext);
+        mDb = mHelper.getWritableDatabase();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        NotesDatabaseHelper.closeInstance(mHelper);
+        mContext.deleteDatabase(DB_NAME);
+        super.tearDown();
+    }
+
+    public void testFolderListPages() {
+        String[] selections = new String[] {
+                Notes.FOLDER_NOTES_SELECTION, Notes.ROOT_FOLDER_NOTES_SELECTION
+        };
+        for (String selection : selections) {
+            String first = notePagePart(selection, false);
+            assertServedByIndex(first, true);
+
+            // 键之后的一段必须由索引范围限定，而不只是用到了索引
+            String keyed = notePagePart(selection, true);
+            String plan = assertServedByIndex(keyed, true);
+            assertTrue("page key is not an index range: " + plan,
+                    plan.contains(NoteColumns.MODIFIED_DATE + "<"));
+        }
+    }
+
+    public void testAllNotesOfFolder() {
+        assertServedByIndex("SELECT " + NoteColumns.ID + "," + NoteColumns.WIDGET_ID + ","
+                + NoteColumns.WIDGET_TYPE + " FROM " + TABLE.NOTE + " WHERE "
+                + Notes.FOLDER_ALL_NOTES_SELECTION, false);
+    }
+
+    public void testCallRecordFolder() {
+        assertServedByIndex("SELECT * FROM " + TABLE.NOTE + " WHERE "
+                + Notes.CALL_RECORD_FOLDER_SELECTION, false);
+    }
+
+    public void testAlarmScan() {
+        assertServedByIndex("SELECT " + NoteColumns.ID + "," + NoteColumns.ALERTED_DATE
+                + " FROM " + TABLE.NOTE + " WHERE " + NoteColumns.ALERTED_DATE + ">? AND "
+                + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE, false);
+    }
+
+    public void testWidgetLookup() {
+        assertServedByIndex("SELECT * FROM " + TABLE.NOTE + " WHERE " + NoteColumns.WIDGET_ID
+                + "=? AND " + NoteColumns.PARENT_ID + "<>?", false);
+    }
+
+    // 同步时按type<>system AND parent_id<>trash读取几乎所有行，本就需要全表扫描，不在此列
+    public void testSyncQueries() {
+        assertServedByIndex("SELECT * FROM " + TABLE.NOTE + " WHERE (" + NoteColumns.TYPE
+                + "<>? AND " + NoteColumns.PARENT_ID + "=?)", false);
+        assertServedByIndex("SELECT * FROM " + TABLE.NOTE + " WHERE (" + NoteColumns.TYPE
+                + "=? AND " + NoteColumns.PARENT_ID + "<>?) ORDER BY " + NoteColumns.TYPE
+                + " DESC", false);
+        assertServedByIndex("SELECT * FROM " + TABLE.NOTE + " WHERE (" + NoteColumns.TYPE
+                + "=? AND " + NoteColumns.PARENT_ID + "<>? AND " + NoteColumns.GTASK_ID
+                + "=?)", false);
+    }
+
+    public void testCallNotes() {
+        assertServedByIndex("SELECT " + CallNote.NOTE_ID + " FROM " + TABLE.DATA + " WHERE "
+                + CallNote.CALL_DATE + "=? AND " + CallNote.MIME_TYPE + "=? AND "
+                + "PHONE_NUMBERS_EQUAL(" + CallNote.PHONE_NUMBER + ",?)", false);
+        assertServedByIndex("SELECT " + CallNote.PHONE_NUMBER + " FROM " + TABLE.DATA
+                + " WHERE " + CallNote.NOTE_ID + "=? AND " + CallNote.MIME_TYPE + "=?", false);
+    }
+
+    // 与NotesProvider分页查询中一个类型的一段相同的语句
+    private static String notePagePart(String selection, boolean keyed) {
+        return SQLiteQueryBuilder.buildQueryString(false, TABLE.NOTE, null,
+                NotesProvider.notePagePartSelection(selection, keyed), null, null,
+                NotesProvider.NOTE_TYPE_PAGE_SORT_ORDER, String.valueOf(50));
+    }
+
+    // 查询计划中不允许全表扫描，ordered时也不允许临时B树排序，返回查询计划
+    private String assertServedByIndex(String sql, boolean ordered) {
+        String plan = explain(sql);
+        assertFalse("table scan in " + sql + ": " + plan, plan.contains("SCAN "));
+        if (ordered) {
+            assertFalse("sort without index in " + sql + ": " + plan,
+                    plan.contains("TEMP B-TREE"));
+        }
+        return plan;
+    }
+
+    // 返回查询计划各行的描述，以分号分隔
+    private String explain(String sql) {
+        int argCount = 0;
+        for (int i = 0; i < sql.length(); i++) {
+            if (sql.charAt(i) == '?') {
+                argCount++;
+            }
+        }
+        String[] args = new String[argCount];
+        for (int i = 0; i < argCount; i++) {
+            args[i] = "0";
+        }
+
+        Cursor c = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        try {
+            int detail = c.getColumnIndexOrThrow("detail");
+            StringBuilder sb = new StringBuilder();
+            while (c.moveToNext()) {
+                if (sb.length() > 0) {
+                    sb.append("; ");
+                }
+                sb.append(c.getString(detail));
+            }
+            return sb.toString();
+        } finally {
+            c.close();
+        }
+    }
+}
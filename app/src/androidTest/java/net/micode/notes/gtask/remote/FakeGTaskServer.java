@@ -0,0 +1,363 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.gtask.remote;
+
+import android.util.Log;
+
+import net.micode.notes.tool.GTaskStringUtils;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.net.HttpCookie;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+/**
+ * In-memory stand-in for the GTask server. It speaks the same json action protocol as the
+ * real one: the setup page with the task lists, and the "get_all", "create", "update" and
+ * "move" actions, where deletion is an update with the deleted flag. Hand it to the client
+ * with {@link #createTransport()} to run sync without an account or network.
+ */
+public class FakeGTaskServer implements FakeGTaskTransport.Handler {
+    private static final String TAG = FakeGTaskServer.class.getSimpleName();
+
+    private static final long CLIENT_VERSION = 1;
+
+    private static final String ID_PREFIX = "fake:";
+
+    private static class Entity {
+        String id;
+
+        String name;
+
+        String notes;
+
+        boolean deleted;
+
+        long lastModified;
+
+        // tasks of a list in order, null for tasks
+        ArrayList<Entity> children;
+
+        // list of a task, null for lists
+        Entity parent;
+    }
+
+    // task lists in creation order, deleted ones are kept
+    private final LinkedHashMap<String, Entity> mLists;
+
+    private final HashMap<String, Entity> mTasks;
+
+    private FakeGTaskTransport mTransport;
+
+    private long mClock;
+
+    private int mNextId;
+
+    public FakeGTaskServer() {
+        mLists = new LinkedHashMap<String, Entity>();
+        mTasks = new HashMap<String, Entity>();
+        mClock = System.currentTimeMillis();
+        mNextId = 1;
+    }
+
+    /**
+     * A transport backed by this server, the login sets the auth cookie on it
+     */
+    public synchronized FakeGTaskTransport createTransport() {
+        mTransport = new FakeGTaskTransport(this);
+        return mTransport;
+    }
+
+    /**
+     * Fill the account with notes spread over the given number of folders and the default
+     * folder, as if they were created on the web
+     */
+    public synchronized void populate(int noteCount, int folderCount) {
+        ArrayList<Entity> lists = new ArrayList<Entity>();
+        lists.add(findOrCreateList(GTaskStringUtils.MIUI_FOLDER_PREFFIX
+                + GTaskStringUtils.FOLDER_DEFAULT));
+        for (int i = 1; i <= folderCount; i++) {
+            lists.add(findOrCreateList(GTaskStringUtils.MIUI_FOLDER_PREFFIX + "Folder " + i));
+        }
+        for (int i = 0; i < noteCount; i++) {
+            Entity list = lists.get(i % lists.size());
+            Entity task = newEntity("Note " + i);
+            task.notes = "Generated note " + i + ", used to measure sync with a fake server.";
+            addTask(list, task, list.children.size());
+        }
+    }
+
+    /**
+     * Change the content of count notes, as if they were edited on the web
+     */
+    public synchronized int modify(int count) {
+        int modified = 0;
+        for (Entity list : mLists.values()) {
+            for (Entity task : list.children) {
+                if (modified >= count) {
+                    return modified;
+                }
+                if (task.deleted || !isNote(task)) {
+                    continue;
+                }
+                task.name = task.name + " (edited)";
+                touch(task);
+                modified++;
+            }
+        }
+        return modified;
+    }
+
+    public synchronized int getTaskCount() {
+        int count = 0;
+        for (Entity task : mTasks.values()) {
+            if (!task.deleted) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public synchronized GTaskTransport.Response handle(GTaskTransport.Request request)
+            throws IOException {
+        try {
+            if (GTaskTransport.METHOD_GET.equals(request.method)) {
+                if (request.url.contains("auth=") && mTransport != null) {
+                    mTransport.addCookie(new HttpCookie("GTL", "fake"));
+                }
+                return GTaskTransport.Response.of(200, getSetupPage());
+            }
+            return GTaskTransport.Response.of(200, handleActions(readPost(request)).toString());
+        } catch (JSONException e) {
+            Log.w(TAG, "bad request " + e.toString());
+            return GTaskTransport.Response.of(400, e.toString());
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "refused request " + e.getMessage());
+            return GTaskTransport.Response.of(400, e.getMessage());
+        }
+    }
+
+    private String getSetupPage() throws JSONException {
+        JSONArray lists = new JSONArray();
+        for (Entity list : mLists.values()) {
+            if (!list.deleted) {
+                JSONObject js = new JSONObject();
+                js.put(GTaskStringUtils.GTASK_JSON_ID, list.id);
+                js.put(GTaskStringUtils.GTASK_JSON_NAME, list.name);
+                js.put(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED, list.lastModified);
+                lists.put(js);
+            }
+        }
+        JSONObject tasks = new JSONObject();
+        tasks.put(GTaskStringUtils.GTASK_JSON_LISTS, lists);
+        JSONObject setup = new JSONObject();
+        setup.put("v", CLIENT_VERSION);
+        setup.put("t", tasks);
+        return "<html><body><script>_setup(" + setup.toString() + ");</script></body></html>";
+    }
+
+    private JSONObject readPost(GTaskTransport.Request request) throws IOException,
+            JSONException {
+        String body = request.body == null ? "" : new String(request.body, "UTF-8");
+        if (!body.startsWith("r=")) {
+            throw new JSONException("no request in post");
+        }
+        return new JSONObject(URLDecoder.decode(body.substring(2), "UTF-8"));
+    }
+
+    private JSONObject handleActions(JSONObject js) throws JSONException {
+        JSONArray actions = js.getJSONArray(GTaskStringUtils.GTASK_JSON_ACTION_LIST);
+        JSONArray results = new JSONArray();
+        JSONObject response = new JSONObject();
+        for (int i = 0; i < actions.length(); i++) {
+            JSONObject action = actions.getJSONObject(i);
+            String type = action.getString(GTaskStringUtils.GTASK_JSON_ACTION_TYPE);
+            if (GTaskStringUtils.GTASK_JSON_ACTION_TYPE_GETALL.equals(type)) {
+                response.put(GTaskStringUtils.GTASK_JSON_TASKS, getAll(action));
+            } else if (GTaskStringUtils.GTASK_JSON_ACTION_TYPE_CREATE.equals(type)) {
+                results.put(create(action));
+            } else if (GTaskStringUtils.GTASK_JSON_ACTION_TYPE_UPDATE.equals(type)) {
+                update(action);
+            } else if (GTaskStringUtils.GTASK_JSON_ACTION_TYPE_MOVE.equals(type)) {
+                move(action);
+            } else {
+                throw new IllegalArgumentException("unknown action " + type);
+            }
+        }
+        response.put(GTaskStringUtils.GTASK_JSON_RESULTS, results);
+        response.put(GTaskStringUtils.GTASK_JSON_LATEST_SYNC_POINT, mClock);
+        return response;
+    }
+
+    private JSONArray getAll(JSONObject action) throws JSONException {
+        Entity list = getList(action.getString(GTaskStringUtils.GTASK_JSON_LIST_ID));
+        boolean withDeleted = action.optBoolean(GTaskStringUtils.GTASK_JSON_GET_DELETED);
+        JSONArray tasks = new JSONArray();
+        for (Entity task : list.children) {
+            if (withDeleted || !task.deleted) {
+                tasks.put(toJson(task));
+            }
+        }
+        return tasks;
+    }
+
+    private JSONObject create(JSONObject action) throws JSONException {
+        JSONObject delta = action.getJSONObject(GTaskStringUtils.GTASK_JSON_ENTITY_DELTA);
+        Entity entity = newEntity(delta.getString(GTaskStringUtils.GTASK_JSON_NAME));
+        if (GTaskStringUtils.GTASK_JSON_TYPE_GROUP.equals(
+                delta.getString(GTaskStringUtils.GTASK_JSON_ENTITY_TYPE))) {
+            entity.children = new ArrayList<Entity>();
+            mLists.put(entity.id, entity);
+        } else {
+            entity.notes = delta.optString(GTaskStringUtils.GTASK_JSON_NOTES, null);
+            Entity list = getList(action.getString(GTaskStringUtils.GTASK_JSON_LIST_ID));
+            addTask(list, entity, getInsertIndex(list, action,
+                    action.optInt(GTaskStringUtils.GTASK_JSON_INDEX, list.children.size())));
+        }
+
+        JSONObject result = new JSONObject();
+        result.put(GTaskStringUtils.GTASK_JSON_ACTION_ID,
+                action.getString(GTaskStringUtils.GTASK_JSON_ACTION_ID));
+        result.put(GTaskStringUtils.GTASK_JSON_NEW_ID, entity.id);
+        return result;
+    }
+
+    private void update(JSONObject action) throws JSONException {
+        String id = action.getString(GTaskStringUtils.GTASK_JSON_ID);
+        Entity entity = mTasks.get(id);
+        if (entity == null) {
+            entity = getList(id);
+        }
+        JSONObject delta = action.getJSONObject(GTaskStringUtils.GTASK_JSON_ENTITY_DELTA);
+        if (delta.has(GTaskStringUtils.GTASK_JSON_NAME)) {
+            entity.name = delta.getString(GTaskStringUtils.GTASK_JSON_NAME);
+        }
+        if (delta.has(GTaskStringUtils.GTASK_JSON_NOTES)) {
+            entity.notes = delta.getString(GTaskStringUtils.GTASK_JSON_NOTES);
+        }
+        if (delta.has(GTaskStringUtils.GTASK_JSON_DELETED)) {
+            entity.deleted = delta.getBoolean(GTaskStringUtils.GTASK_JSON_DELETED);
+        }
+        touch(entity);
+    }
+
+    private void move(JSONObject action) throws JSONException {
+        Entity task = getTask(action.getString(GTaskStringUtils.GTASK_JSON_ID));
+        Entity source = getList(action.getString(GTaskStringUtils.GTASK_JSON_SOURCE_LIST));
+        if (task.parent != source) {
+            throw new IllegalArgumentException("task " + task.id + " is not in " + source.id);
+        }
+        Entity dest = source;
+        if (action.has(GTaskStringUtils.GTASK_JSON_DEST_LIST)) {
+            dest = getList(action.getString(GTaskStringUtils.GTASK_JSON_DEST_LIST));
+        }
+        source.children.remove(task);
+        touch(source);
+        addTask(dest, task, getInsertIndex(dest, action, 0));
+    }
+
+    // right after the prior sibling if there is one
+    private int getInsertIndex(Entity list, JSONObject action, int defaultIndex)
+            throws JSONException {
+        if (action.has(GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID)) {
+            Entity sibling = getTask(action.getString(
+                    GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID));
+            int index = list.children.indexOf(sibling);
+            if (index >= 0) {
+                return index + 1;
+            }
+        }
+        return Math.max(0, Math.min(defaultIndex, list.children.size()));
+    }
+
+    private void addTask(Entity list, Entity task, int index) {
+        task.parent = list;
+        list.children.add(index, task);
+        mTasks.put(task.id, task);
+        touch(task);
+    }
+
+    // a change of a task changes the last modified time of its list too
+    private void touch(Entity entity) {
+        entity.lastModified = ++mClock;
+        if (entity.parent != null) {
+            entity.parent.lastModified = mClock;
+        }
+    }
+
+    private Entity newEntity(String name) {
+        Entity entity = new Entity();
+        entity.id = ID_PREFIX + (mNextId++);
+        entity.name = name;
+        entity.lastModified = ++mClock;
+        return entity;
+    }
+
+    private Entity findOrCreateList(String name) {
+        for (Entity list : mLists.values()) {
+            if (!list.deleted && list.name.equals(name)) {
+                return list;
+            }
+        }
+        Entity list = newEntity(name);
+        list.children = new ArrayList<Entity>();
+        mLists.put(list.id, list);
+        return list;
+    }
+
+    private Entity getList(String id) {
+        Entity list = mLists.get(id);
+        if (list == null) {
+            throw new IllegalArgumentException("no list " + id);
+        }
+        return list;
+    }
+
+    private Entity getTask(String id) {
+        Entity task = mTasks.get(id);
+        if (task == null) {
+            throw new IllegalArgumentException("no task " + id);
+        }
+        return task;
+    }
+
+    private boolean isNote(Entity task) {
+        return !GTaskStringUtils.META_NOTE_NAME.equals(task.name);
+    }
+
+    private JSONObject toJson(Entity task) throws JSONException {
+        JSONObject js = new JSONObject();
+        js.put(GTaskStringUtils.GTASK_JSON_ID, task.id);
+        js.put(GTaskStringUtils.GTASK_JSON_NAME, task.name);
+        if (task.notes != null) {
+            js.put(GTaskStringUtils.GTASK_JSON_NOTES, task.notes);
+        }
+        js.put(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED, task.lastModified);
+        js.put(GTaskStringUtils.GTASK_JSON_DELETED, task.deleted);
+        js.put(GTaskStringUtils.GTASK_JSON_COMPLETED, false);
+        js.put(GTaskStringUtils.GTASK_JSON_TYPE, GTaskStringUtils.GTASK_JSON_TYPE_TASK);
+        js.put(GTaskStringUtils.GTASK_JSON_LIST_ID, task.parent.id);
+        return js;
+    }
+}
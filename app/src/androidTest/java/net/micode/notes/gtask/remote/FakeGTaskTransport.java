@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.gtask.remote;
+
+import java.io.IOException;
+import java.net.HttpCookie;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * In-memory transport for tests, every request is answered by the handler after an optional
+ * simulated latency
+ */
+public class FakeGTaskTransport implements GTaskTransport {
+    public interface Handler {
+        Response handle(Request request) throws IOException;
+    }
+
+    private final Handler mHandler;
+
+    private final ArrayList<Request> mRequests;
+
+    private final ArrayList<HttpCookie> mCookies;
+
+    private final GTaskTransportMetrics mMetrics;
+
+    private long mLatency;
+
+    // requests being executed now and the most at any time, guarded by mRequests
+    private int mInFlight;
+
+    private int mMaxInFlight;
+
+    public FakeGTaskTransport(Handler handler) {
+        mHandler = handler;
+        mRequests = new ArrayList<Request>();
+        mCookies = new ArrayList<HttpCookie>();
+        mMetrics = new GTaskTransportMetrics();
+    }
+
+    /**
+     * Delay each request by the given milliseconds
+     */
+    public void setLatency(long latency) {
+        mLatency = latency;
+    }
+
+    public void addCookie(HttpCookie cookie) {
+        synchronized (mCookies) {
+            mCookies.add(cookie);
+        }
+    }
+
+    /**
+     * All requests received so far, in order
+     */
+    public List<Request> getRequests() {
+        synchronized (mRequests) {
+            return new ArrayList<Request>(mRequests);
+        }
+    }
+
+    /**
+     * The most requests that were executed at the same time so far
+     */
+    public int getMaxConcurrentRequests() {
+        synchronized (mRequests) {
+            return mMaxInFlight;
+        }
+    }
+
+    public Response execute(Request request) throws IOException {
+        long start = System.currentTimeMillis();
+        synchronized (mRequests) {
+            mRequests.add(request);
+            mInFlight++;
+            mMaxInFlight = Math.max(mMaxInFlight, mInFlight);
+        }
+        Response response;
+        try {
+            if (mLatency > 0) {
+                try {
+                    Thread.sleep(mLatency);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted");
+                }
+            }
+            response = mHandler.handle(request);
+        } catch (IOException e) {
+            mMetrics.recordFailure();
+            throw e;
+        } finally {
+            synchronized (mRequests) {
+                mInFlight--;
+            }
+        }
+        mMetrics.recordRequest(System.currentTimeMillis() - start,
+                request.body == null ? 0 : request.body.length);
+        // fake responses are held in memory, their size is known up front
+        mMetrics.recordBytesReceived(response.getBody().available());
+        return response;
+    }
+
+    public List<HttpCookie> getCookies() {
+        synchronized (mCookies) {
+            return new ArrayList<HttpCookie>(mCookies);
+        }
+    }
+
+    public void clearCookies() {
+        synchronized (mCookies) {
+            mCookies.clear();
+        }
+    }
+
+    public GTaskTransportMetrics getMetrics() {
+        return mMetrics;
+    }
+}
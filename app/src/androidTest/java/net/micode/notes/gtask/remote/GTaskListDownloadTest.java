@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.gtask.remote;
+
+import android.accounts.Account;
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import net.micode.notes.tool.GTaskStringUtils;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+
+/**
+ * Syncs an account with many task lists from a {@link FakeGTaskServer} which delays every
+ * request, and checks that the lists are downloaded concurrently: the sync must take clearly
+ * less time than waiting for every request one after another.
+ */
+@LargeTest
+public class GTaskListDownloadTest extends AndroidTestCase {
+    private static final String TAG = GTaskListDownloadTest.class.getSimpleName();
+
+    private static final String FILE_PREFIX = "listdownload.";
+
+    private static final String ACCOUNT_NAME = "listdownload@gmail.com";
+
+    private static final String ACCOUNT_TYPE = "com.google";
+
+    // delay of each request, large against the local work of the small account
+    private static final long LATENCY = 200;
+
+    private static final int FOLDER_COUNT = 16;
+
+    private static final int NOTE_COUNT = 160;
+
+    public void testListsDownloadConcurrently() {
+        assertFalse("sync is in progress", GTaskSyncService.isSyncing());
+
+        FakeGTaskServer server = new FakeGTaskServer();
+        server.populate(NOTE_COUNT, FOLDER_COUNT);
+        FakeGTaskTransport transport = server.createTransport();
+        transport.setLatency(LATENCY);
+
+        GTaskClient client = GTaskClient.getInstance();
+        GTaskTransport savedTransport = client.getTransport();
+        IsolatedNotesContext context = new IsolatedNotesContext(getContext(), FILE_PREFIX);
+        try {
+            client.setTransport(transport);
+            client.setOfflineAccount(new Account(ACCOUNT_NAME, ACCOUNT_TYPE), "fake");
+
+            long start = SystemClock.elapsedRealtime();
+            int result = GTaskManager.getInstance().sync(context,
+                    new GTaskASyncTask(context, false, null));
+            long wallTime = SystemClock.elapsedRealtime() - start;
+            assertEquals(GTaskManager.STATE_SUCCESS, result);
+
+            int requests = transport.getRequests().size();
+            int downloads = countDownloads(transport);
+            int rounds = (downloads + GTaskClient.MAX_CONCURRENT_REQUESTS - 1)
+                    / GTaskClient.MAX_CONCURRENT_REQUESTS;
+            long sequential = requests * LATENCY;
+            long expectedSaving = (downloads - rounds) * LATENCY;
+            Log.i(TAG, "time=" + wallTime + "ms requests=" + requests + " downloads="
+                    + downloads + " concurrent=" + transport.getMaxConcurrentRequests()
+                    + " sequential=" + sequential + "ms");
+
+            assertTrue("too few lists to overlap: " + downloads,
+                    downloads > GTaskClient.MAX_CONCURRENT_REQUESTS);
+            assertEquals(GTaskClient.MAX_CONCURRENT_REQUESTS,
+                    transport.getMaxConcurrentRequests());
+            // at least half of the latency saved by overlapping downloads must show
+            assertTrue("sync took " + wallTime + "ms, sequential requests take " + sequential
+                    + "ms", wallTime < sequential - expectedSaving / 2);
+        } finally {
+            client.setOfflineAccount(null, null);
+            client.setTransport(savedTransport);
+            context.release();
+        }
+    }
+
+    // requests downloading the tasks of one list
+    private static int countDownloads(FakeGTaskTransport transport) {
+        int count = 0;
+        for (GTaskTransport.Request request : transport.getRequests()) {
+            if (request.body == null) {
+                continue;
+            }
+            try {
+                String body = URLDecoder.decode(new String(request.body, "UTF-8"), "UTF-8");
+                if (body.contains("\"" + GTaskStringUtils.GTASK_JSON_ACTION_TYPE_GETALL
+                        + "\"")) {
+                    count++;
+                }
+            } catch (UnsupportedEncodingException e) {
+                fail(e.toString());
+            }
+        }
+        return count;
+    }
+}
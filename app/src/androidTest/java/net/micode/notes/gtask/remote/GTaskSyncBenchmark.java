@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.gtask.remote;
+
+import android.accounts.Account;
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+
+/**
+ * Runs the real sync against a {@link FakeGTaskServer} holding generated accounts, and
+ * measures wall time, round-trips and memory of each run. For every account size it runs
+ * the first sync, a sync without changes and a sync after some notes were edited remotely.
+ *
+ * Every account size is synced into an {@link IsolatedNotesContext}, a database of its own
+ * which is deleted afterwards, so the notes of the user are never touched. The benchmark
+ * refuses to run while a sync is running, since they share the sync client.
+ */
+public class GTaskSyncBenchmark {
+    private static final String TAG = GTaskSyncBenchmark.class.getSimpleName();
+
+    public static final int[] DEFAULT_SIZES = new int[] {
+            100, 1000, 10000
+    };
+
+    // each account size gets its own account, so no sync state is carried over
+    private static final String ACCOUNT_NAME = "simulator%d@gmail.com";
+
+    private static final String ACCOUNT_TYPE = "com.google";
+
+    // prefix of the database and preference files of the runs
+    private static final String FILE_PREFIX = "benchmark.";
+
+    // one folder per this many generated notes
+    private static final int NOTES_PER_FOLDER = 100;
+
+    // share of the notes edited remotely before the last run, in percent
+    private static final int MODIFIED_PERCENT = 10;
+
+    private static final long MEMORY_SAMPLE_INTERVAL = 50;
+
+    public static class Result {
+        public String name;
+
+        public int noteCount;
+
+        public int syncResult;
+
+        public long wallTime;
+
+        public long requests;
+
+        public long bytesSent;
+
+        public long bytesReceived;
+
+        // java heap in use before the run and at most during it, in bytes
+        public long heapBefore;
+
+        public long heapPeak;
+
+        @Override
+        public String toString() {
+            return name + " notes=" + noteCount + " result=" + syncResult + " time=" + wallTime
+                    + "ms requests=" + requests + " sent=" + bytesSent + " received="
+                    + bytesReceived + " heap=" + (heapBefore / 1024) + "KB peak="
+                    + (heapPeak / 1024) + "KB";
+        }
+    }
+
+    private Context mContext;
+
+    private long mLatency;
+
+    public GTaskSyncBenchmark(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    /**
+     * Delay of each request to the fake server, in milliseconds
+     */
+    public void setLatency(long latency) {
+        mLatency = latency;
+    }
+
+    /**
+     * Run the benchmark for each account size, blocks until it is done
+     *
+     * @throws IllegalStateException if a sync is running
+     */
+    public ArrayList<Result> run(int[] sizes) {
+        if (GTaskSyncService.isSyncing()) {
+            throw new IllegalStateException("sync is in progress");
+        }
+
+        ArrayList<Result> results = new ArrayList<Result>();
+        GTaskClient client = GTaskClient.getInstance();
+        GTaskTransport transport = client.getTransport();
+        try {
+            for (int size : sizes) {
+                FakeGTaskServer server = new FakeGTaskServer();
+                server.populate(size, Math.max(1, size / NOTES_PER_FOLDER));
+                FakeGTaskTransport fakeTransport = server.createTransport();
+                fakeTransport.setLatency(mLatency);
+                client.setTransport(fakeTransport);
+                client.setOfflineAccount(new Account(String.format(ACCOUNT_NAME, size),
+                        ACCOUNT_TYPE), "fake");
+
+                IsolatedNotesContext context = new IsolatedNotesContext(mContext, FILE_PREFIX);
+                try {
+                    results.add(measure(context, "first", size, fakeTransport));
+                    results.add(measure(context, "unchanged", size, fakeTransport));
+                    server.modify(size * MODIFIED_PERCENT / 100);
+                    results.add(measure(context, "modified", size, fakeTransport));
+                } finally {
+                    context.release();
+                }
+            }
+        } finally {
+            client.setOfflineAccount(null, null);
+            client.setTransport(transport);
+        }
+        return results;
+    }
+
+    private Result measure(Context context, String name, int noteCount,
+            FakeGTaskTransport transport) {
+        Result result = new Result();
+        result.name = name;
+        result.noteCount = noteCount;
+
+        Runtime runtime = Runtime.getRuntime();
+        runtime.gc();
+        result.heapBefore = runtime.totalMemory() - runtime.freeMemory();
+        HeapSampler sampler = new HeapSampler(result.heapBefore);
+        sampler.start();
+
+        GTaskTransportMetrics metrics = transport.getMetrics();
+        metrics.reset();
+        long start = SystemClock.elapsedRealtime();
+        result.syncResult = GTaskManager.getInstance().sync(context,
+                new GTaskASyncTask(context, false, null));
+        result.wallTime = SystemClock.elapsedRealtime() - start;
+        result.requests = metrics.getRequestCount();
+        result.bytesSent = metrics.getBytesSent();
+        result.bytesReceived = metrics.getBytesReceived();
+        result.heapPeak = sampler.finish();
+
+        Log.i(TAG, result.toString());
+        return result;
+    }
+
+    private static class HeapSampler extends Thread {
+        private volatile boolean mRunning;
+
+        private long mPeak;
+
+        HeapSampler(long initial) {
+            mPeak = initial;
+            mRunning = true;
+        }
+
+        @Override
+        public void run() {
+            Runtime runtime = Runtime.getRuntime();
+            while (mRunning) {
+                sample(runtime);
+                try {
+                    Thread.sleep(MEMORY_SAMPLE_INTERVAL);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private synchronized void sample(Runtime runtime) {
+            mPeak = Math.max(mPeak, runtime.totalMemory() - runtime.freeMemory());
+        }
+
+        long finish() {
+            mRunning = false;
+            interrupt();
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            sample(Runtime.getRuntime());
+            synchronized (this) {
+                return mPeak;
+            }
+        }
+    }
+}
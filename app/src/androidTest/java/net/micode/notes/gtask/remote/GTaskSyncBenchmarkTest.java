@@ -0,0 +1,47 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.gtask.remote;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+
+/**
+ * Runs {@link GTaskSyncBenchmark}, the numbers of each run are written to the log
+ */
+@LargeTest
+public class GTaskSyncBenchmarkTest extends AndroidTestCase {
+    // delay of each request in the run simulating a mobile network
+    private static final long LATENCY = 100;
+
+    public void testSyncWithoutLatency() {
+        runBenchmark(0);
+    }
+
+    public void testSyncWithLatency() {
+        runBenchmark(LATENCY);
+    }
+
+    private void runBenchmark(long latency) {
+        GTaskSyncBenchmark benchmark = new GTaskSyncBenchmark(getContext());
+        benchmark.setLatency(latency);
+        for (GTaskSyncBenchmark.Result result : benchmark.run(
+                GTaskSyncBenchmark.DEFAULT_SIZES)) {
+            assertEquals(result.toString(), GTaskManager.STATE_SUCCESS, result.syncResult);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.gtask.remote;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.test.RenamingDelegatingContext;
+import android.test.mock.MockContentResolver;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.NotesProvider;
+
+import java.io.File;
+import java.util.HashSet;
+
+/**
+ * Context which runs sync on a database of its own. Databases, preferences and cache files
+ * get a prefix, and the notes authority is served by a provider instance on the renamed
+ * database, so the notes and sync state of the user are never read or written.
+ *
+ * Files left by a run which was killed are deleted when the next context with the same
+ * prefix is created, and {@link #release} deletes the files of this one.
+ */
+public class IsolatedNotesContext extends RenamingDelegatingContext {
+    private final String mPrefix;
+
+    private final MockContentResolver mResolver;
+
+    private final NotesProvider mProvider;
+
+    private final HashSet<String> mPreferenceNames;
+
+    public IsolatedNotesContext(Context context, String prefix) {
+        super(context, prefix);
+        mPrefix = prefix;
+        mPreferenceNames = new HashSet<String>();
+        deleteFiles();
+
+        mProvider = new NotesProvider();
+        mProvider.attachInfo(this, null);
+        mResolver = new MockContentResolver();
+        mResolver.addProvider(Notes.AUTHORITY, mProvider);
+    }
+
+    @Override
+    public ContentResolver getContentResolver() {
+        return mResolver;
+    }
+
+    @Override
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    @Override
+    public SharedPreferences getSharedPreferences(String name, int mode) {
+        synchronized (mPreferenceNames) {
+            mPreferenceNames.add(name);
+        }
+        return super.getSharedPreferences(mPrefix + name, mode);
+    }
+
+    @Override
+    public File getCacheDir() {
+        File dir = new File(super.getCacheDir(), mPrefix);
+        dir.mkdirs();
+        return dir;
+    }
+
+    /**
+     * Close the database and delete every file of this context
+     */
+    public void release() {
+        mProvider.shutdown();
+        synchronized (mPreferenceNames) {
+            for (String name : mPreferenceNames) {
+                // the preferences stay cached in this process, empty them before deleting
+                getSharedPreferences(name, MODE_PRIVATE).edit().clear().commit();
+            }
+        }
+        deleteFiles();
+    }
+
+    private void deleteFiles() {
+        Context base = getBaseContext();
+        for (String name : base.databaseList()) {
+            if (name.startsWith(mPrefix)) {
+                base.deleteDatabase(name);
+            }
+        }
+        File prefsDir = new File(base.getApplicationInfo().dataDir, "shared_prefs");
+        File[] prefs = prefsDir.listFiles();
+        if (prefs != null) {
+            for (File file : prefs) {
+                if (file.getName().startsWith(mPrefix)) {
+                    file.delete();
+                }
+            }
+        }
+        deleteRecursively(new File(base.getCacheDir(), mPrefix));
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
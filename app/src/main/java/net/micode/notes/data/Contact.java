@@ -19,18 +19,57 @@ package net.micode.notes.data;
 
 // 引入必要的Android类库和Java类库
 import android.content.Context;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.os.SystemClock;
+import android.provider.ContactsContract;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.Data;
 import android.telephony.PhoneNumberUtils;
 import android.util.Log;
 
-import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 // 定义一个公共类Contact来处理联系人相关操作
 public class Contact {
-    // 定义一个静态HashMap用于缓存联系人的姓名和电话，以电话号码为键，姓名为值
-    private static HashMap<String, String> sContactCache;
+    // 缓存的最大条目数，超过时淘汰最久未使用的条目
+    private static final int MAX_CACHE_SIZE = 256;
+
+    // 查到联系人的条目有效期
+    private static final long FOUND_ENTRY_TTL = 10 * 60 * 1000L;
+
+    // 未查到联系人的条目有效期，较短以便新建的联系人能尽快显示
+    private static final long MISSING_ENTRY_TTL = 60 * 1000L;
+
+    // 缓存条目，name为null表示该号码没有对应的联系人
+    private static class CacheEntry {
+        final String name;
+        final long expireTime;
+
+        CacheEntry(String name, long expireTime) {
+            this.name = name;
+            this.expireTime = expireTime;
+        }
+    }
+
+    // 按访问顺序排列的LRU缓存，以电话号码为键，所有访问都需持有sContactCache的锁
+    private static final LinkedHashMap<String, CacheEntry> sContactCache =
+            new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                    return size() > MAX_CACHE_SIZE;
+                }
+            };
+
+    // 联系人每变化一次加一，用于丢弃变化前发起的查询结果
+    private static int sGeneration;
+
+    private static long sHitCount;
+
+    private static long sMissCount;
+
+    private static ContentObserver sContactObserver;
 
     // 定义一个日志标签
     private static final String TAG = "Contact";
@@ -43,40 +82,59 @@ public class Contact {
             + " FROM phone_lookup"
             + " WHERE min_match = '+')";
 
+    // 只在缓存中查找联系人姓名，不访问联系人数据库，可以在主线程调用
+    public static String getCachedContact(String phoneNumber) {
+        synchronized (sContactCache) {
+            CacheEntry entry = getFreshEntry(phoneNumber);
+            return entry == null ? null : entry.name;
+        }
+    }
+
+    // 缓存中是否有该号码未过期的结果，包括没有对应联系人的结果
+    public static boolean isContactCached(String phoneNumber) {
+        synchronized (sContactCache) {
+            return getFreshEntry(phoneNumber) != null;
+        }
+    }
+
     // 定义一个静态方法用来通过电话号码获取联系人姓名
     public static String getContact(Context context, String phoneNumber) {
-        // 首次调用时初始化HashMap
-        if(sContactCache == null) {
-            sContactCache = new HashMap<String, String>();
-        }
+        registerContactObserver(context);
 
-        // 如果缓存中已有此电话号码对应的联系人，直接返回联系人姓名
-        if(sContactCache.containsKey(phoneNumber)) {
-            return sContactCache.get(phoneNumber);
+        // 如果缓存中已有此电话号码的结果，直接返回，不再查询联系人数据库
+        int generation;
+        synchronized (sContactCache) {
+            // 只统计真正的查找，不统计界面对缓存的探查
+            CacheEntry entry = getFreshEntry(phoneNumber);
+            if (entry != null) {
+                sHitCount++;
+                return entry.name;
+            }
+            sMissCount++;
+            generation = sGeneration;
         }
         // 替换查询语句中的+号，以匹配电话号码的格式
         String selection = CALLER_ID_SELECTION.replace("+",
                 PhoneNumberUtils.toCallerIDMinMatch(phoneNumber));
 
-        // 根据替换后的查询语句，从联系人数据库中查询符合条件的联系人
+        // 查询在锁外进行，避免阻塞只读缓存的主线程
+        String name = null;
         Cursor cursor = context.getContentResolver().query(
                 Data.CONTENT_URI,
                 new String [] { Phone.DISPLAY_NAME },
                 selection,
                 new String[] { phoneNumber },
                 null);
-
-        // 如果查询结果不为空，且有至少一个结果
-        if (cursor != null && cursor.moveToFirst()) {
+        if (cursor != null) {
             try {
-                // 获取第一条记录的姓名字段
-                String name = cursor.getString(0);
-                // 将电话号码和姓名存入缓存
-                sContactCache.put(phoneNumber, name);
-                // 返回联系人姓名
-                return name;
+                if (cursor.moveToFirst()) {
+                    // 获取第一条记录的姓名字段
+                    name = cursor.getString(0);
+                } else {
+                    Log.d(TAG, "No contact matched with number:" + phoneNumber);
+                }
             } catch (IndexOutOfBoundsException e) {
-                // 查询过程中出现异常，记录日志并返回null
+                // 查询过程中出现异常，记录日志并返回null，不缓存本次结果
                 Log.e(TAG, " Cursor get string error " + e.toString());
                 return null;
             } finally {
@@ -84,10 +142,69 @@ public class Contact {
                 cursor.close();
             }
         } else {
-            // 如果未查询到结果，记录日志并返回null
-            Log.d(TAG, "No contact matched with number:" + phoneNumber);
             return null;
         }
+
+        // 查询期间联系人有变化时，结果可能已过时，不放入缓存
+        synchronized (sContactCache) {
+            if (generation == sGeneration) {
+                long ttl = (name != null) ? FOUND_ENTRY_TTL : MISSING_ENTRY_TTL;
+                sContactCache.put(phoneNumber,
+                        new CacheEntry(name, SystemClock.elapsedRealtime() + ttl));
+            }
+        }
+        return name;
+    }
+
+    // 清空缓存，联系人变化时调用
+    public static void invalidate() {
+        synchronized (sContactCache) {
+            sContactCache.clear();
+            sGeneration++;
+        }
+    }
+
+    public static long getHitCount() {
+        synchronized (sContactCache) {
+            return sHitCount;
+        }
+    }
+
+    public static long getMissCount() {
+        synchronized (sContactCache) {
+            return sMissCount;
+        }
+    }
+
+    // 调用者需持有sContactCache的锁，过期的条目会被移除
+    private static CacheEntry getFreshEntry(String phoneNumber) {
+        CacheEntry entry = sContactCache.get(phoneNumber);
+        if (entry != null && entry.expireTime <= SystemClock.elapsedRealtime()) {
+            sContactCache.remove(phoneNumber);
+            entry = null;
+        }
+        return entry;
+    }
+
+    // 监听联系人数据库的变化，只注册一次
+    private static void registerContactObserver(Context context) {
+        synchronized (sContactCache) {
+            if (sContactObserver != null) {
+                return;
+            }
+            sContactObserver = new ContentObserver(null) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    invalidate();
+                }
+            };
+        }
+        try {
+            context.getApplicationContext().getContentResolver().registerContentObserver(
+                    ContactsContract.Contacts.CONTENT_URI, true, sContactObserver);
+        } catch (SecurityException e) {
+            Log.e(TAG, "Register contact observer failed " + e.toString());
+        }
     }
 }
-//这段代码为Android开发中一个通用的模式，旨在提供一个通过电话号码获取联系人姓名的功能。此外，使用了缓存机制来提升查询效率，减少对数据库的直接访问，从而优化性能。
\ No newline at end of file
+//这段代码为Android开发中一个通用的模式，旨在提供一个通过电话号码获取联系人姓名的功能。此外，使用了缓存机制来提升查询效率，减少对数据库的直接访问，从而优化性能。
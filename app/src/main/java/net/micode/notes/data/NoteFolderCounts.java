@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+
+/**
+ * Keeps notes_count of folders and the moves and deletions that follow a folder, once per
+ * statement instead of row triggers. Writes of a batch only record the folders they touch,
+ * and the counts of those folders are recomputed once before the batch commits.
+ */
+// 以语句为单位维护文件夹的便签数，代替逐行触发的触发器
+class NoteFolderCounts {
+    private static final String TAG = "NoteFolderCounts";
+
+    // 每条语句中IN列表的最大参数个数，低于sqlite的999个参数限制
+    private static final int MAX_IN_ARGS = 500;
+
+    private static final String RECOUNT_SQL = "UPDATE " + TABLE.NOTE + " SET "
+            + NoteColumns.NOTES_COUNT + "=(SELECT COUNT(*) FROM " + TABLE.NOTE + " AS child"
+            + " WHERE child." + NoteColumns.PARENT_ID + "=" + TABLE.NOTE + "." + NoteColumns.ID
+            + ") WHERE " + NoteColumns.ID + " IN ";
+
+    // 文件夹记录的便签数与实际子项数不一致的行
+    private static final String MISMATCH_QUERY = "SELECT folder." + NoteColumns.ID
+            + ",folder." + NoteColumns.NOTES_COUNT + ",IFNULL(child.count,0) FROM "
+            + TABLE.NOTE + " AS folder LEFT JOIN (SELECT " + NoteColumns.PARENT_ID
+            + ",COUNT(*) AS count FROM " + TABLE.NOTE + " GROUP BY " + NoteColumns.PARENT_ID
+            + ") AS child ON child." + NoteColumns.PARENT_ID + "=folder." + NoteColumns.ID
+            + " WHERE folder." + NoteColumns.TYPE + "<>" + Notes.TYPE_NOTE
+            + " AND folder." + NoteColumns.NOTES_COUNT + "<>IFNULL(child.count,0)";
+
+    /**
+     * Rows about to be changed by a statement: their parents and the folders among them
+     */
+    static class Affected {
+        final HashSet<Long> parentIds = new HashSet<Long>();
+
+        final ArrayList<Long> folderIds = new ArrayList<Long>();
+    }
+
+    // 当前线程批量操作中被修改的文件夹，批量操作提交前统一重新计数
+    private final ThreadLocal<HashSet<Long>> mBatchFolders = new ThreadLocal<HashSet<Long>>();
+
+    /**
+     * Defer recounting of current thread until {@link #endBatch}. Returns false when a batch
+     * is already open on this thread, then the outer one recounts.
+     */
+    boolean beginBatch() {
+        if (mBatchFolders.get() != null) {
+            return false;
+        }
+        mBatchFolders.set(new HashSet<Long>());
+        return true;
+    }
+
+    /**
+     * Recount the folders touched by the batch, must be called inside its transaction
+     */
+    void recountBatch(SQLiteDatabase db) {
+        HashSet<Long> folders = mBatchFolders.get();
+        if (folders != null && !folders.isEmpty()) {
+            recount(db, folders);
+            folders.clear();
+        }
+    }
+
+    void endBatch() {
+        mBatchFolders.remove();
+    }
+
+    /**
+     * Read the rows the where clause matches before they are changed
+     */
+    Affected collect(SQLiteDatabase db, String where, String[] whereArgs) {
+        Affected affected = new Affected();
+        Cursor c = db.query(TABLE.NOTE, new String[] {
+                NoteColumns.ID, NoteColumns.PARENT_ID, NoteColumns.TYPE
+        }, where, whereArgs, null, null, null);
+        if (c == null) {
+            return affected;
+        }
+        try {
+            while (c.moveToNext()) {
+                affected.parentIds.add(c.getLong(1));
+                if (c.getInt(2) == Notes.TYPE_FOLDER) {
+                    affected.folderIds.add(c.getLong(0));
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return affected;
+    }
+
+    /**
+     * Called after the affected rows were moved to newParentId. Notes of folders moved to
+     * trash go to trash too.
+     */
+    void onMoved(SQLiteDatabase db, Affected affected, long newParentId) {
+        HashSet<Long> folders = new HashSet<Long>(affected.parentIds);
+        folders.add(newParentId);
+        if (newParentId == Notes.ID_TRASH_FOLER && !affected.folderIds.isEmpty()) {
+            execForIds(db, "UPDATE " + TABLE.NOTE + " SET " + NoteColumns.PARENT_ID + "="
+                    + Notes.ID_TRASH_FOLER + " WHERE " + NoteColumns.PARENT_ID + " IN ",
+                    affected.folderIds);
+            folders.addAll(affected.folderIds);
+        }
+        onChanged(db, folders);
+    }
+
+    /**
+     * Called after the affected rows were deleted. Notes of deleted folders are deleted too.
+     */
+    void onDeleted(SQLiteDatabase db, Affected affected) {
+        if (!affected.folderIds.isEmpty()) {
+            execForIds(db, "DELETE FROM " + TABLE.NOTE + " WHERE " + NoteColumns.PARENT_ID
+                    + " IN ", affected.folderIds);
+        }
+        onChanged(db, affected.parentIds);
+    }
+
+    /**
+     * Called after a row was inserted into the folder
+     */
+    void onInserted(SQLiteDatabase db, long parentId) {
+        HashSet<Long> folders = new HashSet<Long>();
+        folders.add(parentId);
+        onChanged(db, folders);
+    }
+
+    private void onChanged(SQLiteDatabase db, Collection<Long> folders) {
+        HashSet<Long> batchFolders = mBatchFolders.get();
+        if (batchFolders != null) {
+            batchFolders.addAll(folders);
+        } else {
+            recount(db, folders);
+        }
+    }
+
+    /**
+     * Recompute notes_count of the given folders from their children
+     */
+    static void recount(SQLiteDatabase db, Collection<Long> folderIds) {
+        execForIds(db, RECOUNT_SQL, folderIds);
+    }
+
+    /**
+     * Recompute notes_count of every folder
+     */
+    static void recountAll(SQLiteDatabase db) {
+        db.execSQL("UPDATE " + TABLE.NOTE + " SET " + NoteColumns.NOTES_COUNT
+                + "=(SELECT COUNT(*) FROM " + TABLE.NOTE + " AS child WHERE child."
+                + NoteColumns.PARENT_ID + "=" + TABLE.NOTE + "." + NoteColumns.ID + ")"
+                + " WHERE " + NoteColumns.TYPE + "<>" + Notes.TYPE_NOTE);
+    }
+
+    /**
+     * Compare notes_count of each folder with its children, and fix the wrong ones if
+     * repair is set. Returns the number of wrong folders.
+     */
+    static int check(SQLiteDatabase db, boolean repair) {
+        ArrayList<Long> wrong = new ArrayList<Long>();
+        Cursor c = db.rawQuery(MISMATCH_QUERY, null);
+        try {
+            while (c.moveToNext()) {
+                Log.w(TAG, "folder " + c.getLong(0) + " has notes_count " + c.getInt(1)
+                        + " but " + c.getInt(2) + " children");
+                wrong.add(c.getLong(0));
+            }
+        } finally {
+            c.close();
+        }
+        if (repair && !wrong.isEmpty()) {
+            recount(db, wrong);
+        }
+        return wrong.size();
+    }
+
+    // 将ids分段代入"... IN (?,?,...)"执行，所有参数均为绑定参数
+    private static void execForIds(SQLiteDatabase db, String sqlPrefix, Collection<Long> ids) {
+        ArrayList<Long> list = new ArrayList<Long>(ids);
+        for (int start = 0; start < list.size(); start += MAX_IN_ARGS) {
+            int end = Math.min(list.size(), start + MAX_IN_ARGS);
+            Object[] args = new Object[end - start];
+            StringBuilder sb = new StringBuilder(sqlPrefix).append('(');
+            for (int i = start; i < end; i++) {
+                sb.append(i == start ? "?" : ",?");
+                args[i - start] = list.get(i);
+            }
+            sb.append(')');
+            db.execSQL(sb.toString(), args);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.LongSparseArray;
+
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+
+import java.util.HashMap;
+
+// 便签id与gtask id的对应关系，数据库中的映射表由触发器随note表的gtask_id列维护
+public class NoteGtaskMap {
+    public static final long INVALID_ID = Long.MIN_VALUE;
+
+    private static final String COLUMN_GTASK_ID = "gtask_id";
+
+    private static final String COLUMN_NOTE_ID = "note_id";
+
+    // 两个方向的映射始终一一对应，改绑时同时移除旧的对应关系
+    private HashMap<String, Long> mNoteIds;
+
+    private LongSparseArray<String> mNoteGids;
+
+    public NoteGtaskMap() {
+        mNoteIds = new HashMap<String, Long>();
+        mNoteGids = new LongSparseArray<String>();
+    }
+
+    /**
+     * Load the whole mapping kept in database with one query
+     */
+    public static NoteGtaskMap load(Context context) {
+        NoteGtaskMap map = new NoteGtaskMap();
+        SQLiteDatabase db = NotesDatabaseHelper.getInstance(context).getReadableDatabase();
+        Cursor c = db.query(TABLE.GTASK_MAP, new String[] { COLUMN_GTASK_ID, COLUMN_NOTE_ID },
+                null, null, null, null, null);
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    map.put(c.getString(0), c.getLong(1));
+                }
+            } finally {
+                c.close();
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Returns the note id of the gtask id, or {@link #INVALID_ID} if it is unknown
+     */
+    public long getNoteId(String gid) {
+        Long noteId = mNoteIds.get(gid);
+        return noteId == null ? INVALID_ID : noteId;
+    }
+
+    public String getGid(long noteId) {
+        return mNoteGids.get(noteId);
+    }
+
+    /**
+     * Only the cache is changed, the table follows the gtask_id column of the note
+     */
+    public void put(String gid, long noteId) {
+        // 一个gtask id只对应一个便签，一个便签也只对应一个gtask id
+        Long oldNoteId = mNoteIds.put(gid, noteId);
+        if (oldNoteId != null && oldNoteId != noteId) {
+            mNoteGids.remove(oldNoteId);
+        }
+        String oldGid = mNoteGids.get(noteId);
+        if (oldGid != null && !oldGid.equals(gid)) {
+            mNoteIds.remove(oldGid);
+        }
+        mNoteGids.put(noteId, gid);
+    }
+
+    public int size() {
+        return mNoteGids.size();
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+
+import java.util.List;
+
+// 同步的基准版本，即本地和远端最近一次一致时的便签文本，用于双方都修改时的三方合并
+public class NoteSyncBase {
+    private static final String COLUMN_NOTE_ID = "note_id";
+
+    private static final String COLUMN_SYNC_ID = "sync_id";
+
+    private static final String COLUMN_CONTENT = "content";
+
+    /**
+     * Returns the base text of the note for the given remote version, or null if there is no
+     * base of that version
+     */
+    public static String getBase(Context context, long noteId, long syncId) {
+        SQLiteDatabase db = NotesDatabaseHelper.getInstance(context).getReadableDatabase();
+        Cursor c = db.query(TABLE.SYNC_BASE, new String[] { COLUMN_CONTENT },
+                COLUMN_NOTE_ID + "=? AND " + COLUMN_SYNC_ID + "=?",
+                new String[] { String.valueOf(noteId), String.valueOf(syncId) },
+                null, null, null);
+        if (c == null) {
+            return null;
+        }
+        try {
+            return c.moveToFirst() ? c.getString(0) : null;
+        } finally {
+            c.close();
+        }
+    }
+
+    // 便签在远端版本syncId时的文本，由saveBases一并保存
+    public static ContentValues newBase(long noteId, long syncId, String content) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_NOTE_ID, noteId);
+        values.put(COLUMN_SYNC_ID, syncId);
+        values.put(COLUMN_CONTENT, content);
+        return values;
+    }
+
+    /**
+     * Save the bases made by {@link #newBase} in one transaction, each replaces the previous
+     * base of its note
+     */
+    public static void saveBases(Context context, List<ContentValues> bases) {
+        if (bases.isEmpty()) {
+            return;
+        }
+        SQLiteDatabase db = NotesDatabaseHelper.getInstance(context).getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (ContentValues values : bases) {
+                db.replace(TABLE.SYNC_BASE, null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+}
@@ -65,6 +65,48 @@ public class Notes {
      */
     // 定义查询数据的URI。
     public static final Uri CONTENT_DATA_URI = Uri.parse("content://" + AUTHORITY + "/data");
+
+    /**
+     * Query parameters of {@link #CONTENT_NOTE_URI} for keyset paging. {@link #QUERY_PARAM_LIMIT}
+     * is the page size, {@link #QUERY_PARAM_AFTER} is the key "type,modified_date,_id" of the
+     * last row of previous page. Paged queries are always sorted by {@link #NOTE_PAGE_SORT_ORDER}.
+     * A page is served by index ranges when the selection is "parent_id=?", optionally with
+     * conditions joined by AND, see NotesProvider#queryNotePage
+     */
+    // 便签列表分页查询使用的参数
+    public static final String QUERY_PARAM_LIMIT = "limit";
+    public static final String QUERY_PARAM_AFTER = "after";
+
+    // 分页查询的排序方式，_id保证排序键唯一
+    public static final String NOTE_PAGE_SORT_ORDER = NoteColumns.TYPE + " DESC,"
+            + NoteColumns.MODIFIED_DATE + " DESC," + NoteColumns.ID + " DESC";
+
+    /**
+     * Selections of the note list, the argument is the id of the folder. The root folder
+     * does not list system folders, the call record folder is queried on its own with
+     * {@link #CALL_RECORD_FOLDER_SELECTION} so the list stays an index range
+     */
+    // 便签列表查询条件，参数为文件夹id
+    public static final String FOLDER_NOTES_SELECTION = NoteColumns.PARENT_ID + "=?";
+
+    public static final String ROOT_FOLDER_NOTES_SELECTION = NoteColumns.PARENT_ID + "=? AND "
+            + NoteColumns.TYPE + "<>" + TYPE_SYSTEM;
+
+    // 文件夹中所有的便签（不含子文件夹），用于全选，同样是索引范围
+    public static final String FOLDER_ALL_NOTES_SELECTION = NoteColumns.PARENT_ID + "=? AND "
+            + NoteColumns.TYPE + "=" + TYPE_NOTE;
+
+    // 通话记录文件夹有便签时显示在根文件夹的最前面，按主键单独查询
+    public static final String CALL_RECORD_FOLDER_SELECTION = NoteColumns.ID + "="
+            + ID_CALL_RECORD_FOLDER + " AND " + NoteColumns.NOTES_COUNT + ">0";
+
+    /**
+     * Extra column served by queries on {@link #CONTENT_NOTE_URI}, it is the phone number of
+     * the call note, or empty string for other notes
+     * <P> Type: TEXT </P>
+     */
+    // 便签查询可附带的通话便签电话号码列，由内容提供者联结data表得到
+    public static final String COLUMN_CALL_NUMBER = "call_number";
     // 接口，定义了便签数据库中列的名字和预期数据类型。
     public interface NoteColumns {
         /**
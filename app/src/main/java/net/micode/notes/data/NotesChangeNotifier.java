@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.data;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Coalesce content change notifications of notes. Changes made outside a transaction are
+ * collected for a short window and sent once per uri, changes made inside a transaction are
+ * sent once when it commits, and all changes are held back while notifications are
+ * suppressed, e.g. during sync.
+ */
+// 便签变更通知的合并器，避免大量修改时观察者被反复唤醒
+public class NotesChangeNotifier {
+    private static final String TAG = "NotesChangeNotifier";
+
+    // 事务外的变更在该时间窗口内合并后发送
+    private static final long NOTIFY_WINDOW_MS = 100;
+
+    // 单行uri超过该数量时合并为所在表的uri
+    private static final int MAX_ROW_URIS = 16;
+
+    private static NotesChangeNotifier mInstance;
+
+    private final ContentResolver mResolver;
+
+    private final Handler mHandler;
+
+    // 当前线程事务中的变更，事务提交后发送
+    private final ThreadLocal<HashSet<Uri>> mTransactionUris = new ThreadLocal<HashSet<Uri>>();
+
+    // 等待发送的变更，以下字段需持有this的锁访问
+    private final HashSet<Uri> mPendingUris = new HashSet<Uri>();
+
+    private boolean mFlushScheduled;
+
+    private int mSuppressCount;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        public void run() {
+            flushPending();
+        }
+    };
+
+    private NotesChangeNotifier(Context context) {
+        mResolver = context.getApplicationContext().getContentResolver();
+        mHandler = new Handler(Looper.getMainLooper());
+    }
+
+    public static synchronized NotesChangeNotifier getInstance(Context context) {
+        if (mInstance == null) {
+            mInstance = new NotesChangeNotifier(context);
+        }
+        return mInstance;
+    }
+
+    /**
+     * Record a change of uri, it is sent later according to the current mode
+     */
+    public void notifyChange(Uri uri) {
+        HashSet<Uri> transactionUris = mTransactionUris.get();
+        if (transactionUris != null) {
+            transactionUris.add(uri);
+            return;
+        }
+        synchronized (this) {
+            mPendingUris.add(uri);
+            if (mSuppressCount > 0 || mFlushScheduled) {
+                return;
+            }
+            mFlushScheduled = true;
+        }
+        mHandler.postDelayed(mFlushRunnable, NOTIFY_WINDOW_MS);
+    }
+
+    /**
+     * Start holding changes of current thread until {@link #endTransaction}. Returns false
+     * when a transaction is already open on this thread, then the outer one sends the changes.
+     */
+    public boolean beginTransaction() {
+        if (mTransactionUris.get() != null) {
+            return false;
+        }
+        mTransactionUris.set(new HashSet<Uri>());
+        return true;
+    }
+
+    /**
+     * Send the changes of current thread's transaction if it has committed, a rolled back
+     * transaction changes nothing so its changes are dropped
+     */
+    public void endTransaction(boolean successful) {
+        HashSet<Uri> uris = mTransactionUris.get();
+        mTransactionUris.remove();
+        if (!successful || uris == null || uris.isEmpty()) {
+            return;
+        }
+        ArrayList<Uri> changes;
+        synchronized (this) {
+            mPendingUris.addAll(uris);
+            if (mSuppressCount > 0) {
+                return;
+            }
+            // 事务提交时连同窗口中等待的变更一起发送
+            changes = takePendingLocked();
+        }
+        sendChanges(changes, true);
+    }
+
+    /**
+     * Hold back all changes until the matching {@link #endSuppress}, calls can be nested
+     */
+    public synchronized void beginSuppress() {
+        mSuppressCount++;
+    }
+
+    public void endSuppress() {
+        ArrayList<Uri> changes;
+        synchronized (this) {
+            if (mSuppressCount == 0) {
+                return;
+            }
+            mSuppressCount--;
+            if (mSuppressCount > 0) {
+                return;
+            }
+            changes = takePendingLocked();
+        }
+        sendChanges(changes, true);
+    }
+
+    private void flushPending() {
+        ArrayList<Uri> changes;
+        synchronized (this) {
+            mFlushScheduled = false;
+            if (mSuppressCount > 0) {
+                return;
+            }
+            changes = takePendingLocked();
+        }
+        sendChanges(changes, changes.size() > MAX_ROW_URIS);
+    }
+
+    private ArrayList<Uri> takePendingLocked() {
+        ArrayList<Uri> changes = new ArrayList<Uri>(mPendingUris);
+        mPendingUris.clear();
+        if (mFlushScheduled) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            mFlushScheduled = false;
+        }
+        return changes;
+    }
+
+    /**
+     * Send the changes, when fold is true single row uris are replaced by their table uri.
+     * Observers of a row are also notified by the change of its table, so rows whose table
+     * has changed are skipped.
+     */
+    private void sendChanges(Collection<Uri> changes, boolean fold) {
+        HashSet<Uri> tableUris = new HashSet<Uri>();
+        ArrayList<Uri> rowUris = new ArrayList<Uri>();
+        for (Uri uri : changes) {
+            Uri tableUri = getTableUri(uri);
+            if (fold || tableUri.equals(uri)) {
+                tableUris.add(tableUri);
+            } else {
+                rowUris.add(uri);
+            }
+        }
+        for (Uri uri : tableUris) {
+            mResolver.notifyChange(uri, null);
+        }
+        for (Uri uri : rowUris) {
+            if (!tableUris.contains(getTableUri(uri))) {
+                mResolver.notifyChange(uri, null);
+            }
+        }
+    }
+
+    // content://authority/table/id 对应的表uri，其他uri原样返回
+    private static Uri getTableUri(Uri uri) {
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() == 2 && TextUtils.isDigitsOnly(segments.get(1))) {
+            return new Uri.Builder().scheme(uri.getScheme()).authority(uri.getAuthority())
+                    .appendPath(segments.get(0)).build();
+        }
+        return uri;
+    }
+}
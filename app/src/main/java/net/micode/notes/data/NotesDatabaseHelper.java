@@ -18,7 +18,9 @@ package net.micode.notes.data;
 //数据库帮助类，用于辅助创建、处理数据库的条目
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Log;
 
@@ -26,24 +28,80 @@ import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
 
+import java.util.HashMap;
+
 // 继承SQLiteOpenHelper来实现数据库的创建和版本管理
 public class NotesDatabaseHelper extends SQLiteOpenHelper {
     // 数据库名称和版本
     private static final String DB_NAME = "note.db";// 定义数据库名
 
-    private static final int DB_VERSION = 4;// 定义数据库版本
+    private static final int DB_VERSION = 10;// 定义数据库版本
 
     // 定义表名接口
     public interface TABLE {
         public static final String NOTE = "note";//笔记表名称
 
         public static final String DATA = "data";// 数据表名称
+
+        public static final String DATA_FTS = "data_fts";// 全文索引表名称
+
+        public static final String SYNC_BASE = "sync_base";// 同步合并所用的基准版本表名称
+
+        public static final String GTASK_MAP = "gtask_map";// gtask id与便签id的映射表名称
+
+        public static final String SYNC_HISTORY = "sync_history";// 同步历史记录表名称
     }
 
+    // 全文索引所用的分词方式
+    public static final int FTS_NONE    = 0;// 未能建立全文索引，退回LIKE查询
+    public static final int FTS_ICU     = 1;// icu分词，可对中日韩文本分词
+    public static final int FTS_UNICODE = 2;// unicode61或simple分词，按空白和标点分词
+
     private static final String TAG = "NotesDatabaseHelper";// 用于日志记录的标签
 
-    // 单例模式，保证全局只有一个数据库实例
-    private static NotesDatabaseHelper mInstance;
+    /**
+     * Storage settings applied when the database is opened, see
+     * {@link NotesDatabaseHelper#PROFILE_DEFAULT}
+     */
+    public static class StorageProfile {
+        // 使用预写日志，读操作不会被写操作阻塞
+        public final boolean walEnabled;
+
+        // PRAGMA synchronous的取值：OFF、NORMAL或FULL
+        public final String synchronous;
+
+        // 页缓存大小，单位KB
+        public final int cacheSizeKb;
+
+        // 内存映射读取的最大字节数，0表示不使用
+        public final long mmapSize;
+
+        // PRAGMA temp_store的取值：DEFAULT、FILE或MEMORY
+        public final String tempStore;
+
+        public StorageProfile(boolean walEnabled, String synchronous, int cacheSizeKb,
+                long mmapSize, String tempStore) {
+            this.walEnabled = walEnabled;
+            this.synchronous = synchronous;
+            this.cacheSizeKb = cacheSizeKb;
+            this.mmapSize = mmapSize;
+            this.tempStore = tempStore;
+        }
+
+        @Override
+        public String toString() {
+            return "wal=" + walEnabled + " synchronous=" + synchronous + " cache_size="
+                    + cacheSizeKb + "KB mmap_size=" + mmapSize + " temp_store=" + tempStore;
+        }
+    }
+
+    // 默认配置：WAL下NORMAL同步在断电时最多丢失最后提交的事务，不会损坏数据库
+    public static final StorageProfile PROFILE_DEFAULT = new StorageProfile(true, "NORMAL",
+            4 * 1024, 16 * 1024 * 1024L, "MEMORY");
+
+    // 每个数据库文件只有一个实例，测试使用重命名的Context时得到独立的数据库
+    private static final HashMap<String, NotesDatabaseHelper> sInstances =
+            new HashMap<String, NotesDatabaseHelper>();
 
     // 创建笔记表的SQL语句
     private static final String CREATE_NOTE_TABLE_SQL =
@@ -86,61 +144,34 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         "CREATE INDEX IF NOT EXISTS note_id_index ON " +
         TABLE.DATA + "(" + DataColumns.NOTE_ID + ");";
 
-    /**
-     * Increase folder's note count when move note to the folder
-     */
-    // 以下是创建触发器的一系列SQL语句，用于自动化处理数据更新和删除的一致性
-    // 当笔记移动到文件夹时增加文件夹的笔记计数
-    private static final String NOTE_INCREASE_FOLDER_COUNT_ON_UPDATE_TRIGGER =
-        "CREATE TRIGGER increase_folder_count_on_update "+
-        " AFTER UPDATE OF " + NoteColumns.PARENT_ID + " ON " + TABLE.NOTE +
-        " BEGIN " +
-        "  UPDATE " + TABLE.NOTE +
-        "   SET " + NoteColumns.NOTES_COUNT + "=" + NoteColumns.NOTES_COUNT + " + 1" +
-        "  WHERE " + NoteColumns.ID + "=new." + NoteColumns.PARENT_ID + ";" +
-        " END";
+    // 文件夹列表按parent_id过滤，再按type、modified_date、_id降序排列，索引同时完成排序
+    private static final String CREATE_NOTE_PARENT_INDEX_SQL =
+        "CREATE INDEX IF NOT EXISTS note_parent_index ON " + TABLE.NOTE + "(" +
+        NoteColumns.PARENT_ID + "," + NoteColumns.TYPE + "," + NoteColumns.MODIFIED_DATE + ")";
 
-    /**
-     * Decrease folder's note count when move note from folder
-     */
-//     当笔记从文件夹移出时减少文件夹的笔记计数
-    private static final String NOTE_DECREASE_FOLDER_COUNT_ON_UPDATE_TRIGGER =
-        "CREATE TRIGGER decrease_folder_count_on_update " +
-        " AFTER UPDATE OF " + NoteColumns.PARENT_ID + " ON " + TABLE.NOTE +
-        " BEGIN " +
-        "  UPDATE " + TABLE.NOTE +
-        "   SET " + NoteColumns.NOTES_COUNT + "=" + NoteColumns.NOTES_COUNT + "-1" +
-        "  WHERE " + NoteColumns.ID + "=old." + NoteColumns.PARENT_ID +
-        "  AND " + NoteColumns.NOTES_COUNT + ">0" + ";" +
-        " END";
+    // 开机时查找未到期的提醒，以及同步时按类型读取文件夹
+    private static final String CREATE_NOTE_TYPE_ALERT_INDEX_SQL =
+        "CREATE INDEX IF NOT EXISTS note_type_alert_index ON " + TABLE.NOTE + "(" +
+        NoteColumns.TYPE + "," + NoteColumns.ALERTED_DATE + ")";
 
-    /**
-     * Increase folder's note count when insert new note to the folder
-     */
-    // 当向文件夹中插入新笔记时增加文件夹的笔记计数
-    private static final String NOTE_INCREASE_FOLDER_COUNT_ON_INSERT_TRIGGER =
-        "CREATE TRIGGER increase_folder_count_on_insert " +
-        " AFTER INSERT ON " + TABLE.NOTE +
-        " BEGIN " +
-        "  UPDATE " + TABLE.NOTE +
-        "   SET " + NoteColumns.NOTES_COUNT + "=" + NoteColumns.NOTES_COUNT + " + 1" +
-        "  WHERE " + NoteColumns.ID + "=new." + NoteColumns.PARENT_ID + ";" +
-        " END";
+    // 桌面小部件按widget_id查找便签
+    private static final String CREATE_NOTE_WIDGET_INDEX_SQL =
+        "CREATE INDEX IF NOT EXISTS note_widget_index ON " + TABLE.NOTE + "(" +
+        NoteColumns.WIDGET_ID + ")";
 
-    /**
-     * Decrease folder's note count when delete note from the folder
-     */
-    // 当从文件夹中删除笔记时减少文件夹的笔记计数
-    private static final String NOTE_DECREASE_FOLDER_COUNT_ON_DELETE_TRIGGER =
-        "CREATE TRIGGER decrease_folder_count_on_delete " +
-        " AFTER DELETE ON " + TABLE.NOTE +
-        " BEGIN " +
-        "  UPDATE " + TABLE.NOTE +
-        "   SET " + NoteColumns.NOTES_COUNT + "=" + NoteColumns.NOTES_COUNT + "-1" +
-        "  WHERE " + NoteColumns.ID + "=old." + NoteColumns.PARENT_ID +
-        "  AND " + NoteColumns.NOTES_COUNT + ">0;" +
-        " END";
+    // 同步时按gtask_id查找便签，带上type使其优先于只有type的索引被选用
+    private static final String CREATE_NOTE_GTASK_ID_INDEX_SQL =
+        "CREATE INDEX IF NOT EXISTS note_gtask_id_index ON " + TABLE.NOTE + "(" +
+        NoteColumns.GTASK_ID + "," + NoteColumns.TYPE + ")";
+
+    // 按通话时间查找通话便签
+    private static final String CREATE_DATA_CALL_INDEX_SQL =
+        "CREATE INDEX IF NOT EXISTS data_call_index ON " + TABLE.DATA + "(" +
+        DataColumns.DATA1 + "," + DataColumns.MIME_TYPE + ")";
 
+    // 文件夹的便签数和文件夹删除、移入垃圾箱时的级联操作由NotesProvider按语句集中处理，见NoteFolderCounts
+
+    // 以下是创建触发器的一系列SQL语句，用于自动化处理数据更新和删除的一致性
     /**
      * Update note's content when insert data with type {@link DataConstants#NOTE}
      */
@@ -196,34 +227,251 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         " END";
 
     /**
-     * Delete notes belong to folder which has been deleted
+     * Text of each note as it was when local and remote last agreed, used as the base of
+     * three-way merge when both sides have changed. sync_id is the remote version it belongs to
      */
-    // 当文件夹被删除时删除属于这个文件夹的笔记
-    private static final String FOLDER_DELETE_NOTES_ON_DELETE_TRIGGER =
-        "CREATE TRIGGER folder_delete_notes_on_delete " +
+    private static final String CREATE_SYNC_BASE_TABLE_SQL =
+        "CREATE TABLE " + TABLE.SYNC_BASE + "(" +
+            "note_id INTEGER PRIMARY KEY," +
+            "sync_id INTEGER NOT NULL DEFAULT 0," +
+            "content TEXT NOT NULL DEFAULT ''" +
+        ")";
+
+    // 当笔记被删除时删除它的基准版本
+    private static final String SYNC_BASE_DELETE_ON_NOTE_DELETE_TRIGGER =
+        "CREATE TRIGGER sync_base_delete_on_note_delete " +
         " AFTER DELETE ON " + TABLE.NOTE +
         " BEGIN" +
-        "  DELETE FROM " + TABLE.NOTE +
-        "   WHERE " + NoteColumns.PARENT_ID + "=old." + NoteColumns.ID + ";" +
+        "  DELETE FROM " + TABLE.SYNC_BASE +
+        "   WHERE note_id=old." + NoteColumns.ID + ";" +
         " END";
 
     /**
-     * Move notes belong to folder which has been moved to trash folder
+     * Mapping between gtask id and note id, kept in step with the gtask_id column of note
+     * table by the triggers below so the sync can load it with one indexed query
      */
-    // 当文件夹被移动到垃圾箱时移动属于这个文件夹的笔记到垃圾箱
-    private static final String FOLDER_MOVE_NOTES_ON_TRASH_TRIGGER =
-        "CREATE TRIGGER folder_move_notes_on_trash " +
-        " AFTER UPDATE ON " + TABLE.NOTE +
-        " WHEN new." + NoteColumns.PARENT_ID + "=" + Notes.ID_TRASH_FOLER +
+    private static final String CREATE_GTASK_MAP_TABLE_SQL =
+        "CREATE TABLE " + TABLE.GTASK_MAP + "(" +
+            "gtask_id TEXT PRIMARY KEY," +
+            "note_id INTEGER NOT NULL" +
+        ") WITHOUT ROWID";
+
+    private static final String CREATE_GTASK_MAP_NOTE_ID_INDEX_SQL =
+        "CREATE UNIQUE INDEX IF NOT EXISTS gtask_map_note_id_index ON " + TABLE.GTASK_MAP
+            + "(note_id)";
+
+    // 插入带gtask id的笔记时添加映射
+    private static final String GTASK_MAP_INSERT_ON_NOTE_INSERT_TRIGGER =
+        "CREATE TRIGGER gtask_map_insert_on_note_insert " +
+        " AFTER INSERT ON " + TABLE.NOTE +
+        " WHEN new." + NoteColumns.GTASK_ID + "<>''" +
         " BEGIN" +
-        "  UPDATE " + TABLE.NOTE +
-        "   SET " + NoteColumns.PARENT_ID + "=" + Notes.ID_TRASH_FOLER +
-        "  WHERE " + NoteColumns.PARENT_ID + "=old." + NoteColumns.ID + ";" +
+        "  INSERT OR REPLACE INTO " + TABLE.GTASK_MAP + "(gtask_id, note_id)" +
+        "   VALUES(new." + NoteColumns.GTASK_ID + ", new." + NoteColumns.ID + ");" +
+        " END";
+
+    // 笔记的gtask id变化时更新映射，清空gtask id时删除映射
+    private static final String GTASK_MAP_UPDATE_ON_NOTE_UPDATE_TRIGGER =
+        "CREATE TRIGGER gtask_map_update_on_note_update " +
+        " AFTER UPDATE OF " + NoteColumns.GTASK_ID + " ON " + TABLE.NOTE +
+        " WHEN new." + NoteColumns.GTASK_ID + "<>old." + NoteColumns.GTASK_ID +
+        " BEGIN" +
+        "  DELETE FROM " + TABLE.GTASK_MAP +
+        "   WHERE note_id=old." + NoteColumns.ID + ";" +
+        "  INSERT OR REPLACE INTO " + TABLE.GTASK_MAP + "(gtask_id, note_id)" +
+        "   SELECT new." + NoteColumns.GTASK_ID + ", new." + NoteColumns.ID +
+        "   WHERE new." + NoteColumns.GTASK_ID + "<>'';" +
+        " END";
+
+    // 删除笔记时删除映射
+    private static final String GTASK_MAP_DELETE_ON_NOTE_DELETE_TRIGGER =
+        "CREATE TRIGGER gtask_map_delete_on_note_delete " +
+        " AFTER DELETE ON " + TABLE.NOTE +
+        " WHEN old." + NoteColumns.GTASK_ID + "<>''" +
+        " BEGIN" +
+        "  DELETE FROM " + TABLE.GTASK_MAP +
+        "   WHERE note_id=old." + NoteColumns.ID + ";" +
+        " END";
+
+    /**
+     * One row for each sync, see {@link SyncHistory}. Times are in milliseconds
+     */
+    private static final String CREATE_SYNC_HISTORY_TABLE_SQL =
+        "CREATE TABLE " + TABLE.SYNC_HISTORY + "(" +
+            SyncHistory.ID + " INTEGER PRIMARY KEY AUTOINCREMENT," +
+            SyncHistory.START_TIME + " INTEGER NOT NULL DEFAULT 0," +
+            SyncHistory.DURATION + " INTEGER NOT NULL DEFAULT 0," +
+            SyncHistory.MANUAL + " INTEGER NOT NULL DEFAULT 0," +
+            SyncHistory.RESULT + " INTEGER NOT NULL DEFAULT 0," +
+            SyncHistory.LOGIN_TIME + " INTEGER NOT NULL DEFAULT 0," +
+            SyncHistory.INIT_LIST_TIME + " INTEGER NOT NULL DEFAULT 0," +
+            SyncHistory.SYNC_FOLDER_TIME + " INTEGER NOT NULL DEFAULT 0," +
+            SyncHistory.SYNC_CONTENT_TIME + " INTEGER NOT NULL DEFAULT 0," +
+            SyncHistory.REFRESH_TIME + " INTEGER NOT NULL DEFAULT 0," +
+            SyncHistory.ACTION_COUNTS + " TEXT NOT NULL DEFAULT ''," +
+            SyncHistory.REQUESTS + " INTEGER NOT NULL DEFAULT 0," +
+            SyncHistory.RETRIES + " INTEGER NOT NULL DEFAULT 0," +
+            SyncHistory.FAILURES + " INTEGER NOT NULL DEFAULT 0," +
+            SyncHistory.BYTES_SENT + " INTEGER NOT NULL DEFAULT 0," +
+            SyncHistory.BYTES_RECEIVED + " INTEGER NOT NULL DEFAULT 0" +
+        ")";
+
+    /**
+     * Only text notes and call notes are indexed for full-text search
+     */
+    static final String FTS_INDEXED_MIME_TYPES =
+        "('" + DataConstants.NOTE + "','" + DataConstants.CALL_NOTE + "')";
+
+    /**
+     * External content fts4 table over data.content, docid is the data row id. Fts4 ships with
+     * the sqlite of every supported release, unlike fts5
+     */
+    // 全文索引表不保存内容副本，内容通过docid从data表读取
+    private static final String CREATE_DATA_FTS_TABLE_SQL =
+        "CREATE VIRTUAL TABLE " + TABLE.DATA_FTS + " USING fts4(" +
+            DataColumns.CONTENT + "," +
+            " content=\"" + TABLE.DATA + "\"," +
+            " tokenize=%s" +
+        ")";
+
+    // 依次尝试的分词方式，icu可对中文分词，simple总是可用
+    private static final String[] FTS_TOKENIZERS = new String[] {
+        "icu", "unicode61", "simple"
+    };
+
+    /**
+     * Add data into full-text index when insert text or call data
+     */
+    // 插入文本或通话数据时写入全文索引
+    private static final String DATA_FTS_INSERT_ON_INSERT_TRIGGER =
+        "CREATE TRIGGER data_fts_insert_on_insert " +
+        " AFTER INSERT ON " + TABLE.DATA +
+        " WHEN new." + DataColumns.MIME_TYPE + " IN " + FTS_INDEXED_MIME_TYPES +
+        " BEGIN" +
+        "  INSERT INTO " + TABLE.DATA_FTS + "(docid," + DataColumns.CONTENT + ")" +
+        "   VALUES (new." + DataColumns.ID + ",new." + DataColumns.CONTENT + ");" +
         " END";
 
+    /**
+     * Remove the indexed content before data changes. Fts4 reads the old content to remove
+     * from the data table, so this must run before the update
+     */
+    // 数据更新前移除旧内容的索引
+    private static final String DATA_FTS_DELETE_ON_UPDATE_TRIGGER =
+        "CREATE TRIGGER data_fts_delete_on_update " +
+        " BEFORE UPDATE OF " + DataColumns.CONTENT + "," + DataColumns.MIME_TYPE + " ON " + TABLE.DATA +
+        " WHEN old." + DataColumns.MIME_TYPE + " IN " + FTS_INDEXED_MIME_TYPES +
+        " BEGIN" +
+        "  DELETE FROM " + TABLE.DATA_FTS + " WHERE docid=old." + DataColumns.ID + ";" +
+        " END";
+
+    /**
+     * Add the new content into full-text index after data has changed
+     */
+    // 数据更新后写入新内容的索引
+    private static final String DATA_FTS_INSERT_ON_UPDATE_TRIGGER =
+        "CREATE TRIGGER data_fts_insert_on_update " +
+        " AFTER UPDATE OF " + DataColumns.CONTENT + "," + DataColumns.MIME_TYPE + " ON " + TABLE.DATA +
+        " WHEN new." + DataColumns.MIME_TYPE + " IN " + FTS_INDEXED_MIME_TYPES +
+        " BEGIN" +
+        "  INSERT INTO " + TABLE.DATA_FTS + "(docid," + DataColumns.CONTENT + ")" +
+        "   VALUES (new." + DataColumns.ID + ",new." + DataColumns.CONTENT + ");" +
+        " END";
+
+    /**
+     * Remove data from full-text index before data is deleted
+     */
+    // 删除数据前移除对应的全文索引
+    private static final String DATA_FTS_DELETE_ON_DELETE_TRIGGER =
+        "CREATE TRIGGER data_fts_delete_on_delete " +
+        " BEFORE DELETE ON " + TABLE.DATA +
+        " WHEN old." + DataColumns.MIME_TYPE + " IN " + FTS_INDEXED_MIME_TYPES +
+        " BEGIN" +
+        "  DELETE FROM " + TABLE.DATA_FTS + " WHERE docid=old." + DataColumns.ID + ";" +
+        " END";
+
+    // 缓存当前数据库全文索引的分词方式，-1表示尚未检测
+    private volatile int mFtsMode = -1;
+
+    private final StorageProfile mStorageProfile;
+
     // 构造函数，初始化数据库帮助者
     public NotesDatabaseHelper(Context context) {
+        this(context, PROFILE_DEFAULT);
+    }
+
+    public NotesDatabaseHelper(Context context, StorageProfile profile) {
         super(context, DB_NAME, null, DB_VERSION);
+        mStorageProfile = profile;
+        setWriteAheadLoggingEnabled(profile.walEnabled);
+    }
+
+    // 每个连接打开时应用配置，早于onCreate和onUpgrade
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // 这些设置只作用于当前连接，所有写操作都在这个主连接上进行，
+        // WAL下额外的只读连接使用系统的默认值
+        execPragma(db, "synchronous=" + mStorageProfile.synchronous);
+        execPragma(db, "cache_size=-" + mStorageProfile.cacheSizeKb);
+        execPragma(db, "mmap_size=" + mStorageProfile.mmapSize);
+        execPragma(db, "temp_store=" + mStorageProfile.tempStore);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        checkStorageSettings(db);
+    }
+
+    // 读回实际生效的配置并记录，与期望不符时给出警告
+    private void checkStorageSettings(SQLiteDatabase db) {
+        String journalMode = queryPragma(db, "journal_mode");
+        String synchronous = queryPragma(db, "synchronous");
+        String cacheSize = queryPragma(db, "cache_size");
+        String mmapSize = queryPragma(db, "mmap_size");
+        String tempStore = queryPragma(db, "temp_store");
+        Log.i(TAG, "storage settings: journal_mode=" + journalMode + " synchronous="
+                + synchronous + " cache_size=" + cacheSize + " mmap_size=" + mmapSize
+                + " temp_store=" + tempStore);
+
+        if (mStorageProfile.walEnabled != "wal".equalsIgnoreCase(journalMode)) {
+            Log.w(TAG, "journal mode " + journalMode + " differs from profile "
+                    + mStorageProfile);
+        }
+        // mmap可能被系统的sqlite编译选项限制
+        if (mStorageProfile.mmapSize > 0 && "0".equals(mmapSize)) {
+            Log.w(TAG, "memory mapped io is not available");
+        }
+    }
+
+    // 有些pragma会返回一行结果，execSQL不允许返回结果，统一用rawQuery执行
+    private static void execPragma(SQLiteDatabase db, String pragma) {
+        Cursor c = null;
+        try {
+            c = db.rawQuery("PRAGMA " + pragma, null);
+            c.moveToFirst();
+        } catch (SQLiteException e) {
+            Log.w(TAG, "PRAGMA " + pragma + " failed: " + e.toString());
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+
+    private static String queryPragma(SQLiteDatabase db, String pragma) {
+        Cursor c = null;
+        try {
+            c = db.rawQuery("PRAGMA " + pragma, null);
+            return c.moveToFirst() ? c.getString(0) : null;
+        } catch (SQLiteException e) {
+            Log.w(TAG, "PRAGMA " + pragma + " failed: " + e.toString());
+            return null;
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
     }
     // 创建笔记表
     public void createNoteTable(SQLiteDatabase db) {
@@ -242,13 +490,7 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("DROP TRIGGER IF EXISTS folder_delete_notes_on_delete");
         db.execSQL("DROP TRIGGER IF EXISTS folder_move_notes_on_trash");
 
-        db.execSQL(NOTE_INCREASE_FOLDER_COUNT_ON_UPDATE_TRIGGER);
-        db.execSQL(NOTE_DECREASE_FOLDER_COUNT_ON_UPDATE_TRIGGER);
-        db.execSQL(NOTE_DECREASE_FOLDER_COUNT_ON_DELETE_TRIGGER);
         db.execSQL(NOTE_DELETE_DATA_ON_DELETE_TRIGGER);
-        db.execSQL(NOTE_INCREASE_FOLDER_COUNT_ON_INSERT_TRIGGER);
-        db.execSQL(FOLDER_DELETE_NOTES_ON_DELETE_TRIGGER);
-        db.execSQL(FOLDER_MOVE_NOTES_ON_TRASH_TRIGGER);
     }
     // 创建新的触发器
     private void createSystemFolder(SQLiteDatabase db) {
@@ -306,18 +548,126 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL(DATA_UPDATE_NOTE_CONTENT_ON_UPDATE_TRIGGER);
         db.execSQL(DATA_UPDATE_NOTE_CONTENT_ON_DELETE_TRIGGER);
     }
+    // 创建全文索引表，优先使用icu分词，不支持时依次退回unicode61和simple
+    public void createDataFtsTable(SQLiteDatabase db) {
+        // 先删除触发器，建表失败时data表的写入不能再引用全文索引表
+        dropDataFtsTriggers(db);
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE.DATA_FTS);
+        mFtsMode = FTS_NONE;
+        for (String tokenizer : FTS_TOKENIZERS) {
+            try {
+                db.execSQL(String.format(CREATE_DATA_FTS_TABLE_SQL, tokenizer));
+                mFtsMode = "icu".equals(tokenizer) ? FTS_ICU : FTS_UNICODE;
+                break;
+            } catch (SQLiteException e) {
+                Log.w(TAG, tokenizer + " tokenizer is not available: " + e.toString());
+            }
+        }
+        if (mFtsMode == FTS_NONE) {
+            Log.e(TAG, "fts4 is not available");
+            return;
+        }
+        db.execSQL(DATA_FTS_INSERT_ON_INSERT_TRIGGER);
+        db.execSQL(DATA_FTS_DELETE_ON_UPDATE_TRIGGER);
+        db.execSQL(DATA_FTS_INSERT_ON_UPDATE_TRIGGER);
+        db.execSQL(DATA_FTS_DELETE_ON_DELETE_TRIGGER);
+        // 为已有的文本和通话数据建立索引
+        db.execSQL("INSERT INTO " + TABLE.DATA_FTS + "(docid," + DataColumns.CONTENT + ")" +
+                " SELECT " + DataColumns.ID + "," + DataColumns.CONTENT + " FROM " + TABLE.DATA +
+                " WHERE " + DataColumns.MIME_TYPE + " IN " + FTS_INDEXED_MIME_TYPES);
+        Log.d(TAG, "data fts table has been created");
+    }
+    // 删除全文索引触发器，包括旧版本fts5索引所用的触发器
+    private void dropDataFtsTriggers(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS data_fts_insert_on_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS data_fts_update_on_update");
+        db.execSQL("DROP TRIGGER IF EXISTS data_fts_delete_on_update");
+        db.execSQL("DROP TRIGGER IF EXISTS data_fts_insert_on_update");
+        db.execSQL("DROP TRIGGER IF EXISTS data_fts_delete_on_delete");
+    }
+    // 创建同步基准版本表
+    public void createSyncBaseTable(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE.SYNC_BASE);
+        db.execSQL(CREATE_SYNC_BASE_TABLE_SQL);
+        db.execSQL("DROP TRIGGER IF EXISTS sync_base_delete_on_note_delete");
+        db.execSQL(SYNC_BASE_DELETE_ON_NOTE_DELETE_TRIGGER);
+        Log.d(TAG, "sync base table has been created");
+    }
+    // 创建gtask id映射表，并从note表中已有的gtask id填充
+    public void createGtaskMapTable(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE.GTASK_MAP);
+        db.execSQL(CREATE_GTASK_MAP_TABLE_SQL);
+        db.execSQL(CREATE_GTASK_MAP_NOTE_ID_INDEX_SQL);
+        db.execSQL("DROP TRIGGER IF EXISTS gtask_map_insert_on_note_insert");
+        db.execSQL("DROP TRIGGER IF EXISTS gtask_map_update_on_note_update");
+        db.execSQL("DROP TRIGGER IF EXISTS gtask_map_delete_on_note_delete");
+        db.execSQL(GTASK_MAP_INSERT_ON_NOTE_INSERT_TRIGGER);
+        db.execSQL(GTASK_MAP_UPDATE_ON_NOTE_UPDATE_TRIGGER);
+        db.execSQL(GTASK_MAP_DELETE_ON_NOTE_DELETE_TRIGGER);
+        db.execSQL("INSERT OR REPLACE INTO " + TABLE.GTASK_MAP + "(gtask_id, note_id)"
+                + " SELECT " + NoteColumns.GTASK_ID + ", " + NoteColumns.ID + " FROM "
+                + TABLE.NOTE + " WHERE " + NoteColumns.GTASK_ID + "<>''");
+        Log.d(TAG, "gtask map table has been created");
+    }
+    // 创建同步历史记录表
+    public void createSyncHistoryTable(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE.SYNC_HISTORY);
+        db.execSQL(CREATE_SYNC_HISTORY_TABLE_SQL);
+        Log.d(TAG, "sync history table has been created");
+    }
+    // 创建常用查询所需的索引
+    public void createQueryIndexes(SQLiteDatabase db) {
+        db.execSQL(CREATE_NOTE_PARENT_INDEX_SQL);
+        db.execSQL(CREATE_NOTE_TYPE_ALERT_INDEX_SQL);
+        db.execSQL(CREATE_NOTE_WIDGET_INDEX_SQL);
+        db.execSQL(CREATE_NOTE_GTASK_ID_INDEX_SQL);
+        db.execSQL(CREATE_DATA_CALL_INDEX_SQL);
+        Log.d(TAG, "query indexes have been created");
+    }
+    // 获取全文索引的分词方式，结果会被缓存
+    public int getFtsMode(SQLiteDatabase db) {
+        if (mFtsMode >= 0) {
+            return mFtsMode;
+        }
+        int mode = FTS_NONE;
+        Cursor c = db.rawQuery("SELECT sql FROM sqlite_master WHERE type='table' AND name=?",
+                new String[] { TABLE.DATA_FTS });
+        if (c != null) {
+            if (c.moveToFirst()) {
+                String sql = c.getString(0);
+                mode = (sql != null && sql.contains("icu")) ? FTS_ICU : FTS_UNICODE;
+            }
+            c.close();
+        }
+        mFtsMode = mode;
+        return mode;
+    }
     // 获取存储在该类内部的NotesDatabaseHelper实例
     static synchronized NotesDatabaseHelper getInstance(Context context) {
-        if (mInstance == null) {
-            mInstance = new NotesDatabaseHelper(context);
+        String path = context.getDatabasePath(DB_NAME).getPath();
+        NotesDatabaseHelper instance = sInstances.get(path);
+        if (instance == null) {
+            instance = new NotesDatabaseHelper(context);
+            sInstances.put(path, instance);
         }
-        return mInstance;
+        return instance;
+    }
+
+    // 关闭实例，之后再取得的是新的实例，用于测试结束时删除数据库
+    static synchronized void closeInstance(NotesDatabaseHelper helper) {
+        sInstances.values().remove(helper);
+        helper.close();
     }
     // 当数据库首次创建时调用
     @Override
     public void onCreate(SQLiteDatabase db) {
         createNoteTable(db);
         createDataTable(db);
+        createDataFtsTable(db);
+        createSyncBaseTable(db);
+        createGtaskMapTable(db);
+        createSyncHistoryTable(db);
+        createQueryIndexes(db);
     }
     // 当数据库版本更新时调用
     @Override
@@ -342,6 +692,36 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
             oldVersion++;
         }
 
+        if (oldVersion == 4) {
+            upgradeToV5(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 5) {
+            upgradeToV6(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 6) {
+            upgradeToV7(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 7) {
+            upgradeToV8(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 8) {
+            upgradeToV9(db);
+            oldVersion++;
+        }
+
+        if (oldVersion == 9) {
+            upgradeToV10(db);
+            oldVersion++;
+        }
+
         if (reCreateTriggers) {
             reCreateNoteTableTriggers(db);
             reCreateDataTableTriggers(db);
@@ -381,4 +761,29 @@ public class NotesDatabaseHelper extends SQLiteOpenHelper {
         db.execSQL("ALTER TABLE " + TABLE.NOTE + " ADD COLUMN " + NoteColumns.VERSION
                 + " INTEGER NOT NULL DEFAULT 0");
     }
+    // 从版本4升级到版本5，为文本和通话数据建立fts4全文索引
+    private void upgradeToV5(SQLiteDatabase db) {
+        createDataFtsTable(db);
+    }
+    // 从版本5升级到版本6，添加同步基准版本表
+    private void upgradeToV6(SQLiteDatabase db) {
+        createSyncBaseTable(db);
+    }
+    // 从版本6升级到版本7，添加gtask id映射表
+    private void upgradeToV7(SQLiteDatabase db) {
+        createGtaskMapTable(db);
+    }
+    // 从版本7升级到版本8，添加同步历史记录表
+    private void upgradeToV8(SQLiteDatabase db) {
+        createSyncHistoryTable(db);
+    }
+    // 从版本8升级到版本9，为常用查询添加索引
+    private void upgradeToV9(SQLiteDatabase db) {
+        createQueryIndexes(db);
+    }
+    // 从版本9升级到版本10，去掉维护文件夹便签数的逐行触发器，并重新统计便签数
+    private void upgradeToV10(SQLiteDatabase db) {
+        reCreateNoteTableTriggers(db);
+        NoteFolderCounts.recountAll(db);
+    }
 }
@@ -19,20 +19,29 @@ package net.micode.notes.data;
 //便签信息提供类
 import android.app.SearchManager;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.MergeCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.text.TextUtils;
 import android.util.Log;
 
 import net.micode.notes.R;
+import net.micode.notes.data.Notes.CallNote;
 import net.micode.notes.data.Notes.DataColumns;
 import net.micode.notes.data.Notes.NoteColumns;
 import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+import net.micode.notes.gtask.remote.GTaskSyncScheduler;
+
+import java.util.ArrayList;
 
 // 全局声明：内容提供者类，用于处理与笔记数据有关的所有数据库操作（如查询、插入、更新和删除）
 public class NotesProvider extends ContentProvider {
@@ -40,6 +49,12 @@ public class NotesProvider extends ContentProvider {
 
     private NotesDatabaseHelper mHelper; // 数据库辅助对象，用于数据库创建和版本管理
 
+    private NotesChangeNotifier mNotifier; // 变更通知合并器
+
+    private NoteFolderCounts mFolderCounts; // 文件夹便签数的维护
+
+    private NotesStatementCache mStatements; // 固定形式写语句的缓存
+
     private static final String TAG = "NotesProvider";
     // 定义请求类型的常量
     private static final int URI_NOTE            = 1;
@@ -73,16 +88,94 @@ public class NotesProvider extends ContentProvider {
         + R.drawable.search_result + " AS " + SearchManager.SUGGEST_COLUMN_ICON_1 + ","
         + "'" + Intent.ACTION_VIEW + "' AS " + SearchManager.SUGGEST_COLUMN_INTENT_ACTION + ","
         + "'" + Notes.TextNote.CONTENT_TYPE + "' AS " + SearchManager.SUGGEST_COLUMN_INTENT_DATA;
-    // 搜索笔记的SQL查询语句，根据提供的模糊匹配条件搜索
-    private static String NOTES_SNIPPET_SEARCH_QUERY = "SELECT " + NOTES_SEARCH_PROJECTION
+    // 搜索结果的条件，不包括回收站中的便签和文件夹
+    private static final String NOTES_SEARCH_SELECTION = NoteColumns.PARENT_ID + "<>"
+        + Notes.ID_TRASH_FOLER + " AND " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE;
+
+    /**
+     * Number of matched terms in a data row, counted from the offsets() list which has four
+     * integers for each match
+     */
+    // 数据行中匹配词的个数，用作全文索引搜索的相关度
+    private static final String DATA_FTS_MATCH_COUNT = "(LENGTH(OFFSETS(" + TABLE.DATA_FTS + "))"
+        + " - LENGTH(REPLACE(OFFSETS(" + TABLE.DATA_FTS + "), ' ', '')) + 1) / 4";
+
+    /**
+     * Match notes through the full-text index over data.content. A note ranks by the data row
+     * with the most matches, notes with the same rank are ordered by modified date. The rank
+     * is computed in a subquery kept apart by LIMIT -1, offsets() can not be used once the
+     * subquery is flattened into the grouping
+     */
+    // 基于全文索引的搜索语句，按匹配次数排序，次数相同时按修改时间排序
+    private static final String NOTES_FTS_SEARCH_QUERY = "SELECT " + NOTES_SEARCH_PROJECTION
+        + " FROM " + TABLE.NOTE + " JOIN (SELECT " + DataColumns.NOTE_ID + " AS match_note_id,"
+        + " MAX(match_count) AS match_rank FROM " + TABLE.DATA
+        + " JOIN (SELECT docid, " + DATA_FTS_MATCH_COUNT + " AS match_count"
+        + " FROM " + TABLE.DATA_FTS + " WHERE " + TABLE.DATA_FTS + " MATCH ? LIMIT -1)"
+        + " ON " + TABLE.DATA + "." + DataColumns.ID + "=docid"
+        + " GROUP BY " + DataColumns.NOTE_ID + ")"
+        + " ON " + NoteColumns.ID + "=match_note_id"
+        + " WHERE " + NOTES_SEARCH_SELECTION
+        + " ORDER BY match_rank DESC, " + NoteColumns.MODIFIED_DATE + " DESC";
+
+    /**
+     * Match notes by a LIKE pattern when there is no full-text index. The same data.content
+     * of text and call data is searched, so both ways find the same notes
+     */
+    // 没有全文索引时的搜索语句，与全文索引搜索相同的数据列
+    private static final String NOTES_CONTENT_SEARCH_QUERY = "SELECT " + NOTES_SEARCH_PROJECTION
         + " FROM " + TABLE.NOTE
-        + " WHERE " + NoteColumns.SNIPPET + " LIKE ?"
-        + " AND " + NoteColumns.PARENT_ID + "<>" + Notes.ID_TRASH_FOLER
-        + " AND " + NoteColumns.TYPE + "=" + Notes.TYPE_NOTE;
+        + " WHERE " + NoteColumns.ID + " IN (SELECT " + DataColumns.NOTE_ID + " FROM " + TABLE.DATA
+        + " WHERE " + DataColumns.MIME_TYPE + " IN " + NotesDatabaseHelper.FTS_INDEXED_MIME_TYPES
+        + " AND " + DataColumns.CONTENT + " LIKE ?)"
+        + " AND " + NOTES_SEARCH_SELECTION
+        + " ORDER BY " + NoteColumns.MODIFIED_DATE + " DESC";
+
+    /**
+     * Phone number of the call note served as {@link Notes#COLUMN_CALL_NUMBER}, looked up
+     * through the note id index of data table only for notes in the call record folder
+     */
+    // 通话便签电话号码列的表达式，使列表查询一次得到号码，无需逐行查询
+    private static final String NOTE_CALL_NUMBER_COLUMN = "CASE WHEN " + NoteColumns.PARENT_ID
+        + "=" + Notes.ID_CALL_RECORD_FOLDER + " THEN IFNULL((SELECT " + CallNote.PHONE_NUMBER
+        + " FROM " + TABLE.DATA
+        + " WHERE " + TABLE.DATA + "." + DataColumns.NOTE_ID + "=" + TABLE.NOTE + "." + NoteColumns.ID
+        + " AND " + TABLE.DATA + "." + DataColumns.MIME_TYPE + "='" + CallNote.CONTENT_ITEM_TYPE + "'"
+        + " LIMIT 1),'') ELSE '' END AS " + Notes.COLUMN_CALL_NUMBER;
+
+    /**
+     * Selections of single item uris. The id is always the first bound argument, so every
+     * item access has the same SQL text and its prepared statement is reused.
+     */
+    // 单条记录的查询条件，id作为绑定参数而不拼接进SQL
+    private static final String NOTE_ITEM_SELECTION = NoteColumns.ID + "=?";
+
+    private static final String DATA_ITEM_SELECTION = DataColumns.ID + "=?";
+
+    private static final String DATA_ITEM_DELETE_SQL = "DELETE FROM " + TABLE.DATA
+        + " WHERE " + DATA_ITEM_SELECTION;
+
+    // 分页查询按类型逐段读取，类型按排序顺序（降序）排列
+    private static final int[] NOTE_PAGE_TYPES = new int[] {
+            Notes.TYPE_SYSTEM, Notes.TYPE_FOLDER, Notes.TYPE_NOTE
+    };
+
+    // 同一类型内的排序方式，与(parent_id, type, modified_date)索引的顺序一致
+    static final String NOTE_TYPE_PAGE_SORT_ORDER = NoteColumns.MODIFIED_DATE + " DESC,"
+            + NoteColumns.ID + " DESC";
+
+    // 同一类型中排在给定行之后的记录，modified_date<=?作为索引范围
+    private static final String NOTE_PAGE_KEY_SELECTION = NoteColumns.TYPE + "=? AND "
+            + NoteColumns.MODIFIED_DATE + "<=? AND (" + NoteColumns.MODIFIED_DATE + "<? OR "
+            + NoteColumns.ID + "<?)";
+
     // 获取数据库辅助对象实例
     @Override
     public boolean onCreate() {
         mHelper = NotesDatabaseHelper.getInstance(getContext());
+        mNotifier = NotesChangeNotifier.getInstance(getContext());
+        mFolderCounts = new NoteFolderCounts();
+        mStatements = new NotesStatementCache();
         return true;// 返回true表示内容提供者创建成功
     }
 
@@ -94,13 +187,21 @@ public class NotesProvider extends ContentProvider {
         String id = null; // 用于存储URI中的ID部分
         switch (mMatcher.match(uri)) {
             case URI_NOTE:
-                c = db.query(TABLE.NOTE, projection, selection, selectionArgs, null, null,
-                        sortOrder);
+                projection = mapNoteProjection(projection);
+                String limit = uri.getQueryParameter(Notes.QUERY_PARAM_LIMIT);
+                if (limit != null) {
+                    c = queryNotePage(db, uri, projection, selection, selectionArgs, limit,
+                            uri.getQueryParameter(Notes.QUERY_PARAM_AFTER));
+                } else {
+                    c = db.query(TABLE.NOTE, projection, selection, selectionArgs, null, null,
+                            sortOrder);
+                }
                 break;
             case URI_NOTE_ITEM:
                 id = uri.getPathSegments().get(1);
-                c = db.query(TABLE.NOTE, projection, NoteColumns.ID + "=" + id
-                        + parseSelection(selection), selectionArgs, null, null, sortOrder);
+                c = db.query(TABLE.NOTE, mapNoteProjection(projection), NOTE_ITEM_SELECTION
+                        + parseSelection(selection), itemArgs(id, selectionArgs), null, null,
+                        sortOrder);
                 break;
             case URI_DATA:
                 c = db.query(TABLE.DATA, projection, selection, selectionArgs, null, null,
@@ -108,8 +209,9 @@ public class NotesProvider extends ContentProvider {
                 break;
             case URI_DATA_ITEM:
                 id = uri.getPathSegments().get(1);
-                c = db.query(TABLE.DATA, projection, DataColumns.ID + "=" + id
-                        + parseSelection(selection), selectionArgs, null, null, sortOrder);
+                c = db.query(TABLE.DATA, projection, DATA_ITEM_SELECTION
+                        + parseSelection(selection), itemArgs(id, selectionArgs), null, null,
+                        sortOrder);
                 break;
             case URI_SEARCH:
             case URI_SEARCH_SUGGEST:
@@ -132,11 +234,19 @@ public class NotesProvider extends ContentProvider {
                 }
 
                 try {
-                    searchString = String.format("%%%s%%", searchString);
-                    c = db.rawQuery(NOTES_SNIPPET_SEARCH_QUERY,
-                            new String[] { searchString });
+                    String matchString = buildFtsMatchString(searchString,
+                            mHelper.getFtsMode(db));
+                    if (matchString != null) {
+                        c = db.rawQuery(NOTES_FTS_SEARCH_QUERY, new String[] { matchString });
+                    } else {
+                        searchString = String.format("%%%s%%", searchString);
+                        c = db.rawQuery(NOTES_CONTENT_SEARCH_QUERY,
+                                new String[] { searchString });
+                    }
                 } catch (IllegalStateException ex) {
                     Log.e(TAG, "got exception: " + ex.toString());
+                } catch (SQLiteException ex) {
+                    Log.e(TAG, "got exception: " + ex.toString());
                 }
                 break;
             default:
@@ -154,7 +264,8 @@ public class NotesProvider extends ContentProvider {
         long dataId = 0, noteId = 0, insertedId = 0;// 插入数据的ID
         switch (mMatcher.match(uri)) {
             case URI_NOTE:
-                insertedId = noteId = db.insert(TABLE.NOTE, null, values);
+                insertedId = noteId = insertNote(db, values);
+                requestSyncIfModified(values);
                 break;
             case URI_DATA:
                 if (values.containsKey(DataColumns.NOTE_ID)) {
@@ -169,14 +280,12 @@ public class NotesProvider extends ContentProvider {
         }
         // Notify the note uri
         if (noteId > 0) { // 根据插入结果更新相应的URI观察者
-            getContext().getContentResolver().notifyChange(
-                    ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId), null);
+            notifyChange(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, noteId));
         }
 
         // Notify the data uri
         if (dataId > 0) {
-            getContext().getContentResolver().notifyChange(
-                    ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId), null);
+            notifyChange(ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, dataId));
         }
 
         return ContentUris.withAppendedId(uri, insertedId);
@@ -191,7 +300,7 @@ public class NotesProvider extends ContentProvider {
         switch (mMatcher.match(uri)) {
             case URI_NOTE:
                 selection = "(" + selection + ") AND " + NoteColumns.ID + ">0 ";
-                count = db.delete(TABLE.NOTE, selection, selectionArgs);
+                count = deleteNotes(db, selection, selectionArgs);
                 break;
             case URI_NOTE_ITEM:
                 id = uri.getPathSegments().get(1);
@@ -203,8 +312,8 @@ public class NotesProvider extends ContentProvider {
                 if (noteId <= 0) {
                     break;
                 }
-                count = db.delete(TABLE.NOTE,
-                        NoteColumns.ID + "=" + id + parseSelection(selection), selectionArgs);
+                count = deleteNotes(db, NOTE_ITEM_SELECTION + parseSelection(selection),
+                        itemArgs(id, selectionArgs));
                 break;
             case URI_DATA:
                 count = db.delete(TABLE.DATA, selection, selectionArgs);
@@ -212,8 +321,12 @@ public class NotesProvider extends ContentProvider {
                 break;
             case URI_DATA_ITEM:
                 id = uri.getPathSegments().get(1);
-                count = db.delete(TABLE.DATA,
-                        DataColumns.ID + "=" + id + parseSelection(selection), selectionArgs);
+                if (TextUtils.isEmpty(selection)) {
+                    count = mStatements.executeUpdateDelete(db, DATA_ITEM_DELETE_SQL, id);
+                } else {
+                    count = db.delete(TABLE.DATA, DATA_ITEM_SELECTION + parseSelection(selection),
+                            itemArgs(id, selectionArgs));
+                }
                 deleteData = true;
                 break;
             default:
@@ -221,9 +334,9 @@ public class NotesProvider extends ContentProvider {
         }
         if (count > 0) {
             if (deleteData) {
-                getContext().getContentResolver().notifyChange(Notes.CONTENT_NOTE_URI, null);
+                notifyChange(Notes.CONTENT_NOTE_URI);
             }
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return count;// 返回删除的记录数
     }
@@ -236,14 +349,12 @@ public class NotesProvider extends ContentProvider {
         boolean updateData = false;
         switch (mMatcher.match(uri)) {
             case URI_NOTE:
-                increaseNoteVersion(-1, selection, selectionArgs);
-                count = db.update(TABLE.NOTE, values, selection, selectionArgs);
+                count = updateNotes(db, values, selection, selectionArgs);
                 break;
             case URI_NOTE_ITEM:
                 id = uri.getPathSegments().get(1);
-                increaseNoteVersion(Long.valueOf(id), selection, selectionArgs);
-                count = db.update(TABLE.NOTE, values, NoteColumns.ID + "=" + id
-                        + parseSelection(selection), selectionArgs);
+                count = updateNotes(db, values, NOTE_ITEM_SELECTION + parseSelection(selection),
+                        itemArgs(id, selectionArgs));
                 break;
             case URI_DATA:
                 count = db.update(TABLE.DATA, values, selection, selectionArgs);
@@ -251,8 +362,8 @@ public class NotesProvider extends ContentProvider {
                 break;
             case URI_DATA_ITEM:
                 id = uri.getPathSegments().get(1);
-                count = db.update(TABLE.DATA, values, DataColumns.ID + "=" + id
-                        + parseSelection(selection), selectionArgs);
+                count = db.update(TABLE.DATA, values, DATA_ITEM_SELECTION
+                        + parseSelection(selection), itemArgs(id, selectionArgs));
                 updateData = true;
                 break;
             default:
@@ -261,40 +372,377 @@ public class NotesProvider extends ContentProvider {
 
         if (count > 0) {
             if (updateData) {
-                getContext().getContentResolver().notifyChange(Notes.CONTENT_NOTE_URI, null);
+                notifyChange(Notes.CONTENT_NOTE_URI);
+            }
+            notifyChange(uri);
+            if (!updateData) {
+                requestSyncIfModified(values);
             }
-            getContext().getContentResolver().notifyChange(uri, null);
         }
         return count;
     }
+
+    // 插入便签并在同一事务中更新所在文件夹的便签数
+    private long insertNote(SQLiteDatabase db, ContentValues values) {
+        Long parentId = values.getAsLong(NoteColumns.PARENT_ID);
+        db.beginTransaction();
+        try {
+            long noteId = db.insert(TABLE.NOTE, null, values);
+            if (noteId > 0) {
+                mFolderCounts.onInserted(db,
+                        parentId == null ? Notes.ID_ROOT_FOLDER : parentId);
+            }
+            db.setTransactionSuccessful();
+            return noteId;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // 移动便签时在同一事务中处理文件夹移入垃圾箱和便签数，不移动时直接更新
+    private int updateNotes(SQLiteDatabase db, ContentValues values, String where,
+            String[] whereArgs) {
+        Long parentId = values.getAsLong(NoteColumns.PARENT_ID);
+        if (parentId == null) {
+            return updateNoteRows(db, values, where, whereArgs);
+        }
+        db.beginTransaction();
+        try {
+            NoteFolderCounts.Affected affected = mFolderCounts.collect(db, where, whereArgs);
+            int count = updateNoteRows(db, values, where, whereArgs);
+            if (count > 0) {
+                mFolderCounts.onMoved(db, affected, parentId);
+            }
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Write the values and increase the version of the matched notes in one UPDATE, so a
+     * note is never seen with new values and old version. The where clause is evaluated
+     * before the update, a caller checking the version compares it with the version it read.
+     */
+    // 在同一条UPDATE中写入新值并将版本号加一，调用者显式给出版本号时以其为准
+    // 只有单条便签且无附加条件时语句形式固定，才使用缓存的语句
+    private int updateNoteRows(SQLiteDatabase db, ContentValues values, String where,
+            String[] whereArgs) {
+        if (values == null || values.size() == 0) {
+            throw new IllegalArgumentException("Empty values");
+        }
+        int whereArgCount = whereArgs == null ? 0 : whereArgs.length;
+        Object[] bindArgs = new Object[values.size() + whereArgCount];
+        StringBuilder sql = new StringBuilder(120);
+        sql.append("UPDATE ").append(TABLE.NOTE).append(" SET ");
+        int i = 0;
+        for (String column : values.keySet()) {
+            sql.append(i > 0 ? "," : "").append(column).append("=?");
+            bindArgs[i++] = values.get(column);
+        }
+        if (!values.containsKey(NoteColumns.VERSION)) {
+            sql.append(',').append(NoteColumns.VERSION).append('=')
+                    .append(NoteColumns.VERSION).append("+1");
+        }
+        if (!TextUtils.isEmpty(where)) {
+            sql.append(" WHERE ").append(where);
+        }
+        if (whereArgCount > 0) {
+            System.arraycopy(whereArgs, 0, bindArgs, i, whereArgCount);
+        }
+        if (NOTE_ITEM_SELECTION.equals(where)) {
+            return mStatements.executeUpdateDelete(db, sql.toString(), bindArgs);
+        }
+        return NotesStatementCache.executeUpdateDeleteOnce(db, sql.toString(), bindArgs);
+    }
+
+    // 删除便签，同一事务中删除被删文件夹下的便签并更新便签数
+    private int deleteNotes(SQLiteDatabase db, String where, String[] whereArgs) {
+        db.beginTransaction();
+        try {
+            NoteFolderCounts.Affected affected = mFolderCounts.collect(db, where, whereArgs);
+            int count = db.delete(TABLE.NOTE, where, whereArgs);
+            if (count > 0) {
+                mFolderCounts.onDeleted(db, affected);
+            }
+            db.setTransactionSuccessful();
+            return count;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // 用户修改便签时会置上本地修改标志，同步自身的写入不会，据此安排一次后台同步
+    private void requestSyncIfModified(ContentValues values) {
+        Integer localModified = values.getAsInteger(NoteColumns.LOCAL_MODIFIED);
+        if (localModified != null && localModified == 1) {
+            GTaskSyncScheduler.requestChangeSync(getContext());
+        }
+    }
+    /**
+     * Query one page of notes sorted by {@link Notes#NOTE_PAGE_SORT_ORDER}. The page starts
+     * right after the row whose key is given by after. Rows are read type by type, the type
+     * of the key with "type=? AND modified_date<=?" and the following types with "type=?".
+     * For a selection "parent_id=?" each part is a range of the index on
+     * (parent_id, type, modified_date), so a page costs the same wherever it starts.
+     */
+    // 按(type, modified_date, _id)做键集分页查询，每个类型一条可由索引范围扫描的语句
+    private Cursor queryNotePage(SQLiteDatabase db, Uri uri, String[] projection,
+            String selection, String[] selectionArgs, String limit, String after) {
+        int pageSize;
+        try {
+            pageSize = Integer.parseInt(limit);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid page size " + limit);
+        }
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Invalid page size " + limit);
+        }
+
+        int afterType = Integer.MAX_VALUE;
+        String modifiedDate = null, noteId = null;
+        if (!TextUtils.isEmpty(after)) {
+            String[] key = after.split(",");
+            if (key.length != 3) {
+                throw new IllegalArgumentException("Invalid page key " + after);
+            }
+            try {
+                afterType = Integer.parseInt(key[0]);
+                modifiedDate = String.valueOf(Long.parseLong(key[1]));
+                noteId = String.valueOf(Long.parseLong(key[2]));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid page key " + after);
+            }
+        }
+
+        ArrayList<Cursor> parts = new ArrayList<Cursor>();
+        Cursor empty = null;
+        int remaining = pageSize;
+        try {
+            for (int type : NOTE_PAGE_TYPES) {
+                if (remaining == 0) {
+                    break;
+                }
+                if (type > afterType) {
+                    continue;
+                }
+                boolean keyed = (type == afterType);
+                String[] typeArgs;
+                if (keyed) {
+                    typeArgs = new String[] {
+                            String.valueOf(type), modifiedDate, modifiedDate, noteId
+                    };
+                } else {
+                    typeArgs = new String[] { String.valueOf(type) };
+                }
+                Cursor c = db.query(TABLE.NOTE, projection,
+                        notePagePartSelection(selection, keyed),
+                        appendArgs(selectionArgs, typeArgs), null, null,
+                        NOTE_TYPE_PAGE_SORT_ORDER, String.valueOf(remaining));
+                if (c == null) {
+                    continue;
+                }
+                if (c.getCount() == 0) {
+                    // 保留一个空结果，没有任何记录时用它返回列名
+                    if (empty != null) {
+                        empty.close();
+                    }
+                    empty = c;
+                    continue;
+                }
+                // 合并后的游标只把观察者转给各段，各段需自己监听变化
+                c.setNotificationUri(getContext().getContentResolver(), uri);
+                remaining -= c.getCount();
+                parts.add(c);
+            }
+        } catch (RuntimeException e) {
+            for (Cursor part : parts) {
+                part.close();
+            }
+            if (empty != null) {
+                empty.close();
+            }
+            throw e;
+        }
+
+        if (parts.isEmpty()) {
+            return empty;
+        }
+        if (empty != null) {
+            empty.close();
+        }
+        if (parts.size() == 1) {
+            return parts.get(0);
+        }
+        return new MergeCursor(parts.toArray(new Cursor[parts.size()]));
+    }
+
+    /**
+     * Selection of the part of a page holding one type. The arguments following those of the
+     * caller are the type, or when keyed the type, modified_date, modified_date and _id of
+     * the key, to read the rows after the key only.
+     */
+    static String notePagePartSelection(String selection, boolean keyed) {
+        return appendSelection(selection, keyed ? NOTE_PAGE_KEY_SELECTION
+                : NoteColumns.TYPE + "=?");
+    }
+
+    // 在调用者的条件后追加条件
+    private static String appendSelection(String selection, String extra) {
+        return TextUtils.isEmpty(selection) ? extra : "(" + selection + ") AND " + extra;
+    }
+
+    // 在调用者的参数后追加参数
+    private static String[] appendArgs(String[] selectionArgs, String[] extra) {
+        int argCount = selectionArgs == null ? 0 : selectionArgs.length;
+        String[] args = new String[argCount + extra.length];
+        if (argCount > 0) {
+            System.arraycopy(selectionArgs, 0, args, 0, argCount);
+        }
+        System.arraycopy(extra, 0, args, argCount, extra.length);
+        return args;
+    }
+    // 将便签查询中的附加列替换为对应的SQL表达式
+    private static String[] mapNoteProjection(String[] projection) {
+        if (projection == null) {
+            return null;
+        }
+        String[] mapped = projection;
+        for (int i = 0; i < projection.length; i++) {
+            if (Notes.COLUMN_CALL_NUMBER.equals(projection[i])) {
+                if (mapped == projection) {
+                    mapped = projection.clone();
+                }
+                mapped[i] = NOTE_CALL_NUMBER_COLUMN;
+            }
+        }
+        return mapped;
+    }
+    /**
+     * Apply all operations in one transaction, change notifications are merged and sent once
+     * after the transaction has committed
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        boolean outermost = mNotifier.beginTransaction();
+        boolean outermostCounts = mFolderCounts.beginBatch();
+        boolean successful = false;
+        db.beginTransaction();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            if (outermostCounts) {
+                mFolderCounts.recountBatch(db);
+            }
+            db.setTransactionSuccessful();
+            successful = true;
+            return results;
+        } finally {
+            db.endTransaction();
+            if (outermostCounts) {
+                mFolderCounts.endBatch();
+            }
+            if (outermost) {
+                mNotifier.endTransaction(successful);
+            }
+        }
+    }
+
+    /**
+     * Insert all rows in one transaction, change notifications are merged and sent once
+     * after the transaction has committed
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        boolean outermost = mNotifier.beginTransaction();
+        boolean outermostCounts = mFolderCounts.beginBatch();
+        boolean successful = false;
+        int count = 0;
+        db.beginTransaction();
+        try {
+            for (ContentValues value : values) {
+                insert(uri, value);
+                count++;
+            }
+            if (outermostCounts) {
+                mFolderCounts.recountBatch(db);
+            }
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            db.endTransaction();
+            if (outermostCounts) {
+                mFolderCounts.endBatch();
+            }
+            if (outermost) {
+                mNotifier.endTransaction(successful);
+            }
+        }
+        return count;
+    }
+
+    // 通过合并器发送变更通知，批量操作中的通知在事务提交后统一发送
+    private void notifyChange(Uri uri) {
+        mNotifier.notifyChange(uri);
+    }
     // 辅助方法，用于处理查询或更新条件
     private String parseSelection(String selection) {
         return (!TextUtils.isEmpty(selection) ? " AND (" + selection + ')' : "");
     }
-    // 更新笔记版本
-    private void increaseNoteVersion(long id, String selection, String[] selectionArgs) {
-        StringBuilder sql = new StringBuilder(120);
-        sql.append("UPDATE ");
-        sql.append(TABLE.NOTE);
-        sql.append(" SET ");
-        sql.append(NoteColumns.VERSION);
-        sql.append("=" + NoteColumns.VERSION + "+1 ");
-
-        if (id > 0 || !TextUtils.isEmpty(selection)) {
-            sql.append(" WHERE ");
-        }
-        if (id > 0) {
-            sql.append(NoteColumns.ID + "=" + String.valueOf(id));
-        }
-        if (!TextUtils.isEmpty(selection)) {
-            String selectString = id > 0 ? parseSelection(selection) : selection;
-            for (String args : selectionArgs) {
-                selectString = selectString.replaceFirst("\\?", args);
-            }
-            sql.append(selectString);
+    // 将URI中的id作为第一个绑定参数，其后是调用者的参数
+    private static String[] itemArgs(String id, String[] selectionArgs) {
+        int argCount = selectionArgs == null ? 0 : selectionArgs.length;
+        String[] args = new String[argCount + 1];
+        args[0] = id;
+        if (argCount > 0) {
+            System.arraycopy(selectionArgs, 0, args, 1, argCount);
+        }
+        return args;
+    }
+    /**
+     * Convert user input into a fts4 match expression. Input wrapped in double quotes is
+     * matched as one phrase, otherwise every term must appear. The last word of every term is
+     * matched as a prefix. Return null when there is no full-text index.
+     */
+    // 将用户输入转换为fts4的MATCH表达式，返回null时使用LIKE查询
+    private static String buildFtsMatchString(String input, int ftsMode) {
+        if (ftsMode == NotesDatabaseHelper.FTS_NONE) {
+            return null;
+        }
+        // fts4的短语中无法转义双引号，直接去掉
+        String text = input.trim();
+        boolean phrase = text.length() > 1 && text.startsWith("\"") && text.endsWith("\"");
+        String[] terms;
+        if (phrase) {
+            terms = new String[] { text.substring(1, text.length() - 1).replace('"', ' ').trim() };
+        } else {
+            terms = text.replace('"', ' ').trim().split("\\s+");
         }
 
-        mHelper.getWritableDatabase().execSQL(sql.toString());
+        StringBuilder match = new StringBuilder(text.length() + 8);
+        for (String term : terms) {
+            if (TextUtils.isEmpty(term)) {
+                continue;
+            }
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            // 用双引号包裹每个词，避免用户输入被当作fts4语法解析
+            match.append('"').append(term).append("*\"");
+        }
+        return match.length() > 0 ? match.toString() : null;
+    }
+    /**
+     * Close the database of this provider, used by tests which run the provider on their
+     * own database
+     */
+    @Override
+    public void shutdown() {
+        mStatements.clear();
+        NotesDatabaseHelper.closeInstance(mHelper);
     }
 /// 根据URI返回MIME类型，暂未实现
     @Override
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.data;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compiled statements for the fixed write shapes of {@link NotesProvider}. Each statement is
+ * compiled once and then run again with new bound arguments. A statement is taken out of the
+ * cache while it is bound and executed and put back afterwards, so no other thread can bind,
+ * evict or close it meanwhile. A thread finding its shape taken compiles another statement.
+ * No lock is held while compiling or executing, so a thread waiting for the database inside a
+ * transaction never waits for the cache. The least recently used idle statements are closed
+ * when more than {@link #MAX_STATEMENTS} shapes are seen.
+ */
+// 缓存内容提供者中固定形式的写语句，每次调用只重新绑定参数
+class NotesStatementCache {
+    // 便签更新语句随写入的列不同而不同，限制缓存的语句个数
+    private static final int MAX_STATEMENTS = 32;
+
+    private SQLiteDatabase mDb;
+
+    private final LinkedHashMap<String, SQLiteStatement> mStatements =
+            new LinkedHashMap<String, SQLiteStatement>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> eldest) {
+                    if (size() > MAX_STATEMENTS) {
+                        eldest.getValue().close();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+
+    /**
+     * Execute an UPDATE or DELETE with all arguments bound, returns the number of changed rows
+     */
+    int executeUpdateDelete(SQLiteDatabase db, String sql, Object... bindArgs) {
+        SQLiteStatement statement = take(db, sql);
+        if (statement == null) {
+            statement = db.compileStatement(sql);
+        }
+        try {
+            bindAll(statement, bindArgs);
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.clearBindings();
+            putBack(db, sql, statement);
+        }
+    }
+
+    /**
+     * Execute an UPDATE or DELETE of an ad-hoc shape without caching its statement, returns
+     * the number of changed rows
+     */
+    // 调用者给出的条件每次都可能不同，编译后执行一次即关闭，不占用缓存
+    static int executeUpdateDeleteOnce(SQLiteDatabase db, String sql, Object... bindArgs) {
+        SQLiteStatement statement = db.compileStatement(sql);
+        try {
+            bindAll(statement, bindArgs);
+            return statement.executeUpdateDelete();
+        } finally {
+            statement.close();
+        }
+    }
+
+    // 取出空闲的语句，没有时返回null；数据库对象变化（如被关闭后重新打开）时丢弃旧的语句
+    private synchronized SQLiteStatement take(SQLiteDatabase db, String sql) {
+        if (mDb != db) {
+            clear();
+            mDb = db;
+        }
+        return mStatements.remove(sql);
+    }
+
+    // 放回用完的语句，数据库已变化或已有同形式的空闲语句时关闭它
+    private synchronized void putBack(SQLiteDatabase db, String sql, SQLiteStatement statement) {
+        if (mDb != db || mStatements.containsKey(sql)) {
+            statement.close();
+            return;
+        }
+        mStatements.put(sql, statement);
+    }
+
+    /**
+     * Close all cached statements
+     */
+    synchronized void clear() {
+        for (SQLiteStatement statement : mStatements.values()) {
+            statement.close();
+        }
+        mStatements.clear();
+        mDb = null;
+    }
+
+    private static void bindAll(SQLiteStatement statement, Object[] bindArgs) {
+        for (int i = 0; i < bindArgs.length; i++) {
+            bind(statement, i + 1, bindArgs[i]);
+        }
+    }
+
+    private static void bind(SQLiteStatement statement, int index, Object arg) {
+        if (arg == null) {
+            statement.bindNull(index);
+        } else if (arg instanceof Long || arg instanceof Integer || arg instanceof Short
+                || arg instanceof Byte) {
+            statement.bindLong(index, ((Number) arg).longValue());
+        } else if (arg instanceof Double || arg instanceof Float) {
+            statement.bindDouble(index, ((Number) arg).doubleValue());
+        } else if (arg instanceof Boolean) {
+            statement.bindLong(index, ((Boolean) arg) ? 1 : 0);
+        } else if (arg instanceof byte[]) {
+            statement.bindBlob(index, (byte[]) arg);
+        } else {
+            statement.bindString(index, arg.toString());
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import net.micode.notes.data.NotesDatabaseHelper.TABLE;
+
+// 同步历史记录，每次同步的各阶段耗时、各同步动作的数量和网络流量，只保留最近的若干条
+public class SyncHistory {
+    public static final String ID = "_id";
+
+    public static final String START_TIME = "start_time";
+
+    public static final String DURATION = "duration";
+
+    public static final String MANUAL = "manual";
+
+    public static final String RESULT = "result";
+
+    public static final String LOGIN_TIME = "login_time";
+
+    public static final String INIT_LIST_TIME = "init_list_time";
+
+    public static final String SYNC_FOLDER_TIME = "sync_folder_time";
+
+    public static final String SYNC_CONTENT_TIME = "sync_content_time";
+
+    public static final String REFRESH_TIME = "refresh_time";
+
+    /**
+     * Comma separated counts of each sync action
+     * <P> Type: TEXT </P>
+     */
+    public static final String ACTION_COUNTS = "action_counts";
+
+    public static final String REQUESTS = "requests";
+
+    public static final String RETRIES = "retries";
+
+    public static final String FAILURES = "failures";
+
+    public static final String BYTES_SENT = "bytes_sent";
+
+    public static final String BYTES_RECEIVED = "bytes_received";
+
+    // 保留的最大记录数
+    public static final int MAX_ENTRIES = 100;
+
+    public static void add(Context context, ContentValues values) {
+        SQLiteDatabase db = NotesDatabaseHelper.getInstance(context).getWritableDatabase();
+        db.beginTransaction();
+        try {
+            long id = db.insert(TABLE.SYNC_HISTORY, null, values);
+            if (id > MAX_ENTRIES) {
+                db.delete(TABLE.SYNC_HISTORY, ID + "<=?",
+                        new String[] { String.valueOf(id - MAX_ENTRIES) });
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Returns the latest entries, newest first
+     */
+    public static Cursor query(Context context, int limit) {
+        SQLiteDatabase db = NotesDatabaseHelper.getInstance(context).getReadableDatabase();
+        return db.query(TABLE.SYNC_HISTORY, null, null, null, null, null, ID + " DESC",
+                String.valueOf(limit));
+    }
+
+    public static void clear(Context context) {
+        SQLiteDatabase db = NotesDatabaseHelper.getInstance(context).getWritableDatabase();
+        db.delete(TABLE.SYNC_HISTORY, null, null);
+    }
+}
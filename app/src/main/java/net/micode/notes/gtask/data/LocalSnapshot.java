@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.gtask.data;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.NoteColumns;
+
+import java.util.ArrayList;
+
+/**
+ * Local notes and their data rows, read in two queries when a sync starts so that building
+ * a {@link SqlNote} does not query the provider again. Rows created through a
+ * {@link LocalWriter} during the sync are added as well.
+ */
+public class LocalSnapshot {
+    private static final String TAG = LocalSnapshot.class.getSimpleName();
+
+    private static final String[] PROJECTION_NOTE_ID = new String[] {
+            NoteColumns.ID
+    };
+
+    private static final String[] PROJECTION_DATA = new String[] {
+            DataColumns.ID, DataColumns.MIME_TYPE, DataColumns.CONTENT, DataColumns.DATA1,
+            DataColumns.DATA3, DataColumns.NOTE_ID
+    };
+
+    private static final int DATA_NOTE_ID_COLUMN = 5;
+
+    /**
+     * One row of the data table, the columns are those of {@link SqlData#PROJECTION_DATA}
+     */
+    public static class DataRow {
+        final long id;
+        final String mimeType;
+        final String content;
+        final long data1;
+        final String data3;
+
+        DataRow(Cursor c) {
+            id = c.getLong(SqlData.DATA_ID_COLUMN);
+            mimeType = c.getString(SqlData.DATA_MIME_TYPE_COLUMN);
+            content = c.getString(SqlData.DATA_CONTENT_COLUMN);
+            data1 = c.getLong(SqlData.DATA_CONTENT_DATA_1_COLUMN);
+            data3 = c.getString(SqlData.DATA_CONTENT_DATA_3_COLUMN);
+        }
+    }
+
+    // ids of the local notes, the values are not used
+    private LongSparseArray<Boolean> mNotes;
+
+    // note id -> data rows of the note
+    private LongSparseArray<ArrayList<DataRow>> mNoteData;
+
+    // data id -> note id
+    private LongSparseArray<Long> mDataNotes;
+
+    private LocalSnapshot() {
+        mNotes = new LongSparseArray<Boolean>();
+        mNoteData = new LongSparseArray<ArrayList<DataRow>>();
+        mDataNotes = new LongSparseArray<Long>();
+    }
+
+    public static LocalSnapshot load(ContentResolver resolver) {
+        LocalSnapshot snapshot = new LocalSnapshot();
+        Cursor c = resolver.query(Notes.CONTENT_NOTE_URI, PROJECTION_NOTE_ID, null, null, null);
+        if (c != null) {
+            try {
+                while (c.moveToNext()) {
+                    snapshot.mNotes.put(c.getLong(0), Boolean.TRUE);
+                }
+            } finally {
+                c.close();
+            }
+        } else {
+            Log.w(TAG, "failed to query local notes");
+        }
+
+        c = resolver.query(Notes.CONTENT_DATA_URI, PROJECTION_DATA, null, null,
+                DataColumns.NOTE_ID);
+        if (c != null) {
+            try {
+                long noteId = 0;
+                ArrayList<DataRow> rows = null;
+                while (c.moveToNext()) {
+                    // rows come sorted by note id, so each note's list is looked up once
+                    long id = c.getLong(DATA_NOTE_ID_COLUMN);
+                    if (rows == null || id != noteId) {
+                        noteId = id;
+                        rows = new ArrayList<DataRow>(2);
+                        snapshot.mNoteData.put(noteId, rows);
+                    }
+                    DataRow row = new DataRow(c);
+                    rows.add(row);
+                    snapshot.mDataNotes.put(row.id, noteId);
+                }
+            } finally {
+                c.close();
+            }
+        } else {
+            Log.w(TAG, "failed to query local data");
+        }
+        return snapshot;
+    }
+
+    public boolean containsNote(long noteId) {
+        return mNotes.indexOfKey(noteId) >= 0;
+    }
+
+    public boolean containsData(long dataId) {
+        return mDataNotes.indexOfKey(dataId) >= 0;
+    }
+
+    public int getNoteCount() {
+        return mNotes.size();
+    }
+
+    public int getDataCount() {
+        return mDataNotes.size();
+    }
+
+    ArrayList<DataRow> getData(long noteId) {
+        return mNoteData.get(noteId);
+    }
+
+    void addNote(long noteId) {
+        mNotes.put(noteId, Boolean.TRUE);
+    }
+
+    void addData(long dataId, long noteId) {
+        mDataNotes.put(dataId, noteId);
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.gtask.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.util.Log;
+
+import net.micode.notes.data.Notes;
+import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.gtask.exception.ActionFailureException;
+
+import java.util.ArrayList;
+
+/**
+ * Collects the local updates of a sync and applies them with one
+ * {@link ContentResolver#applyBatch} call, which the provider runs in one transaction.
+ * Inserts are applied right away since the caller needs the new ids.
+ */
+public class LocalWriter {
+    private static final String TAG = LocalWriter.class.getSimpleName();
+
+    private ContentResolver mContentResolver;
+
+    private LocalSnapshot mSnapshot;
+
+    private ArrayList<ContentProviderOperation> mOperations;
+
+    public LocalWriter(ContentResolver resolver, LocalSnapshot snapshot) {
+        mContentResolver = resolver;
+        mSnapshot = snapshot;
+        mOperations = new ArrayList<ContentProviderOperation>();
+    }
+
+    public LocalSnapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    public void update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        mOperations.add(ContentProviderOperation.newUpdate(uri).withValues(values)
+                .withSelection(selection, selectionArgs).build());
+    }
+
+    public int getPendingCount() {
+        return mOperations.size();
+    }
+
+    /**
+     * Insert a note with its data rows in one transaction
+     *
+     * @return the id of the note followed by the ids of the data rows
+     */
+    long[] insertNote(ContentValues note, ArrayList<ContentValues> dataList) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>(
+                dataList.size() + 1);
+        operations.add(ContentProviderOperation.newInsert(Notes.CONTENT_NOTE_URI)
+                .withValues(note).build());
+        for (ContentValues data : dataList) {
+            operations.add(ContentProviderOperation.newInsert(Notes.CONTENT_DATA_URI)
+                    .withValues(data).withValueBackReference(DataColumns.NOTE_ID, 0).build());
+        }
+
+        ContentProviderResult[] results = apply(operations);
+        long[] ids = new long[results.length];
+        for (int i = 0; i < results.length; i++) {
+            ids[i] = parseId(results[i]);
+        }
+        mSnapshot.addNote(ids[0]);
+        for (int i = 1; i < ids.length; i++) {
+            mSnapshot.addData(ids[i], ids[0]);
+        }
+        return ids;
+    }
+
+    long insertData(long noteId, ContentValues data) {
+        Uri uri = mContentResolver.insert(Notes.CONTENT_DATA_URI, data);
+        long id = parseId(uri);
+        mSnapshot.addData(id, noteId);
+        return id;
+    }
+
+    /**
+     * Apply all collected updates
+     */
+    public void flush() {
+        if (mOperations.isEmpty()) {
+            return;
+        }
+        ArrayList<ContentProviderOperation> operations = mOperations;
+        mOperations = new ArrayList<ContentProviderOperation>();
+        apply(operations);
+    }
+
+    private ContentProviderResult[] apply(ArrayList<ContentProviderOperation> operations) {
+        try {
+            return mContentResolver.applyBatch(Notes.AUTHORITY, operations);
+        } catch (RemoteException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            throw new ActionFailureException("apply local changes failed");
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, String.format("%s: %s", e.toString(), e.getMessage()));
+            throw new ActionFailureException("apply local changes failed");
+        }
+    }
+
+    private static long parseId(ContentProviderResult result) {
+        return parseId(result == null ? null : result.uri);
+    }
+
+    private static long parseId(Uri uri) {
+        if (uri == null) {
+            throw new ActionFailureException("create note failed");
+        }
+        try {
+            return Long.valueOf(uri.getPathSegments().get(1));
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "Get note id error :" + e.toString());
+            throw new ActionFailureException("create note failed");
+        }
+    }
+}
@@ -89,6 +89,17 @@ public class SqlData {
         mDiffDataValues = new ContentValues();
     }
 
+    SqlData(Context context, LocalSnapshot.DataRow row) {
+        mContentResolver = context.getContentResolver();
+        mIsCreate = false;
+        mDataId = row.id;
+        mDataMimeType = row.mimeType;
+        mDataContent = row.content;
+        mDataContentData1 = row.data1;
+        mDataContentData3 = row.data3;
+        mDiffDataValues = new ContentValues();
+    }
+
     private void loadFromCursor(Cursor c) {
         mDataId = c.getLong(DATA_ID_COLUMN);
         mDataMimeType = c.getString(DATA_MIME_TYPE_COLUMN);
@@ -183,6 +194,47 @@ public class SqlData {
         mIsCreate = false;
     }
 
+    /**
+     * Same as {@link #commit(long, boolean, long)}, but updates are left in the writer
+     */
+    void commit(long noteId, boolean validateVersion, long version, LocalWriter writer) {
+        if (mIsCreate) {
+            mDataId = writer.insertData(noteId, getCreateValues(noteId));
+        } else if (mDiffDataValues.size() > 0) {
+            if (!validateVersion) {
+                writer.update(ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, mDataId),
+                        mDiffDataValues, null, null);
+            } else {
+                writer.update(ContentUris.withAppendedId(Notes.CONTENT_DATA_URI, mDataId),
+                        mDiffDataValues, " ? in (SELECT " + NoteColumns.ID + " FROM " + TABLE.NOTE
+                                + " WHERE " + NoteColumns.VERSION + "=?)", new String[] {
+                                String.valueOf(noteId), String.valueOf(version)
+                        });
+            }
+        }
+
+        mDiffDataValues.clear();
+        mIsCreate = false;
+    }
+
+    // values to insert the row, the note id is back referenced when the note is new
+    ContentValues getCreateValues(long noteId) {
+        ContentValues values = new ContentValues(mDiffDataValues);
+        if (mDataId == INVALID_ID) {
+            values.remove(DataColumns.ID);
+        }
+        if (noteId != INVALID_ID) {
+            values.put(DataColumns.NOTE_ID, noteId);
+        }
+        return values;
+    }
+
+    void setCreated(long id) {
+        mDataId = id;
+        mDiffDataValues.clear();
+        mIsCreate = false;
+    }
+
     public long getId() {
         return mDataId;
     }
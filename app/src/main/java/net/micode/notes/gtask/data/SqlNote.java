@@ -125,6 +125,9 @@ public class SqlNote {
     private ContentValues mDiffNoteValues;
     // 便签的数据列表
     private ArrayList<SqlData> mDataList;
+
+    // 批量写入器，为null时直接写数据库
+    private LocalWriter mWriter;
     // 构造函数，用于创建新便签
     public SqlNote(Context context) {
         mContext = context;
@@ -146,6 +149,31 @@ public class SqlNote {
         mDiffNoteValues = new ContentValues();
         mDataList = new ArrayList<SqlData>();
     }
+    // 构造函数，用于创建由批量写入器提交的新便签
+    public SqlNote(Context context, LocalWriter writer) {
+        this(context);
+        mWriter = writer;
+    }
+    // 构造函数，数据行从同步开始时读取的快照中获取，修改由批量写入器提交
+    public SqlNote(Context context, Cursor c, LocalWriter writer) {
+        mContext = context;
+        mContentResolver = context.getContentResolver();
+        mIsCreate = false;
+        mWriter = writer;
+        loadFromCursor(c);
+        mDataList = new ArrayList<SqlData>();
+        if (mType == Notes.TYPE_NOTE) {
+            ArrayList<LocalSnapshot.DataRow> rows = writer.getSnapshot().getData(mId);
+            if (rows != null) {
+                for (LocalSnapshot.DataRow row : rows) {
+                    mDataList.add(new SqlData(context, row));
+                }
+            } else {
+                Log.w(TAG, "it seems that the note has not data");
+            }
+        }
+        mDiffNoteValues = new ContentValues();
+    }
     // 构造函数，用于从数据库查询结果创建便签
     public SqlNote(Context context, Cursor c) {
         mContext = context;
@@ -445,6 +473,11 @@ public class SqlNote {
     }
 
     public void commit(boolean validateVersion) {
+        if (mWriter != null) {
+            commitToWriter(validateVersion);
+            return;
+        }
+
         if (mIsCreate) {
             if (mId == INVALID_ID && mDiffNoteValues.containsKey(NoteColumns.ID)) {
                 mDiffNoteValues.remove(NoteColumns.ID);
@@ -472,7 +505,6 @@ public class SqlNote {
                 throw new IllegalStateException("Try to update note with invalid id");
             }
             if (mDiffNoteValues.size() > 0) {
-                mVersion ++;
                 int result = 0;
                 if (!validateVersion) {
                     result = mContentResolver.update(Notes.CONTENT_NOTE_URI, mDiffNoteValues, "("
@@ -489,6 +521,8 @@ public class SqlNote {
                 if (result == 0) {
                     Log.w(TAG, "there is no update. maybe user updates note when syncing");
                 }
+                // 内容提供者在同一条语句中将版本号加一
+                mVersion ++;
             }
 
             if (mType == Notes.TYPE_NOTE) {
@@ -506,4 +540,60 @@ public class SqlNote {
         mDiffNoteValues.clear();
         mIsCreate = false;
     }
+
+    // 通过批量写入器提交，写入的值即为内存中的值，不再重新读取数据库
+    private void commitToWriter(boolean validateVersion) {
+        if (mIsCreate) {
+            if (mId == INVALID_ID && mDiffNoteValues.containsKey(NoteColumns.ID)) {
+                mDiffNoteValues.remove(NoteColumns.ID);
+            }
+
+            ArrayList<ContentValues> dataValues = new ArrayList<ContentValues>();
+            if (mType == Notes.TYPE_NOTE) {
+                for (SqlData sqlData : mDataList) {
+                    dataValues.add(sqlData.getCreateValues(INVALID_ID));
+                }
+            }
+            long[] ids = mWriter.insertNote(mDiffNoteValues, dataValues);
+            mId = ids[0];
+            if (mId == 0) {
+                throw new IllegalStateException("Create thread id failed");
+            }
+            if (mType == Notes.TYPE_NOTE) {
+                for (int i = 0; i < mDataList.size(); i++) {
+                    mDataList.get(i).setCreated(ids[i + 1]);
+                }
+            }
+        } else {
+            if (mId <= 0 && mId != Notes.ID_ROOT_FOLDER && mId != Notes.ID_CALL_RECORD_FOLDER) {
+                Log.e(TAG, "No such note");
+                throw new IllegalStateException("Try to update note with invalid id");
+            }
+            if (mDiffNoteValues.size() > 0) {
+                if (!validateVersion) {
+                    mWriter.update(Notes.CONTENT_NOTE_URI, mDiffNoteValues, "("
+                            + NoteColumns.ID + "=?)", new String[] {
+                        String.valueOf(mId)
+                    });
+                } else {
+                    mWriter.update(Notes.CONTENT_NOTE_URI, mDiffNoteValues, "("
+                            + NoteColumns.ID + "=?) AND (" + NoteColumns.VERSION + "<=?)",
+                            new String[] {
+                                    String.valueOf(mId), String.valueOf(mVersion)
+                            });
+                }
+                // 与内容提供者中的版本号加一保持一致
+                mVersion ++;
+            }
+
+            if (mType == Notes.TYPE_NOTE) {
+                for (SqlData sqlData : mDataList) {
+                    sqlData.commit(mId, validateVersion, mVersion, mWriter);
+                }
+            }
+        }
+
+        mDiffNoteValues.clear();
+        mIsCreate = false;
+    }
 }
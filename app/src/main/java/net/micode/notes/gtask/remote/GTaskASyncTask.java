@@ -34,7 +34,7 @@ public class GTaskASyncTask extends AsyncTask<Void, String, Integer> {
     private static int GTASK_SYNC_NOTIFICATION_ID = 5234235;
 
     public interface OnCompleteListener {
-        void onComplete();
+        void onComplete(int result);
     }
 
     private Context mContext;
@@ -45,8 +45,16 @@ public class GTaskASyncTask extends AsyncTask<Void, String, Integer> {
 
     private OnCompleteListener mOnCompleteListener;
 
+    // started by the user, progress and result are shown as notifications
+    private volatile boolean mManual;
+
     public GTaskASyncTask(Context context, OnCompleteListener listener) {
+        this(context, true, listener);
+    }
+
+    public GTaskASyncTask(Context context, boolean manual, OnCompleteListener listener) {
         mContext = context;
+        mManual = manual;
         mOnCompleteListener = listener;
         mNotifiManager = (NotificationManager) mContext
                 .getSystemService(Context.NOTIFICATION_SERVICE);
@@ -57,6 +65,17 @@ public class GTaskASyncTask extends AsyncTask<Void, String, Integer> {
         mTaskManager.cancelSync();
     }
 
+    public boolean isManual() {
+        return mManual;
+    }
+
+    /**
+     * The user asked for a sync while this background sync is running, report it to the user
+     */
+    public void setManual() {
+        mManual = true;
+    }
+
     public void publishProgess(String message) {
         publishProgress(new String[] {
             message
@@ -92,15 +111,20 @@ public class GTaskASyncTask extends AsyncTask<Void, String, Integer> {
 
     @Override
     protected void onProgressUpdate(String... progress) {
-        showNotification(R.string.ticker_syncing, progress[0]);
-        if (mContext instanceof GTaskSyncService) {
-            ((GTaskSyncService) mContext).sendBroadcast(progress[0]);
+        if (mManual) {
+            showNotification(R.string.ticker_syncing, progress[0]);
         }
+        GTaskSyncService.sendBroadcast(mContext, progress[0]);
     }
 
     @Override
-    protected void onPostExecute(Integer result) {
-        if (result == GTaskManager.STATE_SUCCESS) {
+    protected void onPostExecute(final Integer result) {
+        if (!mManual) {
+            // background syncs are retried by the scheduler, only remember a success
+            if (result == GTaskManager.STATE_SUCCESS) {
+                NotesPreferenceActivity.setLastSyncTime(mContext, System.currentTimeMillis());
+            }
+        } else if (result == GTaskManager.STATE_SUCCESS) {
             showNotification(R.string.ticker_success, mContext.getString(
                     R.string.success_sync_account, mTaskManager.getSyncAccount()));
             NotesPreferenceActivity.setLastSyncTime(mContext, System.currentTimeMillis());
@@ -116,7 +140,7 @@ public class GTaskASyncTask extends AsyncTask<Void, String, Integer> {
             new Thread(new Runnable() {
 
                 public void run() {
-                    mOnCompleteListener.onComplete();
+                    mOnCompleteListener.onComplete(result);
                 }
             }).start();
         }
@@ -20,6 +20,7 @@ import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.accounts.AccountManagerFuture;
 import android.app.Activity;
+import android.content.Context;
 import android.os.Bundle;
 import android.text.TextUtils;
 import android.util.Log;
@@ -32,33 +33,22 @@ import net.micode.notes.gtask.exception.NetworkFailureException;
 import net.micode.notes.tool.GTaskStringUtils;
 import net.micode.notes.ui.NotesPreferenceActivity;
 
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpResponse;
-import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.cookie.Cookie;
-import org.apache.http.impl.client.BasicCookieStore;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.message.BasicNameValuePair;
-import org.apache.http.params.BasicHttpParams;
-import org.apache.http.params.HttpConnectionParams;
-import org.apache.http.params.HttpParams;
-import org.apache.http.params.HttpProtocolParams;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpCookie;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.Inflater;
-import java.util.zip.InflaterInputStream;
+import java.util.Random;
 
 
 public class GTaskClient {
@@ -70,9 +60,34 @@ public class GTaskClient {
 
     private static final String GTASK_POST_URL = "https://mail.google.com/tasks/r/ig";
 
+    // requests allowed to run at the same time, e.g. when downloading task lists, within the
+    // idle connections HttpURLConnection keeps alive by default
+    public static final int MAX_CONCURRENT_REQUESTS = 4;
+
+    // limits of one batch of actions, too many or too large actions in one request may result
+    // in an error, the count limit is learned from the errors at runtime
+    private static final int MAX_BATCH_BYTES = 32 * 1024;
+
+    private static final int MAX_BATCH_ACTIONS = 50;
+
+    private static final int INITIAL_BATCH_ACTIONS = 10;
+
+    // failed requests which are safe to repeat are retried with jittered exponential backoff
+    private static final int MAX_ATTEMPTS = 5;
+
+    private static final long RETRY_BASE_DELAY = 500;
+
+    private static final long RETRY_MAX_DELAY = 16000;
+
+    private static final int PENDING_CREATE = 0;
+
+    private static final int PENDING_UPDATE = 1;
+
+    private static final int PENDING_MOVE = 2;
+
     private static GTaskClient mInstance = null;
 
-    private DefaultHttpClient mHttpClient;
+    private GTaskTransport mTransport;
 
     private String mGetUrl;
 
@@ -88,10 +103,97 @@ public class GTaskClient {
 
     private Account mAccount;
 
-    private JSONArray mUpdateArray;
+    // account and token used instead of the account manager, see setOfflineAccount
+    private Account mOfflineAccount;
+
+    private String mOfflineAuthToken;
+
+    // actions waiting to be sent, in order
+    private LinkedList<PendingAction> mPendingActions;
+
+    private int mBatchLimit;
+
+    // serializes the commits, the monitor of the client is only held while the queue is
+    // changed so the requests of other threads do not wait for a batch being sent
+    private final Object mCommitLock = new Object();
+
+    private Random mRandom;
+
+    /**
+     * Called when the gid of a created node is known
+     */
+    public interface OnNodeCreatedListener {
+        void onNodeCreated(Node node) throws NetworkFailureException;
+    }
+
+    private static class PendingAction {
+        int type;
+
+        Node node;
+
+        TaskList preParent;
+
+        TaskList curParent;
+
+        OnNodeCreatedListener listener;
+
+        PendingAction(int type, Node node) {
+            this.type = type;
+            this.node = node;
+        }
+
+        // the json is built when sending, nodes created earlier in the queue have gids by then
+        boolean isReady() {
+            switch (type) {
+                case PENDING_CREATE:
+                    if (node instanceof Task) {
+                        Task task = (Task) node;
+                        return task.getParent().getGid() != null && (task.getPriorSibling() == null
+                                || task.getPriorSibling().getGid() != null);
+                    }
+                    return true;
+                case PENDING_MOVE:
+                    return node.getGid() != null && preParent.getGid() != null
+                            && curParent.getGid() != null
+                            && (preParent != curParent || ((Task) node).getPriorSibling() == null
+                                    || ((Task) node).getPriorSibling().getGid() != null);
+                default:
+                    return node.getGid() != null;
+            }
+        }
+
+        JSONObject build(int actionId) throws JSONException {
+            switch (type) {
+                case PENDING_CREATE:
+                    return node.getCreateAction(actionId);
+                case PENDING_MOVE:
+                    Task task = (Task) node;
+                    JSONObject action = new JSONObject();
+                    action.put(GTaskStringUtils.GTASK_JSON_ACTION_TYPE,
+                            GTaskStringUtils.GTASK_JSON_ACTION_TYPE_MOVE);
+                    action.put(GTaskStringUtils.GTASK_JSON_ACTION_ID, actionId);
+                    action.put(GTaskStringUtils.GTASK_JSON_ID, task.getGid());
+                    if (preParent == curParent && task.getPriorSibling() != null) {
+                        // put prioring_sibing_id only if moving within the tasklist and
+                        // it is not the first one
+                        action.put(GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID,
+                                task.getPriorSibling().getGid());
+                    }
+                    action.put(GTaskStringUtils.GTASK_JSON_SOURCE_LIST, preParent.getGid());
+                    action.put(GTaskStringUtils.GTASK_JSON_DEST_PARENT, curParent.getGid());
+                    if (preParent != curParent) {
+                        // put the dest_list only if moving between tasklists
+                        action.put(GTaskStringUtils.GTASK_JSON_DEST_LIST, curParent.getGid());
+                    }
+                    return action;
+                default:
+                    return node.getUpdateAction(actionId);
+            }
+        }
+    }
 
     private GTaskClient() {
-        mHttpClient = null;
+        mTransport = new HttpUrlConnectionTransport();
         mGetUrl = GTASK_GET_URL;
         mPostUrl = GTASK_POST_URL;
         mClientVersion = -1;
@@ -99,7 +201,9 @@ public class GTaskClient {
         mLastLoginTime = 0;
         mActionId = 1;
         mAccount = null;
-        mUpdateArray = null;
+        mPendingActions = new LinkedList<PendingAction>();
+        mBatchLimit = INITIAL_BATCH_ACTIONS;
+        mRandom = new Random();
     }
 
     public static synchronized GTaskClient getInstance() {
@@ -109,7 +213,11 @@ public class GTaskClient {
         return mInstance;
     }
 
-    public boolean login(Activity activity) {
+    /**
+     * Login with the account set in preferences, the activity is used to ask the user for
+     * permission if needed and may be null for background syncs
+     */
+    public boolean login(Context context, Activity activity) {
         // we suppose that the cookie would expire after 5 minutes
         // then we need to re-login
         final long interval = 1000 * 60 * 5;
@@ -120,7 +228,7 @@ public class GTaskClient {
         // need to re-login after account switch
         if (mLoggedin
                 && !TextUtils.equals(getSyncAccount().name, NotesPreferenceActivity
-                        .getSyncAccountName(activity))) {
+                        .getSyncAccountName(context))) {
             mLoggedin = false;
         }
 
@@ -130,7 +238,7 @@ public class GTaskClient {
         }
 
         mLastLoginTime = System.currentTimeMillis();
-        String authToken = loginGoogleAccount(activity, false);
+        String authToken = loginGoogleAccount(context, activity, false);
         if (authToken == null) {
             Log.e(TAG, "login google account failed");
             return false;
@@ -146,7 +254,7 @@ public class GTaskClient {
             mGetUrl = url.toString() + "ig";
             mPostUrl = url.toString() + "r/ig";
 
-            if (tryToLoginGtask(activity, authToken)) {
+            if (tryToLoginGtask(context, activity, authToken)) {
                 mLoggedin = true;
             }
         }
@@ -155,7 +263,7 @@ public class GTaskClient {
         if (!mLoggedin) {
             mGetUrl = GTASK_GET_URL;
             mPostUrl = GTASK_POST_URL;
-            if (!tryToLoginGtask(activity, authToken)) {
+            if (!tryToLoginGtask(context, activity, authToken)) {
                 return false;
             }
         }
@@ -164,9 +272,15 @@ public class GTaskClient {
         return true;
     }
 
-    private String loginGoogleAccount(Activity activity, boolean invalidateToken) {
+    private String loginGoogleAccount(Context context, Activity activity,
+            boolean invalidateToken) {
+        if (mOfflineAccount != null) {
+            mAccount = mOfflineAccount;
+            return mOfflineAuthToken;
+        }
+
         String authToken;
-        AccountManager accountManager = AccountManager.get(activity);
+        AccountManager accountManager = AccountManager.get(context);
         Account[] accounts = accountManager.getAccountsByType("com.google");
 
         if (accounts.length == 0) {
@@ -174,7 +288,7 @@ public class GTaskClient {
             return null;
         }
 
-        String accountName = NotesPreferenceActivity.getSyncAccountName(activity);
+        String accountName = NotesPreferenceActivity.getSyncAccountName(context);
         Account account = null;
         for (Account a : accounts) {
             if (a.name.equals(accountName)) {
@@ -197,7 +311,7 @@ public class GTaskClient {
             authToken = authTokenBundle.getString(AccountManager.KEY_AUTHTOKEN);
             if (invalidateToken) {
                 accountManager.invalidateAuthToken("com.google", authToken);
-                loginGoogleAccount(activity, false);
+                loginGoogleAccount(context, activity, false);
             }
         } catch (Exception e) {
             Log.e(TAG, "get auth token failed");
@@ -207,11 +321,11 @@ public class GTaskClient {
         return authToken;
     }
 
-    private boolean tryToLoginGtask(Activity activity, String authToken) {
+    private boolean tryToLoginGtask(Context context, Activity activity, String authToken) {
         if (!loginGtask(authToken)) {
             // maybe the auth token is out of date, now let's invalidate the
             // token and try again
-            authToken = loginGoogleAccount(activity, true);
+            authToken = loginGoogleAccount(context, activity, true);
             if (authToken == null) {
                 Log.e(TAG, "login google account failed");
                 return false;
@@ -226,27 +340,19 @@ public class GTaskClient {
     }
 
     private boolean loginGtask(String authToken) {
-        int timeoutConnection = 10000;
-        int timeoutSocket = 15000;
-        HttpParams httpParameters = new BasicHttpParams();
-        HttpConnectionParams.setConnectionTimeout(httpParameters, timeoutConnection);
-        HttpConnectionParams.setSoTimeout(httpParameters, timeoutSocket);
-        mHttpClient = new DefaultHttpClient(httpParameters);
-        BasicCookieStore localBasicCookieStore = new BasicCookieStore();
-        mHttpClient.setCookieStore(localBasicCookieStore);
-        HttpProtocolParams.setUseExpectContinue(mHttpClient.getParams(), false);
+        // start a new session
+        mTransport.clearCookies();
 
         // login gtask
+        GTaskTransport.Response response = null;
         try {
             String loginUrl = mGetUrl + "?auth=" + authToken;
-            HttpGet httpGet = new HttpGet(loginUrl);
-            HttpResponse response = null;
-            response = mHttpClient.execute(httpGet);
+            response = mTransport.execute(GTaskTransport.Request.get(loginUrl));
 
             // get the cookie now
-            List<Cookie> cookies = mHttpClient.getCookieStore().getCookies();
+            List<HttpCookie> cookies = mTransport.getCookies();
             boolean hasAuthCookie = false;
-            for (Cookie cookie : cookies) {
+            for (HttpCookie cookie : cookies) {
                 if (cookie.getName().contains("GTL")) {
                     hasAuthCookie = true;
                 }
@@ -256,16 +362,7 @@ public class GTaskClient {
             }
 
             // get the client version
-            String resString = getResponseContent(response.getEntity());
-            String jsBegin = "_setup(";
-            String jsEnd = ")}</script>";
-            int begin = resString.indexOf(jsBegin);
-            int end = resString.lastIndexOf(jsEnd);
-            String jsString = null;
-            if (begin != -1 && end != -1 && begin < end) {
-                jsString = resString.substring(begin + jsBegin.length(), end);
-            }
-            JSONObject js = new JSONObject(jsString);
+            JSONObject js = readSetup(response);
             mClientVersion = js.getLong("v");
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
@@ -275,76 +372,134 @@ public class GTaskClient {
             // simply catch all exceptions
             Log.e(TAG, "httpget gtask_url failed");
             return false;
+        } finally {
+            if (response != null) {
+                response.close();
+            }
         }
 
         return true;
     }
 
-    private int getActionId() {
+    private synchronized int getActionId() {
         return mActionId++;
     }
 
-    private HttpPost createHttpPost() {
-        HttpPost httpPost = new HttpPost(mPostUrl);
-        httpPost.setHeader("Content-Type", "application/x-www-form-urlencoded;charset=utf-8");
-        httpPost.setHeader("AT", "1");
-        return httpPost;
+    private Reader getResponseReader(GTaskTransport.Response response) throws IOException {
+        return new BufferedReader(new InputStreamReader(response.getBody(), "UTF-8"));
     }
 
-    private String getResponseContent(HttpEntity entity) throws IOException {
-        String contentEncoding = null;
-        if (entity.getContentEncoding() != null) {
-            contentEncoding = entity.getContentEncoding().getValue();
-            Log.d(TAG, "encoding: " + contentEncoding);
+    private String getResponseContent(GTaskTransport.Response response) throws IOException {
+        Reader reader = getResponseReader(response);
+        try {
+            StringBuilder sb = new StringBuilder();
+            char[] buffer = new char[4096];
+            int count;
+            while ((count = reader.read(buffer)) != -1) {
+                sb.append(buffer, 0, count);
+            }
+            return sb.toString();
+        } finally {
+            reader.close();
         }
+    }
 
-        InputStream input = entity.getContent();
-        if (contentEncoding != null && contentEncoding.equalsIgnoreCase("gzip")) {
-            input = new GZIPInputStream(entity.getContent());
-        } else if (contentEncoding != null && contentEncoding.equalsIgnoreCase("deflate")) {
-            Inflater inflater = new Inflater(true);
-            input = new InflaterInputStream(entity.getContent(), inflater);
+    private JSONObject readSetup(GTaskTransport.Response response)
+            throws IOException, JSONException {
+        Reader reader = getResponseReader(response);
+        try {
+            return GTaskResponseReader.readSetup(reader);
+        } finally {
+            // the rest of the page is not needed
+            reader.close();
         }
+    }
 
-        try {
-            InputStreamReader isr = new InputStreamReader(input);
-            BufferedReader br = new BufferedReader(isr);
-            StringBuilder sb = new StringBuilder();
+    private void checkResponse(GTaskTransport.Response response) throws NetworkFailureException {
+        if (response.isSuccessful()) {
+            return;
+        }
+        int statusCode = response.getStatusCode();
+        response.close();
+        Log.e(TAG, "server returned " + statusCode);
+        if (statusCode >= 500) {
+            throw new NetworkFailureException("server error " + statusCode);
+        }
+        throw new ActionFailureException("request refused " + statusCode);
+    }
 
-            while (true) {
-                String buff = br.readLine();
-                if (buff == null) {
-                    return sb.toString();
-                }
-                sb = sb.append(buff);
+    /**
+     * Execute the request, network and server errors are retried if the request is idempotent
+     */
+    private GTaskTransport.Response execute(GTaskTransport.Request request, boolean idempotent)
+            throws NetworkFailureException {
+        int attempt = 0;
+        while (true) {
+            NetworkFailureException failure;
+            try {
+                GTaskTransport.Response response = mTransport.execute(request);
+                checkResponse(response);
+                return response;
+            } catch (IOException e) {
+                Log.e(TAG, e.toString());
+                failure = new NetworkFailureException("request failed: " + e.toString());
+            } catch (NetworkFailureException e) {
+                failure = e;
             }
-        } finally {
-            input.close();
+
+            attempt++;
+            if (!idempotent || attempt >= MAX_ATTEMPTS) {
+                throw failure;
+            }
+            long delay = getRetryDelay(attempt);
+            Log.w(TAG, "retry " + request.url + " in " + delay + "ms, attempt " + attempt);
+            mTransport.getMetrics().recordRetry();
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw failure;
+            }
+        }
+    }
+
+    // half of the exponential delay plus a random part, so that clients do not retry in step
+    private long getRetryDelay(int attempt) {
+        long delay = Math.min(RETRY_MAX_DELAY, RETRY_BASE_DELAY << (attempt - 1));
+        long random;
+        synchronized (mRandom) {
+            random = (long) (mRandom.nextDouble() * (delay / 2));
         }
+        return delay / 2 + random;
     }
 
-    private JSONObject postRequest(JSONObject js) throws NetworkFailureException {
+    private GTaskTransport.Response executePost(JSONObject js, boolean idempotent)
+            throws NetworkFailureException {
         if (!mLoggedin) {
             Log.e(TAG, "please login first");
             throw new ActionFailureException("not logged in");
         }
 
-        HttpPost httpPost = createHttpPost();
+        byte[] body;
         try {
-            LinkedList<BasicNameValuePair> list = new LinkedList<BasicNameValuePair>();
-            list.add(new BasicNameValuePair("r", js.toString()));
-            UrlEncodedFormEntity entity = new UrlEncodedFormEntity(list, "UTF-8");
-            httpPost.setEntity(entity);
-
-            // execute the post
-            HttpResponse response = mHttpClient.execute(httpPost);
-            String jsString = getResponseContent(response.getEntity());
-            return new JSONObject(jsString);
-
-        } catch (ClientProtocolException e) {
+            body = ("r=" + URLEncoder.encode(js.toString(), "UTF-8")).getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
             Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new NetworkFailureException("postRequest failed");
+            throw new ActionFailureException("postRequest: encoding failed");
+        }
+        GTaskTransport.Request request = GTaskTransport.Request.post(mPostUrl,
+                "application/x-www-form-urlencoded;charset=utf-8", body).setHeader("AT", "1");
+
+        // execute the post
+        return execute(request, idempotent);
+    }
+
+    private JSONObject postRequest(JSONObject js, boolean idempotent)
+            throws NetworkFailureException {
+        GTaskTransport.Response response = executePost(js, idempotent);
+        try {
+            String jsString = getResponseContent(response);
+            return new JSONObject(jsString);
         } catch (IOException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
@@ -353,189 +508,232 @@ public class GTaskClient {
             Log.e(TAG, e.toString());
             e.printStackTrace();
             throw new ActionFailureException("unable to convert response content to jsonobject");
-        } catch (Exception e) {
-            Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new ActionFailureException("error occurs when posting request");
+        } finally {
+            response.close();
         }
     }
 
     public void createTask(Task task) throws NetworkFailureException {
-        commitUpdate();
-        try {
-            JSONObject jsPost = new JSONObject();
-            JSONArray actionList = new JSONArray();
+        createTask(task, null);
+    }
 
-            // action_list
-            actionList.put(task.getCreateAction(getActionId()));
-            jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
+    /**
+     * Queue the creation of the task, its gid is set when the action is sent by
+     * {@link #commitUpdate()} or a later call which fills the batch
+     */
+    public void createTask(Task task, OnNodeCreatedListener listener)
+            throws NetworkFailureException {
+        PendingAction pending = new PendingAction(PENDING_CREATE, task);
+        pending.listener = listener;
+        addPendingAction(pending);
+    }
 
-            // client_version
-            jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
+    public void createTaskList(TaskList tasklist) throws NetworkFailureException {
+        addPendingAction(new PendingAction(PENDING_CREATE, tasklist));
+    }
 
-            // post
-            JSONObject jsResponse = postRequest(jsPost);
-            JSONObject jsResult = (JSONObject) jsResponse.getJSONArray(
-                    GTaskStringUtils.GTASK_JSON_RESULTS).get(0);
-            task.setGid(jsResult.getString(GTaskStringUtils.GTASK_JSON_NEW_ID));
+    /**
+     * Send all queued actions, in batches limited by count and serialized size
+     */
+    public void commitUpdate() throws NetworkFailureException {
+        synchronized (mCommitLock) {
+            while (true) {
+                ArrayList<PendingAction> batch = new ArrayList<PendingAction>();
+                JSONArray actionList = new JSONArray();
+                if (!takeBatch(batch, actionList)) {
+                    return;
+                }
 
-        } catch (JSONException e) {
-            Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new ActionFailureException("create task: handing jsonobject failed");
+                // sent and retried without the monitor held, the batch is off the queue
+                JSONObject jsResponse;
+                boolean idempotent = isIdempotent(batch);
+                try {
+                    jsResponse = postActions(actionList, idempotent);
+                } catch (ActionFailureException e) {
+                    // the server may have applied a batch before failing, creations in it
+                    // must not be sent again or they are created twice
+                    if (batch.size() <= 1 || !idempotent) {
+                        throw e;
+                    }
+                    // the server refused the batch, retry with smaller ones
+                    synchronized (this) {
+                        mBatchLimit = Math.max(1, batch.size() / 2);
+                        Log.w(TAG, "batch of " + batch.size() + " actions failed, limit to "
+                                + mBatchLimit);
+                        mPendingActions.addAll(0, batch);
+                    }
+                    continue;
+                }
+                synchronized (this) {
+                    if (batch.size() == mBatchLimit && mBatchLimit < MAX_BATCH_ACTIONS) {
+                        mBatchLimit++;
+                    }
+                }
+                onBatchSent(batch, actionList, jsResponse);
+            }
         }
     }
 
-    public void createTaskList(TaskList tasklist) throws NetworkFailureException {
-        commitUpdate();
+    // move the next batch, limited by count and serialized size, from the queue
+    private synchronized boolean takeBatch(ArrayList<PendingAction> batch, JSONArray actionList) {
+        int bytes = 0;
         try {
-            JSONObject jsPost = new JSONObject();
-            JSONArray actionList = new JSONArray();
-
-            // action_list
-            actionList.put(tasklist.getCreateAction(getActionId()));
-            jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
-
-            // client version
-            jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
-
-            // post
-            JSONObject jsResponse = postRequest(jsPost);
-            JSONObject jsResult = (JSONObject) jsResponse.getJSONArray(
-                    GTaskStringUtils.GTASK_JSON_RESULTS).get(0);
-            tasklist.setGid(jsResult.getString(GTaskStringUtils.GTASK_JSON_NEW_ID));
-
+            while (!mPendingActions.isEmpty() && batch.size() < mBatchLimit) {
+                PendingAction pending = mPendingActions.getFirst();
+                if (!pending.isReady()) {
+                    // depends on a node created in this batch
+                    if (batch.isEmpty()) {
+                        throw new ActionFailureException(
+                                "commit update: depending on a node without gid");
+                    }
+                    break;
+                }
+                JSONObject action = pending.build(getActionId());
+                int size = action.toString().getBytes("UTF-8").length;
+                if (!batch.isEmpty() && bytes + size > MAX_BATCH_BYTES) {
+                    break;
+                }
+                mPendingActions.removeFirst();
+                batch.add(pending);
+                actionList.put(action);
+                bytes += size;
+            }
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
-            throw new ActionFailureException("create tasklist: handing jsonobject failed");
-        }
-    }
-
-    public void commitUpdate() throws NetworkFailureException {
-        if (mUpdateArray != null) {
-            try {
-                JSONObject jsPost = new JSONObject();
-
-                // action_list
-                jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, mUpdateArray);
-
-                // client_version
-                jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
-
-                postRequest(jsPost);
-                mUpdateArray = null;
-            } catch (JSONException e) {
-                Log.e(TAG, e.toString());
-                e.printStackTrace();
-                throw new ActionFailureException("commit update: handing jsonobject failed");
-            }
+            throw new ActionFailureException("commit update: handing jsonobject failed");
+        } catch (UnsupportedEncodingException e) {
+            Log.e(TAG, e.toString());
+            throw new ActionFailureException("commit update: encoding failed");
         }
+        return !batch.isEmpty();
     }
 
-    public void addUpdateNode(Node node) throws NetworkFailureException {
-        if (node != null) {
-            // too many update items may result in an error
-            // set max to 10 items
-            if (mUpdateArray != null && mUpdateArray.length() > 10) {
-                commitUpdate();
+    // a creation sent twice creates two nodes, everything else can be repeated
+    private boolean isIdempotent(ArrayList<PendingAction> batch) {
+        for (PendingAction pending : batch) {
+            if (pending.type == PENDING_CREATE) {
+                return false;
             }
-
-            if (mUpdateArray == null)
-                mUpdateArray = new JSONArray();
-            mUpdateArray.put(node.getUpdateAction(getActionId()));
         }
+        return true;
     }
 
-    public void moveTask(Task task, TaskList preParent, TaskList curParent)
+    private JSONObject postActions(JSONArray actionList, boolean idempotent)
             throws NetworkFailureException {
-        commitUpdate();
         try {
             JSONObject jsPost = new JSONObject();
-            JSONArray actionList = new JSONArray();
-            JSONObject action = new JSONObject();
 
             // action_list
-            action.put(GTaskStringUtils.GTASK_JSON_ACTION_TYPE,
-                    GTaskStringUtils.GTASK_JSON_ACTION_TYPE_MOVE);
-            action.put(GTaskStringUtils.GTASK_JSON_ACTION_ID, getActionId());
-            action.put(GTaskStringUtils.GTASK_JSON_ID, task.getGid());
-            if (preParent == curParent && task.getPriorSibling() != null) {
-                // put prioring_sibing_id only if moving within the tasklist and
-                // it is not the first one
-                action.put(GTaskStringUtils.GTASK_JSON_PRIOR_SIBLING_ID, task.getPriorSibling());
-            }
-            action.put(GTaskStringUtils.GTASK_JSON_SOURCE_LIST, preParent.getGid());
-            action.put(GTaskStringUtils.GTASK_JSON_DEST_PARENT, curParent.getGid());
-            if (preParent != curParent) {
-                // put the dest_list only if moving between tasklists
-                action.put(GTaskStringUtils.GTASK_JSON_DEST_LIST, curParent.getGid());
-            }
-            actionList.put(action);
             jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
 
             // client_version
             jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
 
-            postRequest(jsPost);
-
+            return postRequest(jsPost, idempotent);
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
-            throw new ActionFailureException("move task: handing jsonobject failed");
+            throw new ActionFailureException("post actions: handing jsonobject failed");
         }
     }
 
-    public void deleteNode(Node node) throws NetworkFailureException {
-        commitUpdate();
+    private void onBatchSent(ArrayList<PendingAction> batch, JSONArray actionList,
+            JSONObject jsResponse) throws NetworkFailureException {
         try {
-            JSONObject jsPost = new JSONObject();
-            JSONArray actionList = new JSONArray();
-
-            // action_list
-            node.setDeleted(true);
-            actionList.put(node.getUpdateAction(getActionId()));
-            jsPost.put(GTaskStringUtils.GTASK_JSON_ACTION_LIST, actionList);
+            // results of creation carry the new id, match them by action id or by order
+            JSONArray jsResults = jsResponse.optJSONArray(GTaskStringUtils.GTASK_JSON_RESULTS);
+            HashMap<String, String> newIds = new HashMap<String, String>();
+            ArrayList<String> orderedNewIds = new ArrayList<String>();
+            for (int i = 0; jsResults != null && i < jsResults.length(); i++) {
+                JSONObject jsResult = jsResults.getJSONObject(i);
+                if (jsResult.has(GTaskStringUtils.GTASK_JSON_NEW_ID)) {
+                    String newId = jsResult.getString(GTaskStringUtils.GTASK_JSON_NEW_ID);
+                    orderedNewIds.add(newId);
+                    if (jsResult.has(GTaskStringUtils.GTASK_JSON_ACTION_ID)) {
+                        newIds.put(jsResult.getString(GTaskStringUtils.GTASK_JSON_ACTION_ID),
+                                newId);
+                    }
+                }
+            }
 
-            // client_version
-            jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
+            ArrayList<PendingAction> created = new ArrayList<PendingAction>();
+            int createIndex = 0;
+            for (int i = 0; i < batch.size(); i++) {
+                PendingAction pending = batch.get(i);
+                if (pending.type != PENDING_CREATE) {
+                    continue;
+                }
+                String actionId = actionList.getJSONObject(i).getString(
+                        GTaskStringUtils.GTASK_JSON_ACTION_ID);
+                String newId = newIds.get(actionId);
+                if (newId == null && createIndex < orderedNewIds.size()) {
+                    newId = orderedNewIds.get(createIndex);
+                }
+                createIndex++;
+                if (newId == null) {
+                    throw new ActionFailureException("commit update: no new id for creation");
+                }
+                pending.node.setGid(newId);
+                created.add(pending);
+            }
 
-            postRequest(jsPost);
-            mUpdateArray = null;
+            // listeners may queue more actions
+            for (PendingAction pending : created) {
+                if (pending.listener != null) {
+                    pending.listener.onNodeCreated(pending.node);
+                }
+            }
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
-            throw new ActionFailureException("delete node: handing jsonobject failed");
+            throw new ActionFailureException("commit update: handing results failed");
         }
     }
 
+    private void addPendingAction(PendingAction pending) throws NetworkFailureException {
+        boolean full;
+        synchronized (this) {
+            mPendingActions.add(pending);
+            full = mPendingActions.size() >= mBatchLimit;
+        }
+        if (full) {
+            commitUpdate();
+        }
+    }
+
+    public void addUpdateNode(Node node) throws NetworkFailureException {
+        if (node != null) {
+            addPendingAction(new PendingAction(PENDING_UPDATE, node));
+        }
+    }
+
+    public void moveTask(Task task, TaskList preParent, TaskList curParent)
+            throws NetworkFailureException {
+        PendingAction pending = new PendingAction(PENDING_MOVE, task);
+        pending.preParent = preParent;
+        pending.curParent = curParent;
+        addPendingAction(pending);
+    }
+
+    public void deleteNode(Node node) throws NetworkFailureException {
+        node.setDeleted(true);
+        addPendingAction(new PendingAction(PENDING_UPDATE, node));
+    }
+
     public JSONArray getTaskLists() throws NetworkFailureException {
         if (!mLoggedin) {
             Log.e(TAG, "please login first");
             throw new ActionFailureException("not logged in");
         }
 
+        GTaskTransport.Response response = null;
         try {
-            HttpGet httpGet = new HttpGet(mGetUrl);
-            HttpResponse response = null;
-            response = mHttpClient.execute(httpGet);
+            response = execute(GTaskTransport.Request.get(mGetUrl), true);
 
             // get the task list
-            String resString = getResponseContent(response.getEntity());
-            String jsBegin = "_setup(";
-            String jsEnd = ")}</script>";
-            int begin = resString.indexOf(jsBegin);
-            int end = resString.lastIndexOf(jsEnd);
-            String jsString = null;
-            if (begin != -1 && end != -1 && begin < end) {
-                jsString = resString.substring(begin + jsBegin.length(), end);
-            }
-            JSONObject js = new JSONObject(jsString);
+            JSONObject js = readSetup(response);
             return js.getJSONObject("t").getJSONArray(GTaskStringUtils.GTASK_JSON_LISTS);
-        } catch (ClientProtocolException e) {
-            Log.e(TAG, e.toString());
-            e.printStackTrace();
-            throw new NetworkFailureException("gettasklists: httpget failed");
         } catch (IOException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
@@ -544,11 +742,25 @@ public class GTaskClient {
             Log.e(TAG, e.toString());
             e.printStackTrace();
             throw new ActionFailureException("get task lists: handing jasonobject failed");
+        } catch (IllegalStateException e) {
+            Log.e(TAG, e.toString());
+            throw new ActionFailureException("get task lists: unexpected response");
+        } finally {
+            if (response != null) {
+                response.close();
+            }
         }
     }
 
-    public JSONArray getTaskList(String listGid) throws NetworkFailureException {
+    /**
+     * Download the tasks of the list, each task is handed to the handler while the response
+     * is being read
+     */
+    public void getTaskList(String listGid, GTaskResponseReader.TaskHandler handler)
+            throws NetworkFailureException {
         commitUpdate();
+
+        Reader reader = null;
         try {
             JSONObject jsPost = new JSONObject();
             JSONArray actionList = new JSONArray();
@@ -566,20 +778,64 @@ public class GTaskClient {
             // client_version
             jsPost.put(GTaskStringUtils.GTASK_JSON_CLIENT_VERSION, mClientVersion);
 
-            JSONObject jsResponse = postRequest(jsPost);
-            return jsResponse.getJSONArray(GTaskStringUtils.GTASK_JSON_TASKS);
+            GTaskTransport.Response response = executePost(jsPost, true);
+            reader = getResponseReader(response);
+            GTaskResponseReader.readTasks(reader, handler);
+        } catch (IOException e) {
+            Log.e(TAG, e.toString());
+            e.printStackTrace();
+            throw new NetworkFailureException("get task list: postRequest failed");
         } catch (JSONException e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
             throw new ActionFailureException("get task list: handing jsonobject failed");
+        } catch (IllegalStateException e) {
+            // unexpected token in the response
+            Log.e(TAG, e.toString());
+            throw new ActionFailureException("get task list: unexpected response");
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Log.w(TAG, e.toString());
+                }
+            }
         }
     }
 
+    /**
+     * Replace the http layer, e.g. with a fake server in tests, the session is dropped
+     */
+    public synchronized void setTransport(GTaskTransport transport) {
+        mTransport = transport;
+        mLoggedin = false;
+    }
+
+    public synchronized GTaskTransport getTransport() {
+        return mTransport;
+    }
+
+    /**
+     * Log in as the given account with the given token instead of asking the account manager,
+     * for a transport which does not talk to google. Null goes back to the account set in
+     * preferences, the session is dropped either way.
+     */
+    public synchronized void setOfflineAccount(Account account, String authToken) {
+        mOfflineAccount = account;
+        mOfflineAuthToken = authToken;
+        mLoggedin = false;
+    }
+
+    public GTaskTransportMetrics getTransportMetrics() {
+        return mTransport.getMetrics();
+    }
+
     public Account getSyncAccount() {
         return mAccount;
     }
 
-    public void resetUpdateArray() {
-        mUpdateArray = null;
+    public synchronized void resetUpdateArray() {
+        mPendingActions.clear();
     }
 }
@@ -26,8 +26,14 @@ import android.util.Log;
 
 import net.micode.notes.R;
 import net.micode.notes.data.Notes;
+import net.micode.notes.data.NoteGtaskMap;
+import net.micode.notes.data.NoteSyncBase;
 import net.micode.notes.data.Notes.DataColumns;
+import net.micode.notes.data.Notes.DataConstants;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.data.NotesChangeNotifier;
+import net.micode.notes.gtask.data.LocalSnapshot;
+import net.micode.notes.gtask.data.LocalWriter;
 import net.micode.notes.gtask.data.MetaData;
 import net.micode.notes.gtask.data.Node;
 import net.micode.notes.gtask.data.SqlNote;
@@ -37,15 +43,22 @@ import net.micode.notes.gtask.exception.ActionFailureException;
 import net.micode.notes.gtask.exception.NetworkFailureException;
 import net.micode.notes.tool.DataUtils;
 import net.micode.notes.tool.GTaskStringUtils;
+import net.micode.notes.tool.TextMerge;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 public class GTaskManager {
@@ -71,7 +84,7 @@ public class GTaskManager {
 
     private boolean mSyncing;
 
-    private boolean mCancelled;
+    private volatile boolean mCancelled;
 
     private HashMap<String, TaskList> mGTaskListHashMap;
 
@@ -83,9 +96,28 @@ public class GTaskManager {
 
     private HashSet<Long> mLocalDeleteIdMap;
 
-    private HashMap<String, Long> mGidToNid;
+    // gid <-> nid mapping, loaded from database and kept up to date during the sync
+    private NoteGtaskMap mIdMap;
 
-    private HashMap<Long, String> mNidToGid;
+    private GTaskSyncState mSyncState;
+
+    private GTaskSyncCheckpoint mCheckpoint;
+
+    private volatile GTaskSyncStats mStats;
+
+    private volatile GTaskSyncStats mLastStats;
+
+    // local changes of the sync are collected here and written in one transaction
+    private LocalWriter mLocalWriter;
+
+    // tasks rebuilt from the saved sync state instead of being downloaded
+    private HashSet<String> mStubGids;
+
+    // lists downloaded in this round
+    private HashSet<String> mFetchedListGids;
+
+    // lists changed remotely by this sync, they must be downloaded when refreshing
+    private HashSet<String> mDirtyListGids;
 
     private GTaskManager() {
         mSyncing = false;
@@ -95,8 +127,10 @@ public class GTaskManager {
         mMetaHashMap = new HashMap<String, MetaData>();
         mMetaList = null;
         mLocalDeleteIdMap = new HashSet<Long>();
-        mGidToNid = new HashMap<String, Long>();
-        mNidToGid = new HashMap<Long, String>();
+        mIdMap = new NoteGtaskMap();
+        mStubGids = new HashSet<String>();
+        mFetchedListGids = new HashSet<String>();
+        mDirtyListGids = new HashSet<String>();
     }
 
     public static synchronized GTaskManager getInstance() {
@@ -116,6 +150,39 @@ public class GTaskManager {
             Log.d(TAG, "Sync is in progress");
             return STATE_SYNC_IN_PROGRESS;
         }
+
+        GTaskSyncStats stats = new GTaskSyncStats(asyncTask.isManual(),
+                GTaskClient.getInstance().getTransportMetrics());
+        mStats = stats;
+        int result = doSync(context, asyncTask);
+        stats.finish(result);
+        mLastStats = stats;
+        mStats = null;
+        Log.d(TAG, "sync finished: " + stats);
+        try {
+            stats.save(context);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "failed to save sync history " + e.toString());
+        }
+        return result;
+    }
+
+    /**
+     * Numbers of the running sync, null if no sync is running
+     */
+    public GTaskSyncStats getCurrentStats() {
+        return mStats;
+    }
+
+    /**
+     * Numbers of the last sync since the process started, see
+     * {@link GTaskSyncStats#loadHistory} for earlier ones
+     */
+    public GTaskSyncStats getLastStats() {
+        return mLastStats;
+    }
+
+    private int doSync(Context context, GTaskASyncTask asyncTask) {
         mContext = context;
         mContentResolver = mContext.getContentResolver();
         mSyncing = true;
@@ -124,59 +191,121 @@ public class GTaskManager {
         mGTaskHashMap.clear();
         mMetaHashMap.clear();
         mLocalDeleteIdMap.clear();
-        mGidToNid.clear();
-        mNidToGid.clear();
-
+        mIdMap = new NoteGtaskMap();
+        mStubGids.clear();
+        mFetchedListGids.clear();
+        mDirtyListGids.clear();
+
+        // hold back change notifications until sync finishes, so observers requery once
+        NotesChangeNotifier notifier = NotesChangeNotifier.getInstance(mContext);
+        notifier.beginSuppress();
         try {
             GTaskClient client = GTaskClient.getInstance();
             client.resetUpdateArray();
 
+            // nothing has been done yet, and without login there is no account below
+            if (mCancelled) {
+                return STATE_SYNC_CANCELLED;
+            }
+
             // login google task
-            if (!mCancelled) {
-                if (!client.login(mActivity)) {
-                    throw new NetworkFailureException("login google task failed");
-                }
+            mStats.beginPhase(GTaskSyncStats.PHASE_LOGIN);
+            // background syncs must not bring up the account permission screen
+            if (!client.login(mContext, asyncTask.isManual() ? mActivity : null)) {
+                throw new NetworkFailureException("login google task failed");
             }
+            mStats.endPhase(GTaskSyncStats.PHASE_LOGIN);
+            mSyncState = new GTaskSyncState(mContext, client.getSyncAccount().name);
+            mCheckpoint = new GTaskSyncCheckpoint(mContext, client.getSyncAccount().name);
 
             // get the task list from google
             asyncTask.publishProgess(mContext.getString(R.string.sync_progress_init_list));
+            mStats.beginPhase(GTaskSyncStats.PHASE_INIT_LIST);
             initGTaskList();
+            mStats.endPhase(GTaskSyncStats.PHASE_INIT_LIST);
 
-            // do content sync work
+            // do content sync work, phases left open by an exception are closed by finish
             asyncTask.publishProgess(mContext.getString(R.string.sync_progress_syncing));
+            mStats.beginPhase(GTaskSyncStats.PHASE_SYNC_CONTENT);
             syncContent();
+            mStats.endPhase(GTaskSyncStats.PHASE_SYNC_CONTENT);
+
+            // remember what the server looks like now for the next delta sync
+            if (!mCancelled) {
+                mSyncState.save(mGTaskListHashMap.values(), mStubGids.isEmpty());
+                mCheckpoint.clear();
+            }
         } catch (NetworkFailureException e) {
+            // keep the checkpoint, the next sync continues from here
             Log.e(TAG, e.toString());
             return STATE_NETWORK_ERROR;
         } catch (ActionFailureException e) {
             Log.e(TAG, e.toString());
+            clearCheckpoint();
             return STATE_INTERNAL_ERROR;
         } catch (Exception e) {
             Log.e(TAG, e.toString());
             e.printStackTrace();
+            clearCheckpoint();
             return STATE_INTERNAL_ERROR;
         } finally {
             mGTaskListHashMap.clear();
             mGTaskHashMap.clear();
             mMetaHashMap.clear();
             mLocalDeleteIdMap.clear();
-            mGidToNid.clear();
-            mNidToGid.clear();
+            mIdMap = new NoteGtaskMap();
+            mStubGids.clear();
+            mFetchedListGids.clear();
+            mDirtyListGids.clear();
+            flushLocalChanges();
+            mSyncState = null;
+            mCheckpoint = null;
             mSyncing = false;
+            notifier.endSuppress();
         }
 
         return mCancelled ? STATE_SYNC_CANCELLED : STATE_SUCCESS;
     }
 
+    private void flushLocalChanges() {
+        if (mLocalWriter == null) {
+            return;
+        }
+        // what has been synced so far is kept, as if it had been written right away
+        try {
+            mLocalWriter.flush();
+        } catch (ActionFailureException e) {
+            Log.e(TAG, e.toString());
+        }
+        mLocalWriter = null;
+    }
+
+    private void clearCheckpoint() {
+        if (mCheckpoint != null) {
+            // downloaded lists may not be trusted, created nodes are still worth knowing
+            mCheckpoint.clearLists();
+        }
+    }
+
     private void initGTaskList() throws NetworkFailureException {
         if (mCancelled)
             return;
         GTaskClient client = GTaskClient.getInstance();
+        mStubGids.clear();
+        mFetchedListGids.clear();
+
+        // the lists are downloaded concurrently, the results are merged on this thread
+        client.commitUpdate();
+        ExecutorService executor = Executors
+                .newFixedThreadPool(GTaskClient.MAX_CONCURRENT_REQUESTS);
         try {
             JSONArray jsTaskLists = client.getTaskLists();
 
-            // init meta list first
-            mMetaList = null;
+            // start loading meta list and the changed task lists
+            Future<ArrayList<Task>> metaFuture = null;
+            JSONObject jsMetaList = null;
+            HashMap<String, Future<ArrayList<Task>>> taskFutures =
+                    new HashMap<String, Future<ArrayList<Task>>>();
             for (int i = 0; i < jsTaskLists.length(); i++) {
                 JSONObject object = jsTaskLists.getJSONObject(i);
                 String gid = object.getString(GTaskStringUtils.GTASK_JSON_ID);
@@ -184,21 +313,36 @@ public class GTaskManager {
 
                 if (name
                         .equals(GTaskStringUtils.MIUI_FOLDER_PREFFIX + GTaskStringUtils.FOLDER_META)) {
-                    mMetaList = new TaskList();
-                    mMetaList.setContentByRemoteJSON(object);
-
-                    // load meta data
-                    JSONArray jsMetas = client.getTaskList(gid);
-                    for (int j = 0; j < jsMetas.length(); j++) {
-                        object = (JSONObject) jsMetas.getJSONObject(j);
-                        MetaData metaData = new MetaData();
-                        metaData.setContentByRemoteJSON(object);
-                        if (metaData.isWorthSaving()) {
-                            mMetaList.addChildTask(metaData);
-                            if (metaData.getGid() != null) {
-                                mMetaHashMap.put(metaData.getRelatedGid(), metaData);
-                            }
-                        }
+                    jsMetaList = object;
+                    metaFuture = executor.submit(new TaskListFetcher(gid, true, object.optLong(
+                            GTaskStringUtils.GTASK_JSON_LAST_MODIFIED, -1)));
+                } else if (name.startsWith(GTaskStringUtils.MIUI_FOLDER_PREFFIX)) {
+                    if (mSyncState == null || mDirtyListGids.contains(gid)
+                            || !object.has(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED)
+                            || mSyncState.getUnchangedTasks(gid, object
+                                    .getLong(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED)) == null) {
+                        taskFutures.put(gid, executor.submit(new TaskListFetcher(gid, false,
+                                object.optLong(GTaskStringUtils.GTASK_JSON_LAST_MODIFIED, -1))));
+                    }
+                }
+            }
+
+            // init meta list first
+            mMetaList = null;
+            if (jsMetaList != null) {
+                mMetaList = new TaskList();
+                mMetaList.setContentByRemoteJSON(jsMetaList);
+
+                // load meta data
+                ArrayList<Task> metas = getFetchResult(metaFuture);
+                if (metas == null) {
+                    return;
+                }
+                for (Task task : metas) {
+                    MetaData metaData = (MetaData) task;
+                    mMetaList.addChildTask(metaData);
+                    if (metaData.getGid() != null) {
+                        mMetaHashMap.put(metaData.getRelatedGid(), metaData);
                     }
                 }
             }
@@ -225,18 +369,30 @@ public class GTaskManager {
                     mGTaskListHashMap.put(gid, tasklist);
                     mGTaskHashMap.put(gid, tasklist);
 
-                    // load tasks
-                    JSONArray jsTasks = client.getTaskList(gid);
-                    for (int j = 0; j < jsTasks.length(); j++) {
-                        object = (JSONObject) jsTasks.getJSONObject(j);
-                        gid = object.getString(GTaskStringUtils.GTASK_JSON_ID);
-                        Task task = new Task();
-                        task.setContentByRemoteJSON(object);
-                        if (task.isWorthSaving()) {
-                            task.setMetaInfo(mMetaHashMap.get(gid));
+                    // the list is unchanged since last sync, no need to download its tasks
+                    Future<ArrayList<Task>> future = taskFutures.get(gid);
+                    if (future == null) {
+                        HashMap<String, Long> savedTasks = mSyncState.getUnchangedTasks(gid,
+                                tasklist.getLastModified());
+                        for (Map.Entry<String, Long> entry : savedTasks.entrySet()) {
+                            Task task = createStubTask(entry.getKey(), entry.getValue());
                             tasklist.addChildTask(task);
-                            mGTaskHashMap.put(gid, task);
+                            mGTaskHashMap.put(task.getGid(), task);
+                            mStubGids.add(task.getGid());
                         }
+                        continue;
+                    }
+                    mFetchedListGids.add(gid);
+
+                    // load tasks
+                    ArrayList<Task> tasks = getFetchResult(future);
+                    if (tasks == null) {
+                        return;
+                    }
+                    for (Task task : tasks) {
+                        task.setMetaInfo(mMetaHashMap.get(task.getGid()));
+                        tasklist.addChildTask(task);
+                        mGTaskHashMap.put(task.getGid(), task);
                     }
                 }
             }
@@ -244,6 +400,115 @@ public class GTaskManager {
             Log.e(TAG, e.toString());
             e.printStackTrace();
             throw new ActionFailureException("initGTaskList: handing JSONObject failed");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Downloads and parses the tasks of one list, returns null if the sync has been cancelled.
+     * A list saved by an unfinished sync is read from the checkpoint if it is unchanged.
+     */
+    private class TaskListFetcher implements Callable<ArrayList<Task>> {
+        private String mListGid;
+
+        private boolean mIsMeta;
+
+        private long mLastModified;
+
+        public TaskListFetcher(String listGid, boolean isMeta, long lastModified) {
+            mListGid = listGid;
+            mIsMeta = isMeta;
+            mLastModified = lastModified;
+        }
+
+        public ArrayList<Task> call() throws NetworkFailureException {
+            if (mCancelled) {
+                return null;
+            }
+            final ArrayList<Task> tasks = new ArrayList<Task>();
+            final GTaskResponseReader.TaskHandler handler = new GTaskResponseReader.TaskHandler() {
+                public void onTask(JSONObject js) {
+                    Task task = mIsMeta ? new MetaData() : new Task();
+                    task.setContentByRemoteJSON(js);
+                    if (task.isWorthSaving()) {
+                        tasks.add(task);
+                    }
+                }
+            };
+            if (mLastModified <= 0) {
+                GTaskClient.getInstance().getTaskList(mListGid, handler);
+                return mCancelled ? null : tasks;
+            }
+
+            if (mCheckpoint.readList(mListGid, mLastModified, handler)) {
+                return tasks;
+            }
+            tasks.clear();
+
+            final GTaskSyncCheckpoint.ListWriter writer = mCheckpoint.openList(mListGid,
+                    mLastModified);
+            boolean committed = false;
+            try {
+                GTaskClient.getInstance().getTaskList(mListGid,
+                        new GTaskResponseReader.TaskHandler() {
+                            public void onTask(JSONObject js) throws JSONException {
+                                writer.write(js);
+                                handler.onTask(js);
+                            }
+                        });
+                writer.commit();
+                committed = true;
+            } finally {
+                if (!committed) {
+                    writer.abort();
+                }
+            }
+            return mCancelled ? null : tasks;
+        }
+    }
+
+    private ArrayList<Task> getFetchResult(Future<ArrayList<Task>> future)
+            throws NetworkFailureException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Log.e(TAG, e.toString());
+            Thread.currentThread().interrupt();
+            throw new ActionFailureException("initGTaskList: interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof NetworkFailureException) {
+                throw (NetworkFailureException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            Log.e(TAG, cause.toString());
+            throw new ActionFailureException("initGTaskList: loading task list failed");
+        }
+    }
+
+    private Task createStubTask(String gid, long lastModified) {
+        Task task = new Task();
+        task.setGid(gid);
+        task.setLastModified(lastModified);
+
+        // name and content come from the meta data, which is always downloaded
+        MetaData meta = mMetaHashMap.get(gid);
+        task.setMetaInfo(meta);
+        if (meta != null && meta.getNotes() != null) {
+            try {
+                task.setContentByLocalJSON(new JSONObject(meta.getNotes()));
+            } catch (JSONException e) {
+                Log.w(TAG, e.toString());
+            }
+        }
+        return task;
+    }
+
+    private void markListDirty(TaskList list) {
+        if (list != null && list.getGid() != null) {
+            mDirtyListGids.add(list.getGid());
         }
     }
 
@@ -259,6 +524,10 @@ public class GTaskManager {
             return;
         }
 
+        // read all local notes and data rows once instead of querying them note by note
+        mLocalWriter = new LocalWriter(mContentResolver, LocalSnapshot.load(mContentResolver));
+        mIdMap = NoteGtaskMap.load(mContext);
+
         // for local deleted note
         try {
             c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
@@ -287,12 +556,21 @@ public class GTaskManager {
         }
 
         // sync folder first
+        mStats.beginPhase(GTaskSyncStats.PHASE_SYNC_FOLDER);
         syncFolder();
+        mStats.endPhase(GTaskSyncStats.PHASE_SYNC_FOLDER);
 
-        // for note existing in database
+        // for note existing in database, notes in unchanged lists are only visited if they
+        // have been modified locally
         try {
+            String selection = "(type=? AND parent_id<>?)";
+            if (!mStubGids.isEmpty()) {
+                selection += " AND (" + NoteColumns.LOCAL_MODIFIED + "=1 OR "
+                        + NoteColumns.GTASK_ID + "='' OR " + NoteColumns.PARENT_ID + " IN ("
+                        + getFetchedFolderIds() + "))";
+            }
             c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
-                    "(type=? AND parent_id<>?)", new String[] {
+                    selection, new String[] {
                             String.valueOf(Notes.TYPE_NOTE), String.valueOf(Notes.ID_TRASH_FOLER)
                     }, NoteColumns.TYPE + " DESC");
             if (c != null) {
@@ -301,13 +579,17 @@ public class GTaskManager {
                     node = mGTaskHashMap.get(gid);
                     if (node != null) {
                         mGTaskHashMap.remove(gid);
-                        mGidToNid.put(gid, c.getLong(SqlNote.ID_COLUMN));
-                        mNidToGid.put(c.getLong(SqlNote.ID_COLUMN), gid);
                         syncType = node.getSyncAction(c);
                     } else {
                         if (c.getString(SqlNote.GTASK_ID_COLUMN).trim().length() == 0) {
-                            // local add
-                            syncType = Node.SYNC_ACTION_ADD_REMOTE;
+                            node = findCreatedNode(c);
+                            if (node != null) {
+                                // uploaded by an unfinished sync, push the latest content
+                                syncType = Node.SYNC_ACTION_UPDATE_REMOTE;
+                            } else {
+                                // local add
+                                syncType = Node.SYNC_ACTION_ADD_REMOTE;
+                            }
                         } else {
                             // remote delete
                             syncType = Node.SYNC_ACTION_DEL_LOCAL;
@@ -330,7 +612,16 @@ public class GTaskManager {
         Iterator<Map.Entry<String, Node>> iter = mGTaskHashMap.entrySet().iterator();
         while (iter.hasNext()) {
             Map.Entry<String, Node> entry = iter.next();
+            gid = entry.getKey();
             node = entry.getValue();
+            if (mStubGids.contains(gid)) {
+                // unchanged on both sides
+                continue;
+            }
+            if (!mStubGids.isEmpty() && syncSkippedNote(gid, node)) {
+                // moved from an unchanged list, the local note was not visited above
+                continue;
+            }
             doContentSync(Node.SYNC_ACTION_ADD_LOCAL, node, null);
         }
 
@@ -346,9 +637,67 @@ public class GTaskManager {
         // refresh local sync id
         if (!mCancelled) {
             GTaskClient.getInstance().commitUpdate();
+            mStats.beginPhase(GTaskSyncStats.PHASE_REFRESH_SYNC_ID);
             refreshLocalSyncId();
+            mStats.endPhase(GTaskSyncStats.PHASE_REFRESH_SYNC_ID);
+        }
+
+    }
+
+    // a note created remotely just before the last sync stopped may not have its gid yet,
+    // link it to the created task instead of uploading it again
+    private Node findCreatedNode(Cursor c) {
+        long id = c.getLong(SqlNote.ID_COLUMN);
+        String gid = mCheckpoint.getCreatedGid(id);
+        if (gid == null) {
+            return null;
+        }
+        Node node = mGTaskHashMap.get(gid);
+        if (node == null) {
+            return null;
+        }
+        mGTaskHashMap.remove(gid);
+        mStubGids.remove(gid);
+        ContentValues values = new ContentValues();
+        values.put(NoteColumns.GTASK_ID, gid);
+        mLocalWriter.update(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI, id), values,
+                null, null);
+        mIdMap.put(gid, id);
+        return node;
+    }
+
+    private String getFetchedFolderIds() {
+        StringBuilder sb = new StringBuilder();
+        for (String gid : mFetchedListGids) {
+            long nid = mIdMap.getNoteId(gid);
+            if (nid != NoteGtaskMap.INVALID_ID) {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(nid);
+            }
         }
+        return sb.toString();
+    }
 
+    private boolean syncSkippedNote(String gid, Node node) throws NetworkFailureException {
+        Cursor c = null;
+        try {
+            c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
+                    "(type=? AND parent_id<>? AND " + NoteColumns.GTASK_ID + "=?)", new String[] {
+                            String.valueOf(Notes.TYPE_NOTE), String.valueOf(Notes.ID_TRASH_FOLER),
+                            gid
+                    }, null);
+            if (c != null && c.moveToFirst()) {
+                doContentSync(node.getSyncAction(c), node, c);
+                return true;
+            }
+            return false;
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
     }
 
     private void syncFolder() throws NetworkFailureException {
@@ -371,8 +720,6 @@ public class GTaskManager {
                 node = mGTaskHashMap.get(gid);
                 if (node != null) {
                     mGTaskHashMap.remove(gid);
-                    mGidToNid.put(gid, (long) Notes.ID_ROOT_FOLDER);
-                    mNidToGid.put((long) Notes.ID_ROOT_FOLDER, gid);
                     // for system folder, only update remote name if necessary
                     if (!node.getName().equals(
                             GTaskStringUtils.MIUI_FOLDER_PREFFIX + GTaskStringUtils.FOLDER_DEFAULT))
@@ -402,8 +749,6 @@ public class GTaskManager {
                     node = mGTaskHashMap.get(gid);
                     if (node != null) {
                         mGTaskHashMap.remove(gid);
-                        mGidToNid.put(gid, (long) Notes.ID_CALL_RECORD_FOLDER);
-                        mNidToGid.put((long) Notes.ID_CALL_RECORD_FOLDER, gid);
                         // for system folder, only update remote name if
                         // necessary
                         if (!node.getName().equals(
@@ -436,8 +781,6 @@ public class GTaskManager {
                     node = mGTaskHashMap.get(gid);
                     if (node != null) {
                         mGTaskHashMap.remove(gid);
-                        mGidToNid.put(gid, c.getLong(SqlNote.ID_COLUMN));
-                        mNidToGid.put(c.getLong(SqlNote.ID_COLUMN), gid);
                         syncType = node.getSyncAction(c);
                     } else {
                         if (c.getString(SqlNote.GTASK_ID_COLUMN).trim().length() == 0) {
@@ -480,6 +823,7 @@ public class GTaskManager {
         if (mCancelled) {
             return;
         }
+        mStats.countAction(syncType);
 
         MetaData meta;
         switch (syncType) {
@@ -497,6 +841,9 @@ public class GTaskManager {
                 mLocalDeleteIdMap.add(c.getLong(SqlNote.ID_COLUMN));
                 break;
             case Node.SYNC_ACTION_DEL_REMOTE:
+                if (node instanceof Task) {
+                    markListDirty(((Task) node).getParent());
+                }
                 meta = mMetaHashMap.get(node.getGid());
                 if (meta != null) {
                     GTaskClient.getInstance().deleteNode(meta);
@@ -510,9 +857,7 @@ public class GTaskManager {
                 updateRemoteNode(node, c);
                 break;
             case Node.SYNC_ACTION_UPDATE_CONFLICT:
-                // merging both modifications maybe a good idea
-                // right now just use local update simply
-                updateRemoteNode(node, c);
+                mergeConflict(node, c);
                 break;
             case Node.SYNC_ACTION_NONE:
                 break;
@@ -536,19 +881,19 @@ public class GTaskManager {
                     GTaskStringUtils.MIUI_FOLDER_PREFFIX + GTaskStringUtils.FOLDER_CALL_NOTE)) {
                 sqlNote = new SqlNote(mContext, Notes.ID_CALL_RECORD_FOLDER);
             } else {
-                sqlNote = new SqlNote(mContext);
+                sqlNote = new SqlNote(mContext, mLocalWriter);
                 sqlNote.setContent(node.getLocalJSONFromContent());
                 sqlNote.setParentId(Notes.ID_ROOT_FOLDER);
             }
         } else {
-            sqlNote = new SqlNote(mContext);
+            sqlNote = new SqlNote(mContext, mLocalWriter);
             JSONObject js = node.getLocalJSONFromContent();
             try {
                 if (js.has(GTaskStringUtils.META_HEAD_NOTE)) {
                     JSONObject note = js.getJSONObject(GTaskStringUtils.META_HEAD_NOTE);
                     if (note.has(NoteColumns.ID)) {
                         long id = note.getLong(NoteColumns.ID);
-                        if (DataUtils.existInNoteDatabase(mContentResolver, id)) {
+                        if (mLocalWriter.getSnapshot().containsNote(id)) {
                             // the id is not available, have to create a new one
                             note.remove(NoteColumns.ID);
                         }
@@ -561,7 +906,7 @@ public class GTaskManager {
                         JSONObject data = dataArray.getJSONObject(i);
                         if (data.has(DataColumns.ID)) {
                             long dataId = data.getLong(DataColumns.ID);
-                            if (DataUtils.existInDataDatabase(mContentResolver, dataId)) {
+                            if (mLocalWriter.getSnapshot().containsData(dataId)) {
                                 // the data id is not available, have to create
                                 // a new one
                                 data.remove(DataColumns.ID);
@@ -576,12 +921,12 @@ public class GTaskManager {
             }
             sqlNote.setContent(js);
 
-            Long parentId = mGidToNid.get(((Task) node).getParent().getGid());
-            if (parentId == null) {
+            long parentId = mIdMap.getNoteId(((Task) node).getParent().getGid());
+            if (parentId == NoteGtaskMap.INVALID_ID) {
                 Log.e(TAG, "cannot find task's parent id locally");
                 throw new ActionFailureException("cannot add local node");
             }
-            sqlNote.setParentId(parentId.longValue());
+            sqlNote.setParentId(parentId);
         }
 
         // create the local node
@@ -589,8 +934,7 @@ public class GTaskManager {
         sqlNote.commit(false);
 
         // update gid-nid mapping
-        mGidToNid.put(node.getGid(), sqlNote.getId());
-        mNidToGid.put(sqlNote.getId(), node.getGid());
+        mIdMap.put(node.getGid(), sqlNote.getId());
 
         // update meta
         updateRemoteMeta(node.getGid(), sqlNote);
@@ -603,16 +947,16 @@ public class GTaskManager {
 
         SqlNote sqlNote;
         // update the note locally
-        sqlNote = new SqlNote(mContext, c);
+        sqlNote = new SqlNote(mContext, c, mLocalWriter);
         sqlNote.setContent(node.getLocalJSONFromContent());
 
-        Long parentId = (node instanceof Task) ? mGidToNid.get(((Task) node).getParent().getGid())
-                : new Long(Notes.ID_ROOT_FOLDER);
-        if (parentId == null) {
+        long parentId = (node instanceof Task) ? mIdMap.getNoteId(((Task) node).getParent()
+                .getGid()) : Notes.ID_ROOT_FOLDER;
+        if (parentId == NoteGtaskMap.INVALID_ID) {
             Log.e(TAG, "cannot find task's parent id locally");
             throw new ActionFailureException("cannot update local node");
         }
-        sqlNote.setParentId(parentId.longValue());
+        sqlNote.setParentId(parentId);
         sqlNote.commit(true);
 
         // update meta info
@@ -624,26 +968,32 @@ public class GTaskManager {
             return;
         }
 
-        SqlNote sqlNote = new SqlNote(mContext, c);
-        Node n;
+        SqlNote sqlNote = new SqlNote(mContext, c, mLocalWriter);
 
         // update remotely
         if (sqlNote.isNoteType()) {
             Task task = new Task();
             task.setContentByLocalJSON(sqlNote.getContent());
 
-            String parentGid = mNidToGid.get(sqlNote.getParentId());
+            String parentGid = mIdMap.getGid(sqlNote.getParentId());
             if (parentGid == null) {
                 Log.e(TAG, "cannot find task's parent tasklist");
                 throw new ActionFailureException("cannot add remote task");
             }
             mGTaskListHashMap.get(parentGid).addChildTask(task);
+            markListDirty(mGTaskListHashMap.get(parentGid));
 
-            GTaskClient.getInstance().createTask(task);
-            n = (Node) task;
+            // the task is sent with other queued actions, finish the rest once its gid is known
+            final SqlNote createdNote = sqlNote;
+            GTaskClient.getInstance().createTask(task, new GTaskClient.OnNodeCreatedListener() {
+                public void onNodeCreated(Node created) throws NetworkFailureException {
+                    mCheckpoint.recordCreated(createdNote.getId(), created.getGid());
 
-            // add meta
-            updateRemoteMeta(task.getGid(), sqlNote);
+                    // add meta
+                    updateRemoteMeta(created.getGid(), createdNote);
+                    commitRemoteNode(created, createdNote);
+                }
+            });
         } else {
             TaskList tasklist = null;
 
@@ -676,11 +1026,15 @@ public class GTaskManager {
                 tasklist = new TaskList();
                 tasklist.setContentByLocalJSON(sqlNote.getContent());
                 GTaskClient.getInstance().createTaskList(tasklist);
+                // tasks of the folder look up the list by gid, so create it right now
+                GTaskClient.getInstance().commitUpdate();
                 mGTaskListHashMap.put(tasklist.getGid(), tasklist);
             }
-            n = (Node) tasklist;
+            commitRemoteNode(tasklist, sqlNote);
         }
+    }
 
+    private void commitRemoteNode(Node n, SqlNote sqlNote) {
         // update local note
         sqlNote.setGtaskId(n.getGid());
         sqlNote.commit(false);
@@ -688,8 +1042,7 @@ public class GTaskManager {
         sqlNote.commit(true);
 
         // gid-id mapping
-        mGidToNid.put(n.getGid(), sqlNote.getId());
-        mNidToGid.put(sqlNote.getId(), n.getGid());
+        mIdMap.put(n.getGid(), sqlNote.getId());
     }
 
     private void updateRemoteNode(Node node, Cursor c) throws NetworkFailureException {
@@ -697,11 +1050,18 @@ public class GTaskManager {
             return;
         }
 
-        SqlNote sqlNote = new SqlNote(mContext, c);
+        updateRemoteNode(node, new SqlNote(mContext, c, mLocalWriter));
+    }
 
+    private void updateRemoteNode(Node node, SqlNote sqlNote) throws NetworkFailureException {
         // update remotely
         node.setContentByLocalJSON(sqlNote.getContent());
         GTaskClient.getInstance().addUpdateNode(node);
+        if (node instanceof Task) {
+            markListDirty(((Task) node).getParent());
+        } else {
+            markListDirty((TaskList) node);
+        }
 
         // update meta
         updateRemoteMeta(node.getGid(), sqlNote);
@@ -711,7 +1071,7 @@ public class GTaskManager {
             Task task = (Task) node;
             TaskList preParentList = task.getParent();
 
-            String curParentGid = mNidToGid.get(sqlNote.getParentId());
+            String curParentGid = mIdMap.getGid(sqlNote.getParentId());
             if (curParentGid == null) {
                 Log.e(TAG, "cannot find task's parent tasklist");
                 throw new ActionFailureException("cannot update remote task");
@@ -719,6 +1079,7 @@ public class GTaskManager {
             TaskList curParentList = mGTaskListHashMap.get(curParentGid);
 
             if (preParentList != curParentList) {
+                markListDirty(curParentList);
                 preParentList.removeChildTask(task);
                 curParentList.addChildTask(task);
                 GTaskClient.getInstance().moveTask(task, preParentList, curParentList);
@@ -730,6 +1091,75 @@ public class GTaskManager {
         sqlNote.commit(true);
     }
 
+    /**
+     * Both sides have changed the note, merge the texts against the version both had at last
+     * sync. Without such a base the local modification wins.
+     */
+    private void mergeConflict(Node node, Cursor c) throws NetworkFailureException {
+        if (mCancelled) {
+            return;
+        }
+
+        SqlNote sqlNote = new SqlNote(mContext, c, mLocalWriter);
+        JSONObject localJs = sqlNote.getContent();
+        String merged = null;
+        String remote = null;
+        if (node instanceof Task && localJs != null) {
+            String base = NoteSyncBase.getBase(mContext, sqlNote.getId(),
+                    c.getLong(SqlNote.SYNC_ID_COLUMN));
+            String local = getNoteText(localJs);
+            remote = getNoteText(node.getLocalJSONFromContent());
+            if (base != null && local != null && remote != null) {
+                merged = TextMerge.merge(base, local, remote);
+            }
+        }
+        if (merged == null) {
+            updateRemoteNode(node, sqlNote);
+            return;
+        }
+
+        setNoteText(localJs, merged);
+        sqlNote.setContent(localJs);
+        if (merged.equals(remote)) {
+            // the remote text already has the local changes, only the meta data is sent
+            sqlNote.resetLocalModified();
+            sqlNote.commit(true);
+            updateRemoteMeta(node.getGid(), sqlNote);
+        } else {
+            updateRemoteNode(node, sqlNote);
+        }
+    }
+
+    private static JSONObject getTextData(JSONObject js) {
+        if (js == null) {
+            return null;
+        }
+        JSONArray dataArray = js.optJSONArray(GTaskStringUtils.META_HEAD_DATA);
+        for (int i = 0; dataArray != null && i < dataArray.length(); i++) {
+            JSONObject data = dataArray.optJSONObject(i);
+            if (data != null && DataConstants.NOTE.equals(data.optString(DataColumns.MIME_TYPE))) {
+                return data;
+            }
+        }
+        return null;
+    }
+
+    private static String getNoteText(JSONObject js) {
+        JSONObject data = getTextData(js);
+        return data == null ? null : data.optString(DataColumns.CONTENT, "");
+    }
+
+    private static void setNoteText(JSONObject js, String text) {
+        JSONObject data = getTextData(js);
+        if (data != null) {
+            try {
+                data.put(DataColumns.CONTENT, text);
+            } catch (JSONException e) {
+                Log.w(TAG, e.toString());
+            }
+        }
+    }
+
     private void updateRemoteMeta(String gid, SqlNote sqlNote) throws NetworkFailureException {
         if (sqlNote != null && sqlNote.isNoteType()) {
             MetaData metaData = mMetaHashMap.get(gid);
@@ -755,8 +1185,17 @@ public class GTaskManager {
         mGTaskHashMap.clear();
         mGTaskListHashMap.clear();
         mMetaHashMap.clear();
+        mStats.beginPhase(GTaskSyncStats.PHASE_INIT_LIST);
         initGTaskList();
+        mStats.endPhase(GTaskSyncStats.PHASE_INIT_LIST);
+        if (mCancelled) {
+            return;
+        }
+
+        // the gids of the nodes created in this sync are still in the writer
+        mLocalWriter.flush();
 
+        ArrayList<ContentValues> bases = new ArrayList<ContentValues>();
         Cursor c = null;
         try {
             c = mContentResolver.query(Notes.CONTENT_NOTE_URI, SqlNote.PROJECTION_NOTE,
@@ -769,10 +1208,21 @@ public class GTaskManager {
                     Node node = mGTaskHashMap.get(gid);
                     if (node != null) {
                         mGTaskHashMap.remove(gid);
-                        ContentValues values = new ContentValues();
-                        values.put(NoteColumns.SYNC_ID, node.getLastModified());
-                        mContentResolver.update(ContentUris.withAppendedId(Notes.CONTENT_NOTE_URI,
-                                c.getLong(SqlNote.ID_COLUMN)), values, null, null);
+                        // only write the rows whose remote version has changed
+                        if (c.getLong(SqlNote.SYNC_ID_COLUMN) != node.getLastModified()) {
+                            ContentValues values = new ContentValues();
+                            values.put(NoteColumns.SYNC_ID, node.getLastModified());
+                            mLocalWriter.update(ContentUris.withAppendedId(
+                                    Notes.CONTENT_NOTE_URI, c.getLong(SqlNote.ID_COLUMN)), values,
+                                    null, null);
+
+                            // both sides agree now, keep the text as base of later merges
+                            String text = getNoteText(node.getLocalJSONFromContent());
+                            if (c.getInt(SqlNote.TYPE_COLUMN) == Notes.TYPE_NOTE && text != null) {
+                                bases.add(NoteSyncBase.newBase(c.getLong(SqlNote.ID_COLUMN),
+                                        node.getLastModified(), text));
+                            }
+                        }
                     } else {
                         Log.e(TAG, "something is missed");
                         throw new ActionFailureException(
@@ -788,6 +1238,9 @@ public class GTaskManager {
                 c = null;
             }
         }
+        mLocalWriter.flush();
+        // written in one transaction once the new sync ids are stored
+        NoteSyncBase.saveBases(mContext, bases);
     }
 
     public String getSyncAccount() {
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.gtask.remote;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import net.micode.notes.tool.GTaskStringUtils;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads GTask responses from the stream. Only the values sync needs are kept, and the
+ * tasks of a list are handed out one by one, so a large account is never held in memory
+ * as a whole.
+ */
+public class GTaskResponseReader {
+    private static final String SETUP_BEGIN = "_setup(";
+
+    private static final String SETUP_VERSION = "v";
+
+    private static final String SETUP_TASKS = "t";
+
+    /**
+     * Called for each task of a task list, in order
+     */
+    public interface TaskHandler {
+        void onTask(JSONObject js) throws JSONException;
+    }
+
+    /**
+     * Read the object passed to _setup() in the gtask page. The returned object only has
+     * the client version "v" and the task lists "t": {"lists": [...]}
+     */
+    public static JSONObject readSetup(Reader reader) throws IOException, JSONException {
+        if (!skipTo(reader, SETUP_BEGIN)) {
+            throw new JSONException("no setup found in page");
+        }
+
+        JSONObject js = new JSONObject();
+        JsonReader jsonReader = new JsonReader(reader);
+        // the object is followed by the rest of the script
+        jsonReader.setLenient(true);
+        jsonReader.beginObject();
+        while (jsonReader.hasNext()) {
+            String name = jsonReader.nextName();
+            if (SETUP_VERSION.equals(name)) {
+                js.put(SETUP_VERSION, jsonReader.nextLong());
+            } else if (SETUP_TASKS.equals(name) && jsonReader.peek() == JsonToken.BEGIN_OBJECT) {
+                JSONObject jsTasks = new JSONObject();
+                jsonReader.beginObject();
+                while (jsonReader.hasNext()) {
+                    if (GTaskStringUtils.GTASK_JSON_LISTS.equals(jsonReader.nextName())) {
+                        jsTasks.put(GTaskStringUtils.GTASK_JSON_LISTS, readValue(jsonReader));
+                    } else {
+                        jsonReader.skipValue();
+                    }
+                }
+                jsonReader.endObject();
+                js.put(SETUP_TASKS, jsTasks);
+            } else {
+                jsonReader.skipValue();
+            }
+        }
+        jsonReader.endObject();
+        return js;
+    }
+
+    /**
+     * Read the response of a "getall" action, each task is handed to the handler as soon as
+     * it is read
+     */
+    public static void readTasks(Reader reader, TaskHandler handler)
+            throws IOException, JSONException {
+        JsonReader jsonReader = new JsonReader(reader);
+        boolean found = false;
+        jsonReader.beginObject();
+        while (jsonReader.hasNext()) {
+            if (GTaskStringUtils.GTASK_JSON_TASKS.equals(jsonReader.nextName())) {
+                found = true;
+                jsonReader.beginArray();
+                while (jsonReader.hasNext()) {
+                    handler.onTask(readObject(jsonReader));
+                }
+                jsonReader.endArray();
+            } else {
+                jsonReader.skipValue();
+            }
+        }
+        jsonReader.endObject();
+        if (!found) {
+            throw new JSONException("no tasks found in response");
+        }
+    }
+
+    private static Object readValue(JsonReader reader) throws IOException, JSONException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                return readObject(reader);
+            case BEGIN_ARRAY:
+                JSONArray array = new JSONArray();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    array.put(readValue(reader));
+                }
+                reader.endArray();
+                return array;
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            case NUMBER:
+                // numbers are ids and timestamps, read them as long when possible
+                String number = reader.nextString();
+                try {
+                    return Long.valueOf(number);
+                } catch (NumberFormatException e) {
+                    return Double.valueOf(number);
+                }
+            default:
+                return reader.nextString();
+        }
+    }
+
+    private static JSONObject readObject(JsonReader reader) throws IOException, JSONException {
+        JSONObject js = new JSONObject();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            js.put(name, readValue(reader));
+        }
+        reader.endObject();
+        return js;
+    }
+
+    private static boolean skipTo(Reader reader, String marker) throws IOException {
+        int matched = 0;
+        int c;
+        while ((c = reader.read()) != -1) {
+            if (c == marker.charAt(matched)) {
+                matched++;
+                if (matched == marker.length()) {
+                    return true;
+                }
+            } else {
+                matched = (c == marker.charAt(0)) ? 1 : 0;
+            }
+        }
+        return false;
+    }
+}
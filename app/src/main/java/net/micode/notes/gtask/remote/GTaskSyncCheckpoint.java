@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.gtask.remote;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * Progress of an unfinished sync, so that the next one resumes instead of starting over.
+ * It keeps the task lists already downloaded, and the gid of every node created remotely,
+ * so that a note uploaded just before the interruption is not uploaded twice.
+ */
+public class GTaskSyncCheckpoint {
+    private static final String TAG = GTaskSyncCheckpoint.class.getSimpleName();
+
+    private static final String PREFERENCE_NAME = "gtask_sync_checkpoint";
+
+    private static final String PREFERENCE_ACCOUNT = "account";
+
+    private static final String PREFERENCE_LIST_TIME = "list_time";
+
+    private static final String PREFERENCE_LIST_PREFIX = "list_";
+
+    private static final String PREFERENCE_CREATED_PREFIX = "created_";
+
+    private static final String CHECKPOINT_DIR = "gtask_checkpoint";
+
+    // downloaded lists older than this are not trusted any more
+    private static final long MAX_LIST_AGE = 60 * 60 * 1000L;
+
+    private SharedPreferences mPreferences;
+
+    private File mDir;
+
+    public GTaskSyncCheckpoint(Context context, String account) {
+        mPreferences = context.getSharedPreferences(PREFERENCE_NAME, Context.MODE_PRIVATE);
+        mDir = new File(context.getCacheDir(), CHECKPOINT_DIR);
+
+        if (account == null || !account.equals(mPreferences.getString(PREFERENCE_ACCOUNT, null))) {
+            clear();
+            mPreferences.edit().putString(PREFERENCE_ACCOUNT, account).commit();
+        } else {
+            long listTime = mPreferences.getLong(PREFERENCE_LIST_TIME, 0);
+            long now = System.currentTimeMillis();
+            if (listTime > now || now - listTime > MAX_LIST_AGE) {
+                clearLists();
+            }
+        }
+    }
+
+    /**
+     * Saves the tasks of a list while it is downloaded, the list is only part of the
+     * checkpoint once {@link #commit()} is called. Failures are logged and ignored.
+     */
+    public class ListWriter {
+        private String mListGid;
+
+        private long mLastModified;
+
+        private File mTempFile;
+
+        private Writer mWriter;
+
+        private boolean mFirst;
+
+        private ListWriter(String listGid, long lastModified) {
+            mListGid = listGid;
+            mLastModified = lastModified;
+            mFirst = true;
+            try {
+                if (!mDir.exists() && !mDir.mkdirs()) {
+                    throw new IOException("cannot create " + mDir);
+                }
+                mTempFile = new File(mDir, getFileName(listGid) + ".tmp");
+                mWriter = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(mTempFile), "UTF-8"));
+                mWriter.write("{\"tasks\":[");
+            } catch (IOException e) {
+                Log.w(TAG, "open list " + listGid + " failed: " + e.toString());
+                abort();
+            }
+        }
+
+        public void write(JSONObject js) {
+            if (mWriter == null) {
+                return;
+            }
+            try {
+                if (!mFirst) {
+                    mWriter.write(',');
+                }
+                mWriter.write(js.toString());
+                mFirst = false;
+            } catch (IOException e) {
+                Log.w(TAG, "write list " + mListGid + " failed: " + e.toString());
+                abort();
+            }
+        }
+
+        public void commit() {
+            if (mWriter == null) {
+                return;
+            }
+            try {
+                mWriter.write("]}");
+                mWriter.close();
+                mWriter = null;
+                if (!mTempFile.renameTo(getListFile(mListGid))) {
+                    throw new IOException("rename failed");
+                }
+                SharedPreferences.Editor editor = mPreferences.edit();
+                if (!mPreferences.contains(PREFERENCE_LIST_TIME)) {
+                    editor.putLong(PREFERENCE_LIST_TIME, System.currentTimeMillis());
+                }
+                editor.putLong(PREFERENCE_LIST_PREFIX + mListGid, mLastModified);
+                editor.apply();
+            } catch (IOException e) {
+                Log.w(TAG, "commit list " + mListGid + " failed: " + e.toString());
+                abort();
+            }
+        }
+
+        public void abort() {
+            if (mWriter != null) {
+                try {
+                    mWriter.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+                mWriter = null;
+            }
+            if (mTempFile != null) {
+                mTempFile.delete();
+            }
+        }
+    }
+
+    public ListWriter openList(String listGid, long lastModified) {
+        return new ListWriter(listGid, lastModified);
+    }
+
+    /**
+     * Hand the saved tasks of the list to the handler, returns false if the list is not in
+     * the checkpoint or has been modified since it was saved
+     */
+    public boolean readList(String listGid, long lastModified,
+            GTaskResponseReader.TaskHandler handler) {
+        if (mPreferences.getLong(PREFERENCE_LIST_PREFIX + listGid, -1) != lastModified) {
+            return false;
+        }
+        File file = getListFile(listGid);
+        if (!file.exists()) {
+            return false;
+        }
+
+        Reader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            GTaskResponseReader.readTasks(reader, handler);
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "read list " + listGid + " failed: " + e.toString());
+        } catch (JSONException e) {
+            Log.w(TAG, "read list " + listGid + " failed: " + e.toString());
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "read list " + listGid + " failed: " + e.toString());
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+        return false;
+    }
+
+    public void recordCreated(long localId, String gid) {
+        mPreferences.edit().putString(PREFERENCE_CREATED_PREFIX + localId, gid).apply();
+    }
+
+    /**
+     * Returns the gid of the node created for the local note by an unfinished sync
+     */
+    public String getCreatedGid(long localId) {
+        return mPreferences.getString(PREFERENCE_CREATED_PREFIX + localId, null);
+    }
+
+    /**
+     * Forget the downloaded lists, the created nodes are kept
+     */
+    public void clearLists() {
+        SharedPreferences.Editor editor = mPreferences.edit();
+        for (Map.Entry<String, ?> entry : mPreferences.getAll().entrySet()) {
+            String key = entry.getKey();
+            if (key.startsWith(PREFERENCE_LIST_PREFIX)) {
+                editor.remove(key);
+            }
+        }
+        editor.commit();
+        deleteFiles();
+    }
+
+    /**
+     * Forget everything, called once a sync has finished
+     */
+    public void clear() {
+        String account = mPreferences.getString(PREFERENCE_ACCOUNT, null);
+        mPreferences.edit().clear().putString(PREFERENCE_ACCOUNT, account).commit();
+        deleteFiles();
+    }
+
+    private File getListFile(String listGid) {
+        return new File(mDir, getFileName(listGid) + ".json");
+    }
+
+    private static String getFileName(String listGid) {
+        return listGid.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    private void deleteFiles() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+}
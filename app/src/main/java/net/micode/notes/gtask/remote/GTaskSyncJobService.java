@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.gtask.remote;
+
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.util.Log;
+
+/**
+ * Runs the jobs of {@link GTaskSyncScheduler}. Only one sync runs at a time, a job that starts
+ * while another sync is running is merged into it.
+ */
+public class GTaskSyncJobService extends JobService {
+    private static final String TAG = GTaskSyncJobService.class.getSimpleName();
+
+    @Override
+    public boolean onStartJob(final JobParameters params) {
+        final boolean changeJob = params.getJobId() == GTaskSyncScheduler.JOB_ID_CHANGE;
+        if (changeJob) {
+            GTaskSyncScheduler.onChangeSyncStarted(this);
+        }
+
+        boolean started = GTaskSyncService.startBackgroundSync(this,
+                new GTaskASyncTask.OnCompleteListener() {
+                    public void onComplete(int result) {
+                        // network errors are retried with the back-off of the job
+                        jobFinished(params, changeJob
+                                && result == GTaskManager.STATE_NETWORK_ERROR);
+                    }
+                });
+        if (!started) {
+            Log.d(TAG, "sync is in progress, job " + params.getJobId() + " merged");
+            if (changeJob) {
+                // the running sync may have passed the change already
+                GTaskSyncScheduler.requestChangeSync(this);
+            }
+        }
+        return started;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // constraints are no longer met, try again later
+        return GTaskSyncService.cancelBackgroundSync();
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.gtask.remote;
+
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.text.TextUtils;
+import android.util.Log;
+
+import net.micode.notes.ui.NotesPreferenceActivity;
+
+/**
+ * Schedules background syncs with {@link JobScheduler}. A periodic job syncs every
+ * {@link #PERIODIC_INTERVAL}, and local changes schedule a one-off job which is pushed back
+ * while edits keep coming, but not longer than {@link #CHANGE_MAX_DELAY}. Scheduling a job id
+ * again replaces the pending job, so repeated requests are merged. Both jobs wait for an
+ * unmetered network and enough battery. Manual syncs go through {@link GTaskSyncService}
+ * right away and take over a running background sync.
+ */
+public class GTaskSyncScheduler {
+    private static final String TAG = GTaskSyncScheduler.class.getSimpleName();
+
+    static final int JOB_ID_PERIODIC = 5234101;
+
+    static final int JOB_ID_CHANGE = 5234102;
+
+    public static final long PERIODIC_INTERVAL = 6 * 60 * 60 * 1000L;
+
+    // quiet time after the last change before syncing
+    public static final long CHANGE_DEBOUNCE = 30 * 1000L;
+
+    // changes are synced at most this long after the first one, even if edits go on
+    public static final long CHANGE_MAX_DELAY = 10 * 60 * 1000L;
+
+    // changes closer than this do not reschedule the job again
+    private static final long RESCHEDULE_GAP = 5 * 1000L;
+
+    private static final long BACKOFF_DELAY = 60 * 1000L;
+
+    private static final String PREFERENCE_NAME = "gtask_sync_schedule";
+
+    private static final String KEY_CHANGE_PENDING_SINCE = "change_pending_since";
+
+    private static long sLastChangeRequest;
+
+    /**
+     * Make sure the periodic sync is scheduled while an account is set
+     */
+    public static void schedulePeriodicSync(Context context) {
+        if (!hasSyncAccount(context)) {
+            cancelAll(context);
+            return;
+        }
+        JobScheduler scheduler = getScheduler(context);
+        for (JobInfo job : scheduler.getAllPendingJobs()) {
+            if (job.getId() == JOB_ID_PERIODIC) {
+                return;
+            }
+        }
+        JobInfo.Builder builder = newJob(context, JOB_ID_PERIODIC)
+                .setPeriodic(PERIODIC_INTERVAL)
+                .setPersisted(true);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) {
+            // no battery constraint before O, run the periodic sync while charging only
+            builder.setRequiresCharging(true);
+        }
+        scheduler.schedule(builder.build());
+        Log.d(TAG, "periodic sync scheduled");
+    }
+
+    /**
+     * A note has been changed locally, sync it soon
+     */
+    public static void requestChangeSync(Context context) {
+        long now = System.currentTimeMillis();
+        synchronized (GTaskSyncScheduler.class) {
+            if (now - sLastChangeRequest < RESCHEDULE_GAP && now >= sLastChangeRequest) {
+                return;
+            }
+            sLastChangeRequest = now;
+        }
+        if (!hasSyncAccount(context)) {
+            return;
+        }
+
+        SharedPreferences prefs = getPreferences(context);
+        long since = prefs.getLong(KEY_CHANGE_PENDING_SINCE, 0);
+        if (since <= 0 || since > now) {
+            since = now;
+            prefs.edit().putLong(KEY_CHANGE_PENDING_SINCE, since).apply();
+        }
+        long delay = Math.max(0, Math.min(CHANGE_DEBOUNCE, since + CHANGE_MAX_DELAY - now));
+        getScheduler(context).schedule(newJob(context, JOB_ID_CHANGE)
+                .setMinimumLatency(delay)
+                .build());
+    }
+
+    /**
+     * Drop the pending change-triggered sync, the sync about to run covers it
+     */
+    public static void cancelChangeSync(Context context) {
+        getScheduler(context).cancel(JOB_ID_CHANGE);
+        onChangeSyncStarted(context);
+    }
+
+    public static void cancelAll(Context context) {
+        JobScheduler scheduler = getScheduler(context);
+        scheduler.cancel(JOB_ID_PERIODIC);
+        scheduler.cancel(JOB_ID_CHANGE);
+        onChangeSyncStarted(context);
+    }
+
+    static void onChangeSyncStarted(Context context) {
+        getPreferences(context).edit().remove(KEY_CHANGE_PENDING_SINCE).apply();
+        synchronized (GTaskSyncScheduler.class) {
+            sLastChangeRequest = 0;
+        }
+    }
+
+    private static JobInfo.Builder newJob(Context context, int jobId) {
+        JobInfo.Builder builder = new JobInfo.Builder(jobId, new ComponentName(context,
+                GTaskSyncJobService.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED)
+                .setBackoffCriteria(BACKOFF_DELAY, JobInfo.BACKOFF_POLICY_EXPONENTIAL);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            builder.setRequiresBatteryNotLow(true);
+        }
+        return builder;
+    }
+
+    private static boolean hasSyncAccount(Context context) {
+        return !TextUtils.isEmpty(NotesPreferenceActivity.getSyncAccountName(context));
+    }
+
+    private static JobScheduler getScheduler(Context context) {
+        return (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCE_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -43,9 +43,11 @@ public class GTaskSyncService extends Service {
     private static String mSyncProgress = "";
 
     private void startSync() {
+        // a manual sync covers the pending change-triggered one
+        GTaskSyncScheduler.cancelChangeSync(this);
         if (mSyncTask == null) {
             mSyncTask = new GTaskASyncTask(this, new GTaskASyncTask.OnCompleteListener() {
-                public void onComplete() {
+                public void onComplete(int result) {
                     mSyncTask = null;
                     sendBroadcast("");
                     stopSelf();
@@ -53,18 +55,51 @@ public class GTaskSyncService extends Service {
             });
             sendBroadcast("");
             mSyncTask.execute();
+        } else {
+            // join the running background sync instead of waiting for it
+            mSyncTask.setManual();
+            stopSelf();
         }
     }
 
-    private void cancelSync() {
+    /**
+     * Start a sync for the scheduler, must be called on the main thread
+     *
+     * @return false if a sync is already running
+     */
+    static boolean startBackgroundSync(final Context context,
+            final GTaskASyncTask.OnCompleteListener listener) {
         if (mSyncTask != null) {
-            mSyncTask.cancelSync();
+            return false;
         }
+        mSyncTask = new GTaskASyncTask(context, false, new GTaskASyncTask.OnCompleteListener() {
+            public void onComplete(int result) {
+                mSyncTask = null;
+                sendBroadcast(context, "");
+                listener.onComplete(result);
+            }
+        });
+        sendBroadcast(context, "");
+        mSyncTask.execute();
+        return true;
     }
 
-    @Override
-    public void onCreate() {
-        mSyncTask = null;
+    /**
+     * Stop the running sync if it has been started by the scheduler
+     */
+    static boolean cancelBackgroundSync() {
+        GTaskASyncTask task = mSyncTask;
+        if (task != null && !task.isManual()) {
+            task.cancelSync();
+            return true;
+        }
+        return false;
+    }
+
+    private void cancelSync() {
+        if (mSyncTask != null) {
+            mSyncTask.cancelSync();
+        }
     }
 
     @Override
@@ -98,11 +133,15 @@ public class GTaskSyncService extends Service {
     }
 
     public void sendBroadcast(String msg) {
+        sendBroadcast(this, msg);
+    }
+
+    public static void sendBroadcast(Context context, String msg) {
         mSyncProgress = msg;
         Intent intent = new Intent(GTASK_SERVICE_BROADCAST_NAME);
         intent.putExtra(GTASK_SERVICE_BROADCAST_IS_SYNCING, mSyncTask != null);
         intent.putExtra(GTASK_SERVICE_BROADCAST_PROGRESS_MSG, msg);
-        sendBroadcast(intent);
+        context.sendBroadcast(intent);
     }
 
     public static void startSync(Activity activity) {
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.gtask.remote;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import net.micode.notes.gtask.data.Task;
+import net.micode.notes.gtask.data.TaskList;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Remote state seen at the end of the last successful sync, used as high-water marks for
+ * the next one. A task list whose last modified time is unchanged since then is not
+ * downloaded again, its tasks are rebuilt from the saved snapshot.
+ */
+public class GTaskSyncState {
+    private static final String TAG = GTaskSyncState.class.getSimpleName();
+
+    private static final String PREFERENCE_NAME = "gtask_sync_state";
+
+    private static final String PREFERENCE_ACCOUNT = "account";
+
+    private static final String PREFERENCE_LAST_FULL_SYNC = "last_full_sync";
+
+    private static final String PREFERENCE_LIST_PREFIX = "list_";
+
+    private static final String JSON_LAST_MODIFIED = "last_modified";
+
+    private static final String JSON_TASKS = "tasks";
+
+    // download everything at least once a day in case some remote change is not reflected
+    // in the last modified time of its list
+    private static final long FULL_SYNC_INTERVAL = 24 * 60 * 60 * 1000L;
+
+    private SharedPreferences mPreferences;
+
+    private String mAccount;
+
+    private boolean mDeltaAllowed;
+
+    public GTaskSyncState(Context context, String account) {
+        mPreferences = context.getSharedPreferences(PREFERENCE_NAME, Context.MODE_PRIVATE);
+        mAccount = account;
+
+        long lastFullSync = mPreferences.getLong(PREFERENCE_LAST_FULL_SYNC, 0);
+        long now = System.currentTimeMillis();
+        mDeltaAllowed = account != null
+                && account.equals(mPreferences.getString(PREFERENCE_ACCOUNT, null))
+                && lastFullSync <= now && now - lastFullSync < FULL_SYNC_INTERVAL;
+    }
+
+    public boolean isDeltaAllowed() {
+        return mDeltaAllowed;
+    }
+
+    /**
+     * Returns the saved tasks of the list, gid to last modified time, or null if the list
+     * has to be downloaded
+     */
+    public HashMap<String, Long> getUnchangedTasks(String listGid, long listLastModified) {
+        if (!mDeltaAllowed) {
+            return null;
+        }
+
+        String saved = mPreferences.getString(PREFERENCE_LIST_PREFIX + listGid, null);
+        if (saved == null) {
+            return null;
+        }
+
+        try {
+            JSONObject js = new JSONObject(saved);
+            if (js.getLong(JSON_LAST_MODIFIED) != listLastModified) {
+                return null;
+            }
+
+            JSONObject jsTasks = js.getJSONObject(JSON_TASKS);
+            HashMap<String, Long> tasks = new HashMap<String, Long>();
+            Iterator<String> iter = jsTasks.keys();
+            while (iter.hasNext()) {
+                String gid = iter.next();
+                tasks.put(gid, jsTasks.getLong(gid));
+            }
+            return tasks;
+        } catch (JSONException e) {
+            Log.w(TAG, e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Save the remote lists seen at the end of a successful sync
+     *
+     * @param fullSync whether every list has been downloaded in this sync
+     */
+    public void save(Collection<TaskList> lists, boolean fullSync) {
+        SharedPreferences.Editor editor = mPreferences.edit();
+        long lastFullSync = mPreferences.getLong(PREFERENCE_LAST_FULL_SYNC, 0);
+        editor.clear();
+        editor.putString(PREFERENCE_ACCOUNT, mAccount);
+        editor.putLong(PREFERENCE_LAST_FULL_SYNC,
+                fullSync ? System.currentTimeMillis() : lastFullSync);
+
+        try {
+            for (TaskList list : lists) {
+                JSONObject jsTasks = new JSONObject();
+                for (int i = 0; i < list.getChildTaskCount(); i++) {
+                    Task task = list.getChildTaskByIndex(i);
+                    if (task.getGid() == null) {
+                        continue;
+                    }
+                    jsTasks.put(task.getGid(), task.getLastModified());
+                }
+                JSONObject js = new JSONObject();
+                js.put(JSON_LAST_MODIFIED, list.getLastModified());
+                js.put(JSON_TASKS, jsTasks);
+                editor.putString(PREFERENCE_LIST_PREFIX + list.getGid(), js.toString());
+            }
+        } catch (JSONException e) {
+            Log.e(TAG, e.toString());
+            e.printStackTrace();
+            editor.clear();
+        }
+        editor.commit();
+    }
+
+    /**
+     * Forget all saved state, the next sync downloads everything
+     */
+    public void clear() {
+        mPreferences.edit().clear().commit();
+        mDeltaAllowed = false;
+    }
+}
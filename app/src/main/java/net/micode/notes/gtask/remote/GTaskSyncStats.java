@@ -0,0 +1,326 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.gtask.remote;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.text.TextUtils;
+
+import net.micode.notes.data.SyncHistory;
+import net.micode.notes.gtask.data.Node;
+
+import java.util.ArrayList;
+
+/**
+ * Numbers of one sync: time spent in each phase, how many nodes took each sync action and
+ * the network traffic. Phase times are exclusive, a phase running inside another one is
+ * not counted again for the outer phase.
+ */
+public class GTaskSyncStats {
+    public static final int PHASE_LOGIN = 0;
+
+    public static final int PHASE_INIT_LIST = 1;
+
+    public static final int PHASE_SYNC_FOLDER = 2;
+
+    public static final int PHASE_SYNC_CONTENT = 3;
+
+    public static final int PHASE_REFRESH_SYNC_ID = 4;
+
+    public static final int PHASE_COUNT = 5;
+
+    public static final String[] PHASE_NAMES = new String[] {
+            "login", "init_list", "sync_folder", "sync_content", "refresh_sync_id"
+    };
+
+    // indexed by Node.SYNC_ACTION_*
+    public static final String[] ACTION_NAMES = new String[] {
+            "none", "add_remote", "add_local", "del_remote", "del_local", "update_remote",
+            "update_local", "update_conflict", "error"
+    };
+
+    private long mStartTime;
+
+    private long mDuration;
+
+    private boolean mManual;
+
+    private int mResult;
+
+    private long[] mPhaseTimes;
+
+    private int[] mActionCounts;
+
+    private long mRequestCount;
+
+    private long mRetryCount;
+
+    private long mFailureCount;
+
+    private long mBytesSent;
+
+    private long mBytesReceived;
+
+    // phases being timed, the last one is the one running
+    private int[] mPhaseStack;
+
+    private int mPhaseDepth;
+
+    private long mPhaseMark;
+
+    private long mStartElapsed;
+
+    private GTaskTransportMetrics mMetrics;
+
+    private GTaskSyncStats() {
+        mPhaseTimes = new long[PHASE_COUNT];
+        mActionCounts = new int[ACTION_NAMES.length];
+    }
+
+    /**
+     * Start counting a sync, the traffic is taken from the given metrics when it finishes
+     */
+    public GTaskSyncStats(boolean manual, GTaskTransportMetrics metrics) {
+        this();
+        mStartTime = System.currentTimeMillis();
+        mStartElapsed = SystemClock.elapsedRealtime();
+        mManual = manual;
+        mResult = -1;
+        mPhaseStack = new int[PHASE_COUNT * 2];
+        mMetrics = metrics;
+        if (metrics != null) {
+            mRequestCount = -metrics.getRequestCount();
+            mRetryCount = -metrics.getRetryCount();
+            mFailureCount = -metrics.getFailureCount();
+            mBytesSent = -metrics.getBytesSent();
+            mBytesReceived = -metrics.getBytesReceived();
+        }
+    }
+
+    public synchronized void beginPhase(int phase) {
+        long now = SystemClock.elapsedRealtime();
+        if (mPhaseDepth > 0) {
+            mPhaseTimes[mPhaseStack[mPhaseDepth - 1]] += now - mPhaseMark;
+        }
+        if (mPhaseDepth < mPhaseStack.length) {
+            mPhaseStack[mPhaseDepth++] = phase;
+        }
+        mPhaseMark = now;
+    }
+
+    public synchronized void endPhase(int phase) {
+        if (mPhaseDepth == 0 || mPhaseStack[mPhaseDepth - 1] != phase) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        mPhaseTimes[phase] += now - mPhaseMark;
+        mPhaseDepth--;
+        mPhaseMark = now;
+    }
+
+    public synchronized void countAction(int syncAction) {
+        if (syncAction >= 0 && syncAction < mActionCounts.length) {
+            mActionCounts[syncAction]++;
+        }
+    }
+
+    public synchronized void finish(int result) {
+        mResult = result;
+        mDuration = SystemClock.elapsedRealtime() - mStartElapsed;
+        while (mPhaseDepth > 0) {
+            endPhase(mPhaseStack[mPhaseDepth - 1]);
+        }
+        if (mMetrics != null) {
+            mRequestCount += mMetrics.getRequestCount();
+            mRetryCount += mMetrics.getRetryCount();
+            mFailureCount += mMetrics.getFailureCount();
+            mBytesSent += mMetrics.getBytesSent();
+            mBytesReceived += mMetrics.getBytesReceived();
+            mMetrics = null;
+        }
+    }
+
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    public synchronized long getDuration() {
+        return mDuration;
+    }
+
+    public boolean isManual() {
+        return mManual;
+    }
+
+    /**
+     * One of GTaskManager.STATE_*, or -1 while the sync is running
+     */
+    public synchronized int getResult() {
+        return mResult;
+    }
+
+    public synchronized long getPhaseTime(int phase) {
+        return mPhaseTimes[phase];
+    }
+
+    public synchronized int getActionCount(int syncAction) {
+        return mActionCounts[syncAction];
+    }
+
+    public synchronized long getRequestCount() {
+        return mRequestCount;
+    }
+
+    public synchronized long getRetryCount() {
+        return mRetryCount;
+    }
+
+    public synchronized long getFailureCount() {
+        return mFailureCount;
+    }
+
+    public synchronized long getBytesSent() {
+        return mBytesSent;
+    }
+
+    public synchronized long getBytesReceived() {
+        return mBytesReceived;
+    }
+
+    /**
+     * Add the finished sync to the history table
+     */
+    public synchronized void save(Context context) {
+        ContentValues values = new ContentValues();
+        values.put(SyncHistory.START_TIME, mStartTime);
+        values.put(SyncHistory.DURATION, mDuration);
+        values.put(SyncHistory.MANUAL, mManual ? 1 : 0);
+        values.put(SyncHistory.RESULT, mResult);
+        values.put(SyncHistory.LOGIN_TIME, mPhaseTimes[PHASE_LOGIN]);
+        values.put(SyncHistory.INIT_LIST_TIME, mPhaseTimes[PHASE_INIT_LIST]);
+        values.put(SyncHistory.SYNC_FOLDER_TIME, mPhaseTimes[PHASE_SYNC_FOLDER]);
+        values.put(SyncHistory.SYNC_CONTENT_TIME, mPhaseTimes[PHASE_SYNC_CONTENT]);
+        values.put(SyncHistory.REFRESH_TIME, mPhaseTimes[PHASE_REFRESH_SYNC_ID]);
+        values.put(SyncHistory.ACTION_COUNTS, joinCounts(mActionCounts));
+        values.put(SyncHistory.REQUESTS, mRequestCount);
+        values.put(SyncHistory.RETRIES, mRetryCount);
+        values.put(SyncHistory.FAILURES, mFailureCount);
+        values.put(SyncHistory.BYTES_SENT, mBytesSent);
+        values.put(SyncHistory.BYTES_RECEIVED, mBytesReceived);
+        SyncHistory.add(context, values);
+    }
+
+    /**
+     * Load the latest syncs from the history table, newest first
+     */
+    public static ArrayList<GTaskSyncStats> loadHistory(Context context, int limit) {
+        ArrayList<GTaskSyncStats> history = new ArrayList<GTaskSyncStats>();
+        Cursor c = SyncHistory.query(context, limit);
+        if (c == null) {
+            return history;
+        }
+        try {
+            while (c.moveToNext()) {
+                history.add(fromCursor(c));
+            }
+        } finally {
+            c.close();
+        }
+        return history;
+    }
+
+    private static GTaskSyncStats fromCursor(Cursor c) {
+        GTaskSyncStats stats = new GTaskSyncStats();
+        stats.mStartTime = c.getLong(c.getColumnIndexOrThrow(SyncHistory.START_TIME));
+        stats.mDuration = c.getLong(c.getColumnIndexOrThrow(SyncHistory.DURATION));
+        stats.mManual = c.getInt(c.getColumnIndexOrThrow(SyncHistory.MANUAL)) != 0;
+        stats.mResult = c.getInt(c.getColumnIndexOrThrow(SyncHistory.RESULT));
+        stats.mPhaseTimes[PHASE_LOGIN] = c.getLong(c.getColumnIndexOrThrow(
+                SyncHistory.LOGIN_TIME));
+        stats.mPhaseTimes[PHASE_INIT_LIST] = c.getLong(c.getColumnIndexOrThrow(
+                SyncHistory.INIT_LIST_TIME));
+        stats.mPhaseTimes[PHASE_SYNC_FOLDER] = c.getLong(c.getColumnIndexOrThrow(
+                SyncHistory.SYNC_FOLDER_TIME));
+        stats.mPhaseTimes[PHASE_SYNC_CONTENT] = c.getLong(c.getColumnIndexOrThrow(
+                SyncHistory.SYNC_CONTENT_TIME));
+        stats.mPhaseTimes[PHASE_REFRESH_SYNC_ID] = c.getLong(c.getColumnIndexOrThrow(
+                SyncHistory.REFRESH_TIME));
+        splitCounts(c.getString(c.getColumnIndexOrThrow(SyncHistory.ACTION_COUNTS)),
+                stats.mActionCounts);
+        stats.mRequestCount = c.getLong(c.getColumnIndexOrThrow(SyncHistory.REQUESTS));
+        stats.mRetryCount = c.getLong(c.getColumnIndexOrThrow(SyncHistory.RETRIES));
+        stats.mFailureCount = c.getLong(c.getColumnIndexOrThrow(SyncHistory.FAILURES));
+        stats.mBytesSent = c.getLong(c.getColumnIndexOrThrow(SyncHistory.BYTES_SENT));
+        stats.mBytesReceived = c.getLong(c.getColumnIndexOrThrow(SyncHistory.BYTES_RECEIVED));
+        return stats;
+    }
+
+    private static String joinCounts(int[] counts) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < counts.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(counts[i]);
+        }
+        return sb.toString();
+    }
+
+    private static void splitCounts(String text, int[] counts) {
+        if (TextUtils.isEmpty(text)) {
+            return;
+        }
+        String[] parts = text.split(",");
+        for (int i = 0; i < parts.length && i < counts.length; i++) {
+            try {
+                counts[i] = Integer.parseInt(parts[i]);
+            } catch (NumberFormatException e) {
+                counts[i] = 0;
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        // a running sync has no result and its traffic is not known yet
+        boolean running = (mMetrics != null);
+        long duration = running ? SystemClock.elapsedRealtime() - mStartElapsed : mDuration;
+        sb.append("result=").append(mResult).append(" manual=").append(mManual)
+                .append(" duration=").append(duration).append("ms");
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            sb.append(' ').append(PHASE_NAMES[i]).append('=').append(mPhaseTimes[i])
+                    .append("ms");
+        }
+        for (int i = 0; i < mActionCounts.length; i++) {
+            if (i != Node.SYNC_ACTION_NONE && mActionCounts[i] > 0) {
+                sb.append(' ').append(ACTION_NAMES[i]).append('=').append(mActionCounts[i]);
+            }
+        }
+        sb.append(" unchanged=").append(mActionCounts[Node.SYNC_ACTION_NONE]);
+        if (running) {
+            return sb.toString();
+        }
+        sb.append(" requests=").append(mRequestCount).append(" retries=").append(mRetryCount)
+                .append(" failures=").append(mFailureCount).append(" sent=").append(mBytesSent)
+                .append(" received=").append(mBytesReceived);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.gtask.remote;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpCookie;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The HTTP layer used by {@link GTaskClient}. Implementations keep their own cookies, since
+ * gtask authorizes later requests by the cookies set at login.
+ */
+public interface GTaskTransport {
+    public static final String METHOD_GET = "GET";
+
+    public static final String METHOD_POST = "POST";
+
+    public static class Request {
+        public final String method;
+
+        public final String url;
+
+        public final Map<String, String> headers;
+
+        public final byte[] body;
+
+        public Request(String method, String url, byte[] body) {
+            this.method = method;
+            this.url = url;
+            this.headers = new LinkedHashMap<String, String>();
+            this.body = body;
+        }
+
+        public static Request get(String url) {
+            return new Request(METHOD_GET, url, null);
+        }
+
+        public static Request post(String url, String contentType, byte[] body) {
+            Request request = new Request(METHOD_POST, url, body);
+            request.headers.put("Content-Type", contentType);
+            return request;
+        }
+
+        public Request setHeader(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+    }
+
+    public static class Response {
+        private final int mStatusCode;
+
+        private final InputStream mBody;
+
+        /**
+         * @param body the decoded content, closing it releases the connection
+         */
+        public Response(int statusCode, InputStream body) {
+            mStatusCode = statusCode;
+            mBody = body;
+        }
+
+        public static Response of(int statusCode, String body) {
+            try {
+                return new Response(statusCode, new ByteArrayInputStream(body.getBytes("UTF-8")));
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        public int getStatusCode() {
+            return mStatusCode;
+        }
+
+        public boolean isSuccessful() {
+            return mStatusCode >= 200 && mStatusCode < 300;
+        }
+
+        public InputStream getBody() {
+            return mBody;
+        }
+
+        public void close() {
+            try {
+                mBody.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    /**
+     * Send the request and return once the response headers arrived, the caller must close
+     * the response
+     */
+    Response execute(Request request) throws IOException;
+
+    List<HttpCookie> getCookies();
+
+    void clearCookies();
+
+    GTaskTransportMetrics getMetrics();
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.gtask.remote;
+
+/**
+ * Counters of a {@link GTaskTransport}, all methods are thread safe
+ */
+public class GTaskTransportMetrics {
+    private long mRequestCount;
+
+    private long mFailureCount;
+
+    private long mRetryCount;
+
+    private long mBytesSent;
+
+    private long mBytesReceived;
+
+    // time until the response headers arrived
+    private long mTotalLatency;
+
+    private long mMaxLatency;
+
+    public synchronized void recordRequest(long latency, long bytesSent) {
+        mRequestCount++;
+        mBytesSent += bytesSent;
+        mTotalLatency += latency;
+        if (latency > mMaxLatency) {
+            mMaxLatency = latency;
+        }
+    }
+
+    public synchronized void recordFailure() {
+        mFailureCount++;
+    }
+
+    public synchronized void recordRetry() {
+        mRetryCount++;
+    }
+
+    public synchronized void recordBytesReceived(long bytes) {
+        mBytesReceived += bytes;
+    }
+
+    public synchronized long getRequestCount() {
+        return mRequestCount;
+    }
+
+    public synchronized long getFailureCount() {
+        return mFailureCount;
+    }
+
+    public synchronized long getRetryCount() {
+        return mRetryCount;
+    }
+
+    public synchronized long getBytesSent() {
+        return mBytesSent;
+    }
+
+    /**
+     * Bytes read from the network, before decompression
+     */
+    public synchronized long getBytesReceived() {
+        return mBytesReceived;
+    }
+
+    public synchronized long getAverageLatency() {
+        return mRequestCount == 0 ? 0 : mTotalLatency / mRequestCount;
+    }
+
+    public synchronized long getMaxLatency() {
+        return mMaxLatency;
+    }
+
+    public synchronized void reset() {
+        mRequestCount = 0;
+        mFailureCount = 0;
+        mRetryCount = 0;
+        mBytesSent = 0;
+        mBytesReceived = 0;
+        mTotalLatency = 0;
+        mMaxLatency = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "requests=" + mRequestCount + " failures=" + mFailureCount + " retries="
+                + mRetryCount + " sent=" + mBytesSent + " received=" + mBytesReceived
+                + " avgLatency=" + getAverageLatency() + "ms maxLatency=" + mMaxLatency + "ms";
+    }
+}
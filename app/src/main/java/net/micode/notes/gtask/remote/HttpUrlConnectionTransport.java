@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.gtask.remote;
+
+import android.os.SystemClock;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.CookieManager;
+import java.net.CookiePolicy;
+import java.net.HttpCookie;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Default transport. HttpURLConnection keeps idle connections in a pool and reuses them as
+ * long as every response body is read to the end and closed.
+ *
+ * Redirects of a get are followed here rather than by HttpURLConnection, which would neither
+ * store the cookies set by the intermediate responses nor send the stored cookies with the
+ * redirected request. Like the apache client used before, a post is not redirected.
+ */
+public class HttpUrlConnectionTransport implements GTaskTransport {
+    public static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+
+    public static final int DEFAULT_READ_TIMEOUT = 15000;
+
+    private static final int MAX_REDIRECTS = 5;
+
+    private final int mConnectTimeout;
+
+    private final int mReadTimeout;
+
+    // cookies of this transport only, not shared with the rest of the process
+    private final CookieManager mCookieManager;
+
+    private final GTaskTransportMetrics mMetrics;
+
+    public HttpUrlConnectionTransport() {
+        this(DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT);
+    }
+
+    public HttpUrlConnectionTransport(int connectTimeout, int readTimeout) {
+        mConnectTimeout = connectTimeout;
+        mReadTimeout = readTimeout;
+        mCookieManager = new CookieManager(null, CookiePolicy.ACCEPT_ALL);
+        mMetrics = new GTaskTransportMetrics();
+    }
+
+    /**
+     * Send the request once, retries are left to {@link GTaskClient}
+     */
+    public Response execute(Request request) throws IOException {
+        URL url = new URL(request.url);
+        for (int redirects = 0; ; redirects++) {
+            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            try {
+                Response response = executeHop(conn, request, redirects == 0);
+                String location = conn.getHeaderField("Location");
+                if (!METHOD_GET.equals(request.method) || !isRedirect(response.getStatusCode())
+                        || location == null) {
+                    return response;
+                }
+                if (redirects >= MAX_REDIRECTS) {
+                    response.getBody().close();
+                    throw new IOException("too many redirects for " + request.url);
+                }
+                // read the body to the end so the connection goes back to the pool
+                drain(response.getBody());
+                url = new URL(url, location);
+                if (!"http".equals(url.getProtocol()) && !"https".equals(url.getProtocol())) {
+                    throw new IOException("unsupported redirect to " + url);
+                }
+            } catch (IOException e) {
+                mMetrics.recordFailure();
+                // do not put a broken connection back to the pool
+                conn.disconnect();
+                throw e;
+            }
+        }
+    }
+
+    // one round trip; the cookies it sets are stored, and a redirected get carries no body
+    private Response executeHop(HttpURLConnection conn, Request request, boolean first)
+            throws IOException {
+        long start = SystemClock.elapsedRealtime();
+        URI uri = toUri(conn.getURL().toString());
+        conn.setConnectTimeout(mConnectTimeout);
+        conn.setReadTimeout(mReadTimeout);
+        conn.setInstanceFollowRedirects(false);
+        conn.setUseCaches(false);
+        conn.setRequestMethod(request.method);
+        // decoded by ourselves so that bytes on the wire can be counted
+        conn.setRequestProperty("Accept-Encoding", "gzip, deflate");
+        conn.setRequestProperty("Connection", "keep-alive");
+        for (Map.Entry<String, String> header : request.headers.entrySet()) {
+            conn.setRequestProperty(header.getKey(), header.getValue());
+        }
+        String cookies = getCookieHeader(uri);
+        if (cookies != null) {
+            conn.setRequestProperty("Cookie", cookies);
+        }
+
+        long bytesSent = 0;
+        if (first && request.body != null) {
+            conn.setDoOutput(true);
+            conn.setFixedLengthStreamingMode(request.body.length);
+            OutputStream out = conn.getOutputStream();
+            try {
+                out.write(request.body);
+            } finally {
+                out.close();
+            }
+            bytesSent = request.body.length;
+        }
+
+        int statusCode = conn.getResponseCode();
+        mCookieManager.put(uri, conn.getHeaderFields());
+        mMetrics.recordRequest(SystemClock.elapsedRealtime() - start, bytesSent);
+
+        InputStream raw = (statusCode >= 400) ? conn.getErrorStream() : conn.getInputStream();
+        if (raw == null) {
+            raw = new ByteArrayInputStream(new byte[0]);
+        }
+        InputStream body = new CountingInputStream(raw);
+        String encoding = conn.getContentEncoding();
+        if ("gzip".equalsIgnoreCase(encoding)) {
+            body = new GZIPInputStream(body);
+        } else if ("deflate".equalsIgnoreCase(encoding)) {
+            body = new InflaterInputStream(body, new Inflater(true));
+        }
+        return new Response(statusCode, body);
+    }
+
+    private static boolean isRedirect(int statusCode) {
+        return statusCode == HttpURLConnection.HTTP_MOVED_PERM
+                || statusCode == HttpURLConnection.HTTP_MOVED_TEMP
+                || statusCode == HttpURLConnection.HTTP_SEE_OTHER
+                || statusCode == 307 || statusCode == 308;
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        try {
+            byte[] buffer = new byte[1024];
+            while (in.read(buffer) != -1) {
+                // discard
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    public List<HttpCookie> getCookies() {
+        return mCookieManager.getCookieStore().getCookies();
+    }
+
+    public void clearCookies() {
+        mCookieManager.getCookieStore().removeAll();
+    }
+
+    public GTaskTransportMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    private String getCookieHeader(URI uri) throws IOException {
+        List<HttpCookie> cookies = mCookieManager.getCookieStore().get(uri);
+        if (cookies.isEmpty()) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (HttpCookie cookie : cookies) {
+            if (sb.length() > 0) {
+                sb.append("; ");
+            }
+            sb.append(cookie.getName()).append('=').append(cookie.getValue());
+        }
+        return sb.toString();
+    }
+
+    private static URI toUri(String url) throws IOException {
+        try {
+            return new URI(url);
+        } catch (URISyntaxException e) {
+            throw new IOException("invalid url " + url);
+        }
+    }
+
+    private class CountingInputStream extends FilterInputStream {
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mMetrics.recordBytesReceived(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int n = super.read(buffer, offset, count);
+            if (n > 0) {
+                mMetrics.recordBytesReceived(n);
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.tool;
+
+import java.util.ArrayList;
+
+/**
+ * Image markup in note content, an image is stored as "[local]path[/local]"
+ */
+// 便签内容中的图片标记，编辑界面通过这里生成和识别图片
+public class ImageMarkup {
+    public static final String TAG_START = "[local]";
+
+    public static final String TAG_END = "[/local]";
+
+    /**
+     * Position of one image markup in the text, end is exclusive
+     */
+    public static class Span {
+        public final int start;
+        public final int end;
+        public final String path;
+
+        Span(int start, int end, String path) {
+            this.start = start;
+            this.end = end;
+            this.path = path;
+        }
+    }
+
+    // 生成图片路径对应的标记文本
+    public static String build(String path) {
+        return TAG_START + path + TAG_END;
+    }
+
+    /**
+     * Find all image markups in one pass over the text. When a start tag is followed by
+     * another start tag before the end tag, the later one is used, and markups with empty
+     * path are skipped.
+     */
+    public static ArrayList<Span> parse(String text) {
+        ArrayList<Span> spans = new ArrayList<Span>();
+        if (text == null) {
+            return spans;
+        }
+        int start = text.indexOf(TAG_START);
+        while (start >= 0) {
+            int end = text.indexOf(TAG_END, start + TAG_START.length());
+            if (end < 0) {
+                break;
+            }
+            // 起始标记与结束标记之间还有起始标记时，从最后一个起始标记开始
+            int next = text.indexOf(TAG_START, start + TAG_START.length());
+            while (next >= 0 && next < end) {
+                start = next;
+                next = text.indexOf(TAG_START, start + TAG_START.length());
+            }
+            int pathStart = start + TAG_START.length();
+            if (end > pathStart) {
+                spans.add(new Span(start, end + TAG_END.length(), text.substring(pathStart, end)));
+            }
+            // 两种标记不会互相重叠，next就是结束标记之后的第一个起始标记
+            start = next;
+        }
+        return spans;
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.micode.notes.tool;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Load images embedded in notes. Images are decoded in background and downsampled to the
+ * requested width, decoded bitmaps are kept in a memory cache limited by bytes, and the
+ * downsampled thumbnails are kept in a disk cache so reopening a note does not decode the
+ * original image again.
+ */
+// 便签内嵌图片的加载器，在后台解码并缓存缩略图，回调在主线程执行
+public class NoteImageLoader {
+    private static final String TAG = "NoteImageLoader";
+
+    // 磁盘缩略图缓存目录
+    private static final String THUMBNAIL_DIR = "note_thumbnails";
+
+    // 内存缓存占应用最大可用内存的比例
+    private static final int MEMORY_CACHE_DIVIDER = 8;
+
+    private static final int DECODE_THREAD_COUNT = 2;
+
+    private static final int THUMBNAIL_JPEG_QUALITY = 90;
+
+    // 磁盘缩略图缓存的最大字节数，超过时删除最早写入的缩略图
+    private static final long MAX_THUMBNAIL_BYTES = 32 * 1024 * 1024L;
+
+    public interface Callback {
+        /**
+         * Called on main thread, bitmap is null when the image can not be decoded
+         */
+        void onImageLoaded(String path, Bitmap bitmap);
+    }
+
+    private static NoteImageLoader mInstance;
+
+    private final LruCache<String, Bitmap> mMemoryCache;
+
+    private final File mThumbnailDir;
+
+    private final ExecutorService mExecutor;
+
+    private final Handler mMainHandler;
+
+    // 正在解码的图片及等待它的回调，同一张图片只解码一次
+    private final HashMap<String, ArrayList<Callback>> mPendingCallbacks;
+
+    private NoteImageLoader(Context context) {
+        int cacheSize = (int) (Runtime.getRuntime().maxMemory() / MEMORY_CACHE_DIVIDER);
+        mMemoryCache = new LruCache<String, Bitmap>(cacheSize) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+        mThumbnailDir = new File(context.getApplicationContext().getCacheDir(), THUMBNAIL_DIR);
+        mExecutor = Executors.newFixedThreadPool(DECODE_THREAD_COUNT);
+        mMainHandler = new Handler(Looper.getMainLooper());
+        mPendingCallbacks = new HashMap<String, ArrayList<Callback>>();
+    }
+
+    public static synchronized NoteImageLoader getInstance(Context context) {
+        if (mInstance == null) {
+            mInstance = new NoteImageLoader(context);
+        }
+        return mInstance;
+    }
+
+    // 只从内存缓存中取图片，不做任何解码，可在主线程调用
+    public Bitmap getCachedImage(String path, int reqWidth) {
+        return mMemoryCache.get(getCacheKey(path, reqWidth));
+    }
+
+    /**
+     * Load the image at path downsampled to reqWidth, callback is invoked on main thread
+     */
+    public void loadImage(final String path, final int reqWidth, Callback callback) {
+        final String key = getCacheKey(path, reqWidth);
+        Bitmap cached = mMemoryCache.get(key);
+        if (cached != null) {
+            callback.onImageLoaded(path, cached);
+            return;
+        }
+
+        synchronized (mPendingCallbacks) {
+            ArrayList<Callback> callbacks = mPendingCallbacks.get(key);
+            if (callbacks != null) {
+                callbacks.add(callback);
+                return;
+            }
+            callbacks = new ArrayList<Callback>();
+            callbacks.add(callback);
+            mPendingCallbacks.put(key, callbacks);
+        }
+
+        mExecutor.execute(new Runnable() {
+            public void run() {
+                final Bitmap bitmap = decodeImage(path, reqWidth);
+                if (bitmap != null) {
+                    mMemoryCache.put(key, bitmap);
+                }
+                mMainHandler.post(new Runnable() {
+                    public void run() {
+                        ArrayList<Callback> callbacks;
+                        synchronized (mPendingCallbacks) {
+                            callbacks = mPendingCallbacks.remove(key);
+                        }
+                        if (callbacks != null) {
+                            for (Callback cb : callbacks) {
+                                cb.onImageLoaded(path, bitmap);
+                            }
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private static String getCacheKey(String path, int reqWidth) {
+        return reqWidth + "@" + path;
+    }
+
+    // 在后台线程执行：先查磁盘缩略图，没有时解码原图并写入磁盘缓存
+    private Bitmap decodeImage(String path, int reqWidth) {
+        File source = new File(path);
+        if (!source.isFile()) {
+            Log.d(TAG, "Image file does not exist: " + path);
+            return null;
+        }
+
+        // 原图修改后文件名随之改变，旧缩略图自然失效
+        File thumbnail = new File(mThumbnailDir, Integer.toHexString(path.hashCode()) + "_"
+                + Long.toHexString(source.lastModified()) + "_" + source.length() + "_"
+                + reqWidth);
+        if (thumbnail.isFile()) {
+            Bitmap bitmap = BitmapFactory.decodeFile(thumbnail.getPath());
+            if (bitmap != null) {
+                return bitmap;
+            }
+            thumbnail.delete();
+        }
+
+        Bitmap bitmap = decodeSampledBitmap(path, reqWidth);
+        if (bitmap != null) {
+            saveThumbnail(bitmap, thumbnail);
+            trimThumbnails();
+        }
+        return bitmap;
+    }
+
+    /**
+     * Decode the image with the largest power-of-two inSampleSize that keeps its width not
+     * smaller than reqWidth
+     */
+    public static Bitmap decodeSampledBitmap(String path, int reqWidth) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            Log.d(TAG, "Can not decode bounds of " + path);
+            return null;
+        }
+
+        int sampleSize = 1;
+        if (reqWidth > 0) {
+            while (options.outWidth / (sampleSize * 2) >= reqWidth) {
+                sampleSize *= 2;
+            }
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        try {
+            return BitmapFactory.decodeFile(path, options);
+        } catch (OutOfMemoryError e) {
+            Log.e(TAG, "Decode image out of memory: " + path);
+            return null;
+        }
+    }
+
+    private void saveThumbnail(Bitmap bitmap, File thumbnail) {
+        if (!mThumbnailDir.isDirectory() && !mThumbnailDir.mkdirs()) {
+            Log.e(TAG, "Can not create thumbnail dir");
+            return;
+        }
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(thumbnail);
+            if (bitmap.hasAlpha()) {
+                bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+            } else {
+                bitmap.compress(Bitmap.CompressFormat.JPEG, THUMBNAIL_JPEG_QUALITY, out);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Save thumbnail failed " + e.toString());
+            thumbnail.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private synchronized void trimThumbnails() {
+        File[] files = mThumbnailDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= MAX_THUMBNAIL_BYTES) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File lhs, File rhs) {
+                return Long.compare(lhs.lastModified(), rhs.lastModified());
+            }
+        });
+        for (File file : files) {
+            if (total <= MAX_THUMBNAIL_BYTES) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                total -= length;
+            }
+        }
+    }
+}
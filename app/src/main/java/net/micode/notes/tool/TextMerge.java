@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.tool;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Line based three-way merge. Changes made on one side only are taken as they are, when both
+ * sides changed the same lines differently, local lines are kept followed by remote lines,
+ * so nothing is lost.
+ */
+public class TextMerge {
+    // above this size of the diff table the texts are not merged
+    private static final long MAX_DIFF_CELLS = 4 * 1024 * 1024;
+
+    /**
+     * Returns the merged text, or null if the texts are too large to merge
+     */
+    public static String merge(String base, String local, String remote) {
+        if (local.equals(remote) || remote.equals(base)) {
+            return local;
+        }
+        if (local.equals(base)) {
+            return remote;
+        }
+
+        String[] baseLines = base.split("\n", -1);
+        String[] localLines = local.split("\n", -1);
+        String[] remoteLines = remote.split("\n", -1);
+        int[] localMatch = match(baseLines, localLines);
+        int[] remoteMatch = match(baseLines, remoteLines);
+        if (localMatch == null || remoteMatch == null) {
+            return null;
+        }
+
+        List<String> merged = new ArrayList<String>();
+        int baseStart = 0;
+        int localStart = 0;
+        int remoteStart = 0;
+        for (int i = 0; i <= baseLines.length; i++) {
+            // lines kept by both sides split the texts into chunks, the end is a virtual one
+            boolean end = (i == baseLines.length);
+            if (!end && (localMatch[i] < 0 || remoteMatch[i] < 0)) {
+                continue;
+            }
+            int localEnd = end ? localLines.length : localMatch[i];
+            int remoteEnd = end ? remoteLines.length : remoteMatch[i];
+            mergeChunk(merged, baseLines, baseStart, i, localLines, localStart, localEnd,
+                    remoteLines, remoteStart, remoteEnd);
+            if (!end) {
+                merged.add(baseLines[i]);
+                baseStart = i + 1;
+                localStart = localEnd + 1;
+                remoteStart = remoteEnd + 1;
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < merged.size(); i++) {
+            if (i > 0) {
+                sb.append('\n');
+            }
+            sb.append(merged.get(i));
+        }
+        return sb.toString();
+    }
+
+    private static void mergeChunk(List<String> out, String[] base, int baseStart, int baseEnd,
+            String[] local, int localStart, int localEnd, String[] remote, int remoteStart,
+            int remoteEnd) {
+        boolean localChanged = !rangeEquals(base, baseStart, baseEnd, local, localStart, localEnd);
+        boolean remoteChanged = !rangeEquals(base, baseStart, baseEnd, remote, remoteStart,
+                remoteEnd);
+        if (!localChanged) {
+            addRange(out, remote, remoteStart, remoteEnd);
+        } else if (!remoteChanged
+                || rangeEquals(local, localStart, localEnd, remote, remoteStart, remoteEnd)) {
+            addRange(out, local, localStart, localEnd);
+        } else {
+            // conflict, keep both
+            addRange(out, local, localStart, localEnd);
+            addRange(out, remote, remoteStart, remoteEnd);
+        }
+    }
+
+    /**
+     * For each base line, the index of the line it is matched to in the other text by the
+     * longest common subsequence, or -1
+     */
+    private static int[] match(String[] base, String[] other) {
+        int n = base.length;
+        int m = other.length;
+        if ((long) (n + 1) * (m + 1) > MAX_DIFF_CELLS) {
+            return null;
+        }
+        int[][] lcs = new int[n + 1][m + 1];
+        for (int i = n - 1; i >= 0; i--) {
+            for (int j = m - 1; j >= 0; j--) {
+                if (base[i].equals(other[j])) {
+                    lcs[i][j] = lcs[i + 1][j + 1] + 1;
+                } else {
+                    lcs[i][j] = Math.max(lcs[i + 1][j], lcs[i][j + 1]);
+                }
+            }
+        }
+
+        int[] result = new int[n];
+        int i = 0;
+        int j = 0;
+        while (i < n) {
+            if (j < m && base[i].equals(other[j])) {
+                result[i++] = j++;
+            } else if (j < m && lcs[i][j + 1] >= lcs[i + 1][j]) {
+                j++;
+            } else {
+                result[i++] = -1;
+            }
+        }
+        return result;
+    }
+
+    private static boolean rangeEquals(String[] a, int aStart, int aEnd, String[] b, int bStart,
+            int bEnd) {
+        if (aEnd - aStart != bEnd - bStart) {
+            return false;
+        }
+        for (int i = 0; i < aEnd - aStart; i++) {
+            if (!a[aStart + i].equals(b[bStart + i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void addRange(List<String> out, String[] lines, int start, int end) {
+        for (int i = start; i < end; i++) {
+            out.add(lines[i]);
+        }
+    }
+}
@@ -31,8 +31,10 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.graphics.Color;
 import android.graphics.Paint;
+import android.graphics.drawable.ColorDrawable;
+import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
@@ -70,6 +72,8 @@ import net.micode.notes.data.Notes.TextNote;
 import net.micode.notes.model.WorkingNote;
 import net.micode.notes.model.WorkingNote.NoteSettingChangedListener;
 import net.micode.notes.tool.DataUtils;
+import net.micode.notes.tool.ImageMarkup;
+import net.micode.notes.tool.NoteImageLoader;
 import net.micode.notes.tool.ResourceParser;
 import net.micode.notes.tool.ResourceParser.TextAppearanceResources;
 import net.micode.notes.ui.DateTimePickerDialog.OnDateTimeSetListener;
@@ -77,7 +81,6 @@ import net.micode.notes.ui.NoteEditText.OnTextViewChangeListener;
 import net.micode.notes.widget.NoteWidgetProvider_2x;
 import net.micode.notes.widget.NoteWidgetProvider_4x;
 
-import java.io.FileNotFoundException;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -932,49 +935,59 @@ public class NoteEditActivity extends Activity implements OnClickListener,
     //重写onActivityResult()来处理返回的数据
     protected void onActivityResult(int requestCode, int resultCode, Intent intent) {
         super.onActivityResult(requestCode, resultCode, intent);
-        ContentResolver resolver = getContentResolver();
         if (requestCode==PHOTO_REQUEST) {
 //            case PHOTO_REQUEST:
+            if (resultCode != RESULT_OK || intent == null || intent.getData() == null) {
+                return;
+            }
             Uri originalUri = intent.getData(); //1.获得图片的真实路径
-            Bitmap bitmap = null;
-            try {
-                bitmap = BitmapFactory.decodeStream(resolver.openInputStream(originalUri));//2.解码图片
-            } catch (FileNotFoundException e) {
-                Log.d(TAG, "onActivityResult: get file_exception");
-                e.printStackTrace();
+            String path = getPath(this, originalUri);
+            if (path == null) {
+                Toast.makeText(NoteEditActivity.this, "获取图片失败", Toast.LENGTH_SHORT).show();
+                return;
             }
+            //2.在后台按编辑框宽度缩小解码图片，解码完成后再插入
+            NoteEditText e = (NoteEditText) findViewById(R.id.note_edit_view);
+            NoteImageLoader.getInstance(this).loadImage(path, getImageWidth(e),
+                    new NoteImageLoader.Callback() {
+                        public void onImageLoaded(String imagePath, Bitmap bitmap) {
+                            insertImage(imagePath, bitmap);
+                        }
+                    });
+        }
+    }
 
-            if (bitmap != null) {
-                //3.根据Bitmap对象创建ImageSpan对象
-                Log.d(TAG, "onActivityResult: bitmap is not null");
-                ImageSpan imageSpan = new ImageSpan(NoteEditActivity.this, bitmap);
-                String path = getPath(this, originalUri);
-                //4.使用[local][/local]将path括起来，用于之后方便识别图片路径在note中的位置
-                String img_fragment = "[local]" + path + "[/local]";
-                //创建一个SpannableString对象，以便插入用ImageSpan对象封装的图像
-                SpannableString spannableString = new SpannableString(img_fragment);
-                spannableString.setSpan(imageSpan, 0, img_fragment.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                //5.将选择的图片追加到EditText中光标所在位置
-                NoteEditText e = (NoteEditText) findViewById(R.id.note_edit_view);
-                int index = e.getSelectionStart(); //获取光标所在位置
-                Log.d(TAG, "Index是: " + index);
-                Editable edit_text = e.getEditableText();
-                edit_text.insert(index, spannableString); //将图片插入到光标所在位置
-
-                mWorkingNote.mContent = e.getText().toString();
-                //6.把改动提交到数据库中,两个数据库表都要改的
-                ContentResolver contentResolver = getContentResolver();
-                ContentValues contentValues = new ContentValues();
-                final long id = mWorkingNote.getNoteId();
-                contentValues.put("snippet", mWorkingNote.mContent);
-                contentResolver.update(Uri.parse("content://micode_notes/note"), contentValues, "_id=?", new String[]{"" + id});
-                ContentValues contentValues1 = new ContentValues();
-                contentValues1.put("content", mWorkingNote.mContent);
-                contentResolver.update(Uri.parse("content://micode_notes/data"), contentValues1, "mime_type=? and note_id=?", new String[]{"vnd.android.cursor.item/text_note", "" + id});
+    // 将解码后的图片插入到光标所在位置并保存
+    private void insertImage(String path, Bitmap bitmap) {
+        if (bitmap != null) {
+            //3.根据Bitmap对象创建ImageSpan对象
+            Log.d(TAG, "onActivityResult: bitmap is not null");
+            ImageSpan imageSpan = new ImageSpan(NoteEditActivity.this, bitmap);
+            //4.使用[local][/local]将path括起来，用于之后方便识别图片路径在note中的位置
+            String img_fragment = ImageMarkup.build(path);
+            //创建一个SpannableString对象，以便插入用ImageSpan对象封装的图像
+            SpannableString spannableString = new SpannableString(img_fragment);
+            spannableString.setSpan(imageSpan, 0, img_fragment.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            //5.将选择的图片追加到EditText中光标所在位置
+            NoteEditText e = (NoteEditText) findViewById(R.id.note_edit_view);
+            int index = e.getSelectionStart(); //获取光标所在位置
+            Log.d(TAG, "Index是: " + index);
+            Editable edit_text = e.getEditableText();
+            edit_text.insert(index, spannableString); //将图片插入到光标所在位置
+
+            mWorkingNote.mContent = e.getText().toString();
+            //6.把改动提交到数据库中,两个数据库表都要改的
+            ContentResolver contentResolver = getContentResolver();
+            ContentValues contentValues = new ContentValues();
+            final long id = mWorkingNote.getNoteId();
+            contentValues.put("snippet", mWorkingNote.mContent);
+            contentResolver.update(Uri.parse("content://micode_notes/note"), contentValues, "_id=?", new String[]{"" + id});
+            ContentValues contentValues1 = new ContentValues();
+            contentValues1.put("content", mWorkingNote.mContent);
+            contentResolver.update(Uri.parse("content://micode_notes/data"), contentValues1, "mime_type=? and note_id=?", new String[]{"vnd.android.cursor.item/text_note", "" + id});
 
-            } else {
-                Toast.makeText(NoteEditActivity.this, "获取图片失败", Toast.LENGTH_SHORT).show();
-            }
+        } else {
+            Toast.makeText(NoteEditActivity.this, "获取图片失败", Toast.LENGTH_SHORT).show();
         }
     }
 
@@ -995,45 +1008,58 @@ public class NoteEditActivity extends Activity implements OnClickListener,
     //路径字符串格式 转换为 图片image格式
     private void convertToImage() {
         NoteEditText noteEditText = (NoteEditText) findViewById(R.id.note_edit_view); //获取当前的edit
-        Editable editable = noteEditText.getText();//1.获取text
-        String noteText = editable.toString(); //2.将note内容转换为字符串
-        int length = editable.length(); //内容的长度
-        //3.截取img片段 [local]+uri+[local]，提取uri
-        for(int i = 0; i < length; i++) {
-            for(int j = i; j < length; j++) {
-                String img_fragment = noteText.substring(i, j+1); //img_fragment：关于图片路径的片段
-                if(img_fragment.length() > 15 && img_fragment.endsWith("[/local]") && img_fragment.startsWith("[local]")){
-                    int limit = 7;  //[local]为7个字符
-                    //[local][/local]共15个字符，剩下的为真正的path长度
-                    int len = img_fragment.length()-15;
-                    //从[local]之后的len个字符就是path
-                    String path = img_fragment.substring(limit,limit+len);//获取到了图片路径
-                    Bitmap bitmap = null;
-                    Log.d(TAG, "图片的路径是："+path);
-                    try {
-                        bitmap = BitmapFactory.decodeFile(path);//将图片路径解码为图片格式
-                    } catch (Exception e) {
-                        e.printStackTrace();
-
+        final Editable editable = noteEditText.getText();//1.获取text
+        int width = getImageWidth(noteEditText);
+        NoteImageLoader loader = NoteImageLoader.getInstance(this);
+        //2.一次扫描找出所有 [local]+path+[/local] 片段的位置
+        for (ImageMarkup.Span span : ImageMarkup.parse(editable.toString())) {
+            //3.去掉该片段上已有的图片，图片附加在路径文字上，文字本身保持不变
+            for (ImageSpan old : editable.getSpans(span.start, span.end, ImageSpan.class)) {
+                editable.removeSpan(old);
+            }
+            Bitmap cached = loader.getCachedImage(span.path, width);
+            if (cached != null) {
+                editable.setSpan(new ImageSpan(NoteEditActivity.this, cached), span.start,
+                        span.end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+                continue;
+            }
+            //4.缓存中没有时先放占位图，后台解码完成后替换为真正的图片
+            final ImageSpan placeholder = new ImageSpan(createImagePlaceholder(width));
+            editable.setSpan(placeholder, span.start, span.end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            Log.d(TAG, "图片的路径是："+span.path);
+            loader.loadImage(span.path, width, new NoteImageLoader.Callback() {
+                public void onImageLoaded(String path, Bitmap bitmap) {
+                    int start = editable.getSpanStart(placeholder);
+                    int end = editable.getSpanEnd(placeholder);
+                    if (start < 0 || end < 0) {
+                        return; // 占位图所在的文字已被修改
                     }
-                    if(bitmap!=null){  //若图片存在
-                        Log.d(TAG, "图片不为null");
-                        ImageSpan imageSpan = new ImageSpan(NoteEditActivity.this, bitmap);
-                        //4.创建一个SpannableString对象，以便插入用ImageSpan对象封装的图像
-                        String ss = "[local]" + path + "[/local]";
-                        SpannableString spannableString = new SpannableString(ss);
-                        //5.将指定的标记对象附加到文本的开始...结束范围
-                        spannableString.setSpan(imageSpan, 0, ss.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                        Log.d(TAG, "Create spannable string success!");
-                        Editable edit_text = noteEditText.getEditableText();
-                        edit_text.delete(i,i+len+15); //6.删掉图片路径的文字
-                        edit_text.insert(i, spannableString); //7.在路径的起始位置插入图片
+                    editable.removeSpan(placeholder);
+                    if (bitmap != null) {  //若图片存在
+                        editable.setSpan(new ImageSpan(NoteEditActivity.this, bitmap), start, end,
+                                Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
                     }
-
                 }
-            }
+            });
         }
     }
+
+    // 图片显示宽度，编辑框尚未完成布局时使用屏幕宽度
+    private int getImageWidth(NoteEditText noteEditText) {
+        int width = noteEditText.getWidth() - noteEditText.getPaddingLeft()
+                - noteEditText.getPaddingRight();
+        if (width <= 0) {
+            width = getResources().getDisplayMetrics().widthPixels;
+        }
+        return width;
+    }
+
+    // 图片解码完成前显示的占位图
+    private Drawable createImagePlaceholder(int width) {
+        Drawable placeholder = new ColorDrawable(Color.LTGRAY);
+        placeholder.setBounds(0, 0, width, width / 2);
+        return placeholder;
+    }
     //0406新增
     //获取文件的real path
     public String getPath(final Context context, final Uri uri) {
@@ -23,7 +23,6 @@ import android.text.TextUtils;
 import net.micode.notes.data.Contact;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.NoteColumns;
-import net.micode.notes.tool.DataUtils;
 
 
 public class NoteItemData {
@@ -40,6 +39,7 @@ public class NoteItemData {
         NoteColumns.TYPE,
         NoteColumns.WIDGET_ID,
         NoteColumns.WIDGET_TYPE,
+        Notes.COLUMN_CALL_NUMBER,
     };
 
     private static final int ID_COLUMN                    = 0;
@@ -54,6 +54,7 @@ public class NoteItemData {
     private static final int TYPE_COLUMN                  = 9;
     private static final int WIDGET_ID_COLUMN             = 10;
     private static final int WIDGET_TYPE_COLUMN           = 11;
+    private static final int CALL_NUMBER_COLUMN           = 12;
 
     private long mId;
     private long mAlertDate;
@@ -92,11 +93,12 @@ public class NoteItemData {
         mWidgetId = cursor.getInt(WIDGET_ID_COLUMN);
         mWidgetType = cursor.getInt(WIDGET_TYPE_COLUMN);
 
+        // 电话号码由列表查询一并返回，联系人姓名只从缓存读取，绑定时不做任何查询
         mPhoneNumber = "";
         if (mParentId == Notes.ID_CALL_RECORD_FOLDER) {
-            mPhoneNumber = DataUtils.getCallNumberByNoteId(context.getContentResolver(), mId);
+            mPhoneNumber = getCallNumber(cursor);
             if (!TextUtils.isEmpty(mPhoneNumber)) {
-                mName = Contact.getContact(context, mPhoneNumber);
+                mName = Contact.getCachedContact(mPhoneNumber);
                 if (mName == null) {
                     mName = mPhoneNumber;
                 }
@@ -221,4 +223,17 @@ public class NoteItemData {
     public static int getNoteType(Cursor cursor) {
         return cursor.getInt(TYPE_COLUMN);
     }
+
+    public static String getCallNumber(Cursor cursor) {
+        String number = cursor.getString(CALL_NUMBER_COLUMN);
+        return number == null ? "" : number;
+    }
+
+    /**
+     * Key of the row for keyset paging, see {@link Notes#QUERY_PARAM_AFTER}
+     */
+    public static String getPageKey(Cursor cursor) {
+        return cursor.getInt(TYPE_COLUMN) + "," + cursor.getLong(MODIFIED_DATE_COLUMN) + ","
+                + cursor.getLong(ID_COLUMN);
+    }
 }
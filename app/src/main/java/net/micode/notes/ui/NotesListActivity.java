@@ -64,6 +64,7 @@ import android.widget.Toast;
 import net.micode.notes.R;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.gtask.remote.GTaskSyncScheduler;
 import net.micode.notes.gtask.remote.GTaskSyncService;
 import net.micode.notes.model.WorkingNote;
 import net.micode.notes.tool.BackupUtils;
@@ -97,6 +98,12 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
     private int backgroundmode = -1;
     private static final int FOLDER_LIST_QUERY_TOKEN      = 1;
 
+    private static final int FOLDER_NOTE_PAGE_QUERY_TOKEN = 2;
+
+    private static final int CALL_RECORD_FOLDER_QUERY_TOKEN = 3;
+    // 全选时查询文件夹中所有便签的id，包括列表中还未加载的行
+    private static final int ALL_NOTES_QUERY_TOKEN = 4;
+
     private static final int MENU_FOLDER_DELETE = 0;
 
     private static final int MENU_FOLDER_VIEW = 1;
@@ -140,12 +147,10 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
 
     private NoteItemData mFocusNoteDataItem;
 
-    private static final String NORMAL_SELECTION = NoteColumns.PARENT_ID + "=?";
+    // 根文件夹的第一页，等通话记录文件夹查询完成后一起显示
+    private Cursor mPendingFirstPage;
 
-    private static final String ROOT_FOLDER_SELECTION = "(" + NoteColumns.TYPE + "<>"
-            + Notes.TYPE_SYSTEM + " AND " + NoteColumns.PARENT_ID + "=?)" + " OR ("
-            + NoteColumns.ID + "=" + Notes.ID_CALL_RECORD_FOLDER + " AND "
-            + NoteColumns.NOTES_COUNT + ">0)";
+    private int mPendingFirstPageLimit;
 
     private final static int REQUEST_CODE_OPEN_NODE = 102;
     private final static int REQUEST_CODE_NEW_NODE  = 103;
@@ -168,6 +173,9 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
          * Insert an introduction when user firstly use this application
          */
         setAppInfoFromRawRes();
+
+        // 已设置同步账户时确保后台定期同步已安排
+        GTaskSyncScheduler.schedulePeriodicSync(this);
     }
 
     @Override
@@ -233,6 +241,16 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
         startAsyncNotesListQuery();
     }
 
+    @Override
+    protected void onDestroy() {
+        // 等待通话记录文件夹查询结果的第一页还没有交给列表，需要自己关闭
+        mBackgroundQueryHandler.cancelOperation(CALL_RECORD_FOLDER_QUERY_TOKEN);
+        setPendingFirstPage(null, 0);
+        mBackgroundQueryHandler.cancelOperation(FOLDER_NOTE_PAGE_QUERY_TOKEN);
+        mNotesListAdapter.cancelReload();
+        super.onDestroy();
+    }
+
     private void initResources() {
         mContentResolver = this.getContentResolver();
         mBackgroundQueryHandler = new BackgroundQueryHandler(this.getContentResolver());
@@ -243,6 +261,15 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
         mNotesListView.setOnItemClickListener(new OnListItemClickListener());
         mNotesListView.setOnItemLongClickListener(this);
         mNotesListAdapter = new NotesListAdapter(this);
+        mNotesListAdapter.setOnPageRequestListener(new NotesListAdapter.OnPageRequestListener() {
+            public void onRequestNextPage(String afterKey) {
+                startAsyncNotesPageQuery(afterKey);
+            }
+
+            public void onRequestReload() {
+                startAsyncNotesListQuery(mNotesListView.getLastVisiblePosition() + 1);
+            }
+        });
         mNotesListView.setAdapter(mNotesListAdapter);
         mAddNewNote = (Button) findViewById(R.id.btn_new_note);
         mAddNewNote.setOnClickListener(this);
@@ -288,8 +315,12 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
                     R.menu.note_list_dropdown);
             mDropDownMenu.setOnDropdownMenuItemClickListener(new PopupMenu.OnMenuItemClickListener(){
                 public boolean onMenuItemClick(MenuItem item) {
-                    mNotesListAdapter.selectAll(!mNotesListAdapter.isAllSelected());
-                    updateMenu();
+                    if (mNotesListAdapter.isAllSelected()) {
+                        mNotesListAdapter.deselectAll();
+                        updateMenu();
+                    } else {
+                        startQueryAllNotes();
+                    }
                     return true;
                 }
 
@@ -466,12 +497,60 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
     };
 
     private void startAsyncNotesListQuery() {
-        String selection = (mCurrentFolderId == Notes.ID_ROOT_FOLDER) ? ROOT_FOLDER_SELECTION
-                : NORMAL_SELECTION;
-        mBackgroundQueryHandler.startQuery(FOLDER_NOTE_LIST_QUERY_TOKEN, null,
-                Notes.CONTENT_NOTE_URI, NoteItemData.PROJECTION, selection, new String[] {
+        startAsyncNotesListQuery(0);
+    }
+
+    // 从第一页起加载当前文件夹，直到覆盖前visibleCount行，之后的行在滚动时分页加载
+    private void startAsyncNotesListQuery(int visibleCount) {
+        int limit = NotesListAdapter.PAGE_SIZE;
+        String selection = (mCurrentFolderId == Notes.ID_ROOT_FOLDER)
+                ? Notes.ROOT_FOLDER_NOTES_SELECTION : Notes.FOLDER_NOTES_SELECTION;
+        mBackgroundQueryHandler.cancelOperation(FOLDER_NOTE_LIST_QUERY_TOKEN);
+        mBackgroundQueryHandler.cancelOperation(FOLDER_NOTE_PAGE_QUERY_TOKEN);
+        mBackgroundQueryHandler.cancelOperation(CALL_RECORD_FOLDER_QUERY_TOKEN);
+        setPendingFirstPage(null, 0);
+        mNotesListAdapter.beginReload(visibleCount);
+        mBackgroundQueryHandler.startQuery(FOLDER_NOTE_LIST_QUERY_TOKEN, limit,
+                Notes.CONTENT_NOTE_URI.buildUpon()
+                        .appendQueryParameter(Notes.QUERY_PARAM_LIMIT, String.valueOf(limit))
+                        .build(),
+                NoteItemData.PROJECTION, selection, new String[] {
+                    String.valueOf(mCurrentFolderId)
+                }, Notes.NOTE_PAGE_SORT_ORDER);
+    }
+
+    // 查询当前文件夹中所有便签的id，结果交给列表全选
+    private void startQueryAllNotes() {
+        mBackgroundQueryHandler.cancelOperation(ALL_NOTES_QUERY_TOKEN);
+        mBackgroundQueryHandler.startQuery(ALL_NOTES_QUERY_TOKEN, mCurrentFolderId,
+                Notes.CONTENT_NOTE_URI, NotesListAdapter.ALL_NOTES_PROJECTION,
+                Notes.FOLDER_ALL_NOTES_SELECTION, new String[] {
                     String.valueOf(mCurrentFolderId)
-                }, NoteColumns.TYPE + " DESC," + NoteColumns.MODIFIED_DATE + " DESC");
+                }, null);
+    }
+
+    // 加载排在afterKey对应行之后的一页
+    private void startAsyncNotesPageQuery(String afterKey) {
+        String selection = (mCurrentFolderId == Notes.ID_ROOT_FOLDER)
+                ? Notes.ROOT_FOLDER_NOTES_SELECTION : Notes.FOLDER_NOTES_SELECTION;
+        mBackgroundQueryHandler.startQuery(FOLDER_NOTE_PAGE_QUERY_TOKEN, afterKey,
+                Notes.CONTENT_NOTE_URI.buildUpon()
+                        .appendQueryParameter(Notes.QUERY_PARAM_LIMIT,
+                                String.valueOf(NotesListAdapter.PAGE_SIZE))
+                        .appendQueryParameter(Notes.QUERY_PARAM_AFTER, afterKey)
+                        .build(),
+                NoteItemData.PROJECTION, selection, new String[] {
+                    String.valueOf(mCurrentFolderId)
+                }, Notes.NOTE_PAGE_SORT_ORDER);
+    }
+
+    // 替换等待显示的第一页，旧的第一页已不再需要
+    private void setPendingFirstPage(Cursor cursor, int limit) {
+        if (mPendingFirstPage != null && mPendingFirstPage != cursor) {
+            mPendingFirstPage.close();
+        }
+        mPendingFirstPage = cursor;
+        mPendingFirstPageLimit = limit;
     }
 
     private final class BackgroundQueryHandler extends AsyncQueryHandler {
@@ -483,7 +562,42 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
         protected void onQueryComplete(int token, Object cookie, Cursor cursor) {
             switch (token) {
                 case FOLDER_NOTE_LIST_QUERY_TOKEN:
-                    mNotesListAdapter.changeCursor(cursor);
+                    if (mCurrentFolderId == Notes.ID_ROOT_FOLDER) {
+                        setPendingFirstPage(cursor, (Integer) cookie);
+                        startQuery(CALL_RECORD_FOLDER_QUERY_TOKEN, null, Notes.CONTENT_NOTE_URI,
+                                NoteItemData.PROJECTION, Notes.CALL_RECORD_FOLDER_SELECTION, null,
+                                null);
+                    } else {
+                        mNotesListAdapter.changeFirstPage(cursor, (Integer) cookie);
+                    }
+                    break;
+                case CALL_RECORD_FOLDER_QUERY_TOKEN:
+                    Cursor firstPage = mPendingFirstPage;
+                    mPendingFirstPage = null;
+                    if (firstPage == null) {
+                        // 第一页已被新的查询取代
+                        if (cursor != null) {
+                            cursor.close();
+                        }
+                        break;
+                    }
+                    mNotesListAdapter.changeFirstPage(cursor, firstPage, mPendingFirstPageLimit);
+                    break;
+                case FOLDER_NOTE_PAGE_QUERY_TOKEN:
+                    mNotesListAdapter.appendPage(cursor, (String) cookie,
+                            NotesListAdapter.PAGE_SIZE);
+                    break;
+                case ALL_NOTES_QUERY_TOKEN:
+                    if (cursor == null) {
+                        break;
+                    }
+                    // 查询期间已退出多选或切换了文件夹时丢弃结果
+                    if (mNotesListAdapter.isInChoiceMode()
+                            && (Long) cookie == mCurrentFolderId) {
+                        mNotesListAdapter.selectAll(cursor);
+                        mModeCallBack.updateMenu();
+                    }
+                    cursor.close();
                     break;
                 case FOLDER_LIST_QUERY_TOKEN:
                     if (cursor != null && cursor.getCount() > 0) {
@@ -527,21 +641,22 @@ public class NotesListActivity extends Activity implements OnClickListener, OnIt
     }
 
     private void batchDelete() {
+        // 在主线程取得选中的便签，之后的选择变化不影响本次删除
+        final HashSet<Long> ids = mNotesListAdapter.getSelectedItemIds();
+        final HashSet<AppWidgetAttribute> widgets = mNotesListAdapter.getSelectedWidget();
         new AsyncTask<Void, Void, HashSet<AppWidgetAttribute>>() {
             protected HashSet<AppWidgetAttribute> doInBackground(Void... unused) {
-                HashSet<AppWidgetAttribute> widgets = mNotesListAdapter.getSelectedWidget();
                 if (!isSyncMode()) {
                     // if not synced, delete notes directly
-                    if (DataUtils.batchDeleteNotes(mContentResolver, mNotesListAdapter
-                            .getSelectedItemIds())) {
+                    if (DataUtils.batchDeleteNotes(mContentResolver, ids)) {
                     } else {
                         Log.e(TAG, "Delete notes error, should not happens");
                     }
                 } else {
                     // in sync mode, we'll move the deleted note into the trash
                     // folder
-                    if (!DataUtils.batchMoveToFolder(mContentResolver, mNotesListAdapter
-                            .getSelectedItemIds(), Notes.ID_TRASH_FOLER)) {
+                    if (!DataUtils.batchMoveToFolder(mContentResolver, ids,
+                            Notes.ID_TRASH_FOLER)) {
                         Log.e(TAG, "Move notes to trash folder error, should not happens");
                     }
                 }
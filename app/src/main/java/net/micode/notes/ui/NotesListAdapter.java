@@ -18,38 +18,96 @@ package net.micode.notes.ui;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.MergeCursor;
+import android.os.AsyncTask;
+import android.text.TextUtils;
 import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.CursorAdapter;
 
+import net.micode.notes.data.Contact;
 import net.micode.notes.data.Notes;
 
-import java.util.Collection;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 
 
 public class NotesListAdapter extends CursorAdapter {
     private static final String TAG = "NotesListAdapter";
     private Context mContext;
-    private HashMap<Integer, Boolean> mSelectedIndex;
+    // 选中的便签，以id为键而不是以位置为键，未加载的行也可以被选中
+    private HashMap<Long, AppWidgetAttribute> mSelectedNotes;
     private int mNotesCount;
+    // 当前文件夹中便签的总数，全选时得到，-1表示未知
+    private int mFolderNotesCount;
     private boolean mChoiceMode;
 
+    // 每页加载的行数
+    public static final int PAGE_SIZE = 50;
+    // 距离末尾不足该行数时开始预加载下一页
+    private static final int PREFETCH_DISTANCE = 10;
+
+    // 已加载的各页数据，按顺序拼接后交给列表显示。第一页是数据库游标，之后各页复制到内存后关闭游标，
+    // 不再每页占用一个CursorWindow
+    private ArrayList<Cursor> mPages;
+    private boolean mHasMorePages;
+    private boolean mPageLoading;
+    private String mPendingPageKey;
+    private OnPageRequestListener mPageRequestListener;
+    // 重新加载时逐页取得的新数据，取到覆盖可见区域的行数后一次替换列表，之前仍显示旧的数据
+    private boolean mReloading;
+    private ArrayList<Cursor> mReloadPages;
+    private int mReloadCount;
+    private int mReloadTarget;
+    // 正在后台解析的电话号码，避免重复提交查询
+    private HashSet<String> mResolvingNumbers;
+
     public static class AppWidgetAttribute {
         public int widgetId;
         public int widgetType;
     };
 
+    /**
+     * Columns to query all notes of a folder for {@link #selectAll}
+     */
+    public static final String[] ALL_NOTES_PROJECTION = new String[] {
+        Notes.NoteColumns.ID, Notes.NoteColumns.WIDGET_ID, Notes.NoteColumns.WIDGET_TYPE
+    };
+
+    /**
+     * Callback to load pages of the list, the adapter only holds the pages it has been given
+     */
+    public interface OnPageRequestListener {
+        /**
+         * Load the page after the row with the given key, and hand it to
+         * {@link NotesListAdapter#appendPage}
+         */
+        void onRequestNextPage(String afterKey);
+
+        /**
+         * Data has changed, call {@link NotesListAdapter#beginReload} and load the first page
+         * again, handing it to {@link NotesListAdapter#changeFirstPage}
+         */
+        void onRequestReload();
+    }
+
     public NotesListAdapter(Context context) {
-        super(context, null);
-        mSelectedIndex = new HashMap<Integer, Boolean>();
+        super(context, null, FLAG_REGISTER_CONTENT_OBSERVER);
+        mSelectedNotes = new HashMap<Long, AppWidgetAttribute>();
+        mFolderNotesCount = -1;
+        mPages = new ArrayList<Cursor>();
+        mResolvingNumbers = new HashSet<String>();
         mContext = context;
         mNotesCount = 0;
     }
 
+    public void setOnPageRequestListener(OnPageRequestListener listener) {
+        mPageRequestListener = listener;
+    }
+
     @Override
     public View newView(Context context, Cursor cursor, ViewGroup parent) {
         return new NotesListItem(context);
@@ -62,10 +120,219 @@ public class NotesListAdapter extends CursorAdapter {
             ((NotesListItem) view).bind(context, itemData, mChoiceMode,
                     isSelectedItem(cursor.getPosition()));
         }
+        if (cursor.getPosition() >= getCount() - PREFETCH_DISTANCE) {
+            requestNextPage(cursor);
+        }
+    }
+
+    private void requestNextPage(Cursor cursor) {
+        if (mReloading || !mHasMorePages || mPageLoading || mPageRequestListener == null) {
+            return;
+        }
+        int position = cursor.getPosition();
+        if (cursor.moveToLast()) {
+            mPageLoading = true;
+            mPendingPageKey = NoteItemData.getPageKey(cursor);
+            mPageRequestListener.onRequestNextPage(mPendingPageKey);
+        }
+        cursor.moveToPosition(position);
+    }
+
+    /**
+     * Start loading the list again from its first page. The rows shown now stay until the
+     * new pages cover the first visibleCount rows or the list ends, rows loaded beyond them
+     * are dropped, so a reload costs pages up to the visible window only.
+     */
+    public void beginReload(int visibleCount) {
+        cancelReload();
+        mReloading = true;
+        mReloadTarget = visibleCount + PREFETCH_DISTANCE;
+        mPageLoading = false;
+        mPendingPageKey = null;
+    }
+
+    /**
+     * Drop the pages of a reload in progress
+     */
+    public void cancelReload() {
+        if (mReloadPages != null) {
+            for (Cursor page : mReloadPages) {
+                page.close();
+            }
+            mReloadPages = null;
+        }
+        mReloading = false;
+    }
+
+    /**
+     * Replace all loaded rows with the first page of the list
+     */
+    public void changeFirstPage(Cursor cursor, int limit) {
+        onFirstPage(cursor, cursor != null && cursor.getCount() >= limit);
+    }
+
+    /**
+     * Replace all loaded rows with the rows of head followed by the first page of the list
+     */
+    public void changeFirstPage(Cursor head, Cursor cursor, int limit) {
+        if (head == null || head.getCount() == 0) {
+            if (head != null) {
+                head.close();
+            }
+            changeFirstPage(cursor, limit);
+            return;
+        }
+        onFirstPage(cursor == null ? head : new MergeCursor(new Cursor[] { head, cursor }),
+                cursor != null && cursor.getCount() >= limit);
+    }
+
+    private void onFirstPage(Cursor first, boolean hasMore) {
+        if (mReloading && first != null && hasMore && first.getCount() < mReloadTarget) {
+            mReloadPages = new ArrayList<Cursor>();
+            mReloadPages.add(first);
+            mReloadCount = first.getCount();
+            requestReloadPage(first);
+            return;
+        }
+        ArrayList<Cursor> pages = new ArrayList<Cursor>();
+        if (first != null) {
+            pages.add(first);
+        }
+        installPages(pages, hasMore);
+    }
+
+    // 请求重新加载中的下一页，键取自新数据的最后一行
+    private void requestReloadPage(Cursor lastPage) {
+        lastPage.moveToLast();
+        mPageLoading = true;
+        mPendingPageKey = NoteItemData.getPageKey(lastPage);
+        mPageRequestListener.onRequestNextPage(mPendingPageKey);
+    }
+
+    // 以重新加载得到的各页替换列表，旧的各页随旧游标一起关闭
+    private void installPages(ArrayList<Cursor> pages, boolean hasMore) {
+        mReloading = false;
+        mReloadPages = null;
+        Cursor cursor;
+        if (pages.isEmpty()) {
+            cursor = null;
+        } else if (pages.size() == 1) {
+            cursor = pages.get(0);
+        } else {
+            cursor = new MergeCursor(pages.toArray(new Cursor[pages.size()]));
+        }
+        changeCursor(cursor);
+        mHasMorePages = hasMore;
+    }
+
+    /**
+     * Append the page loaded after the row with the given key. Pages which do not follow
+     * the current last row any more are dropped.
+     */
+    public void appendPage(Cursor cursor, String afterKey, int limit) {
+        if (!mPageLoading || mPendingPageKey == null || !mPendingPageKey.equals(afterKey)) {
+            if (cursor != null) {
+                cursor.close();
+            }
+            return;
+        }
+        mPageLoading = false;
+        mPendingPageKey = null;
+        if (mReloadPages != null) {
+            appendReloadPage(cursor, limit);
+            return;
+        }
+        if (cursor == null) {
+            return;
+        }
+        mHasMorePages = cursor.getCount() >= limit;
+        if (cursor.getCount() == 0) {
+            cursor.close();
+            return;
+        }
+
+        cursor = copyPage(cursor);
+        mPages.add(cursor);
+        // 只替换外层的MergeCursor，已加载的页不会被关闭
+        swapCursor(new MergeCursor(mPages.toArray(new Cursor[mPages.size()])));
+        resolveCallNames(cursor);
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            if (NoteItemData.getNoteType(cursor) == Notes.TYPE_NOTE) {
+                mNotesCount++;
+            }
+        }
+    }
+
+    // 重新加载时的一页，行数足够或已到末尾时替换列表，否则继续请求下一页
+    private void appendReloadPage(Cursor cursor, int limit) {
+        boolean hasMore = true;
+        if (cursor != null) {
+            hasMore = cursor.getCount() >= limit;
+            if (cursor.getCount() == 0) {
+                cursor.close();
+            } else {
+                cursor = copyPage(cursor);
+                mReloadPages.add(cursor);
+                mReloadCount += cursor.getCount();
+                if (hasMore && mReloadCount < mReloadTarget) {
+                    requestReloadPage(cursor);
+                    return;
+                }
+            }
+        }
+        // 查询失败时先显示已取得的页，滚动到末尾时再继续加载
+        installPages(mReloadPages, hasMore);
+    }
+
+    // 将一页数据复制到内存中并关闭原游标，释放其CursorWindow
+    private static Cursor copyPage(Cursor cursor) {
+        String[] columns = cursor.getColumnNames();
+        MatrixCursor copy = new MatrixCursor(columns, cursor.getCount());
+        Object[] row = new Object[columns.length];
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            for (int i = 0; i < columns.length; i++) {
+                switch (cursor.getType(i)) {
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        row[i] = cursor.getLong(i);
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        row[i] = cursor.getDouble(i);
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        row[i] = cursor.getString(i);
+                        break;
+                    case Cursor.FIELD_TYPE_BLOB:
+                        row[i] = cursor.getBlob(i);
+                        break;
+                    default:
+                        row[i] = null;
+                        break;
+                }
+            }
+            copy.addRow(row);
+        }
+        cursor.close();
+        return copy;
     }
 
     public void setCheckedItem(final int position, final boolean checked) {
-        mSelectedIndex.put(position, checked);
+        Cursor cursor = (Cursor) getItem(position);
+        if (cursor == null) {
+            Log.e(TAG, "Invalid cursor");
+            return;
+        }
+        long id = getItemId(position);
+        if (checked) {
+            AppWidgetAttribute widget = new AppWidgetAttribute();
+            NoteItemData item = new NoteItemData(mContext, cursor);
+            widget.widgetId = item.getWidgetId();
+            widget.widgetType = item.getWidgetType();
+            mSelectedNotes.put(id, widget);
+        } else {
+            mSelectedNotes.remove(id);
+        }
         notifyDataSetChanged();
     }
 
@@ -74,97 +341,131 @@ public class NotesListAdapter extends CursorAdapter {
     }
 
     public void setChoiceMode(boolean mode) {
-        mSelectedIndex.clear();
+        mSelectedNotes.clear();
+        mFolderNotesCount = -1;
         mChoiceMode = mode;
     }
 
-    public void selectAll(boolean checked) {
-        Cursor cursor = getCursor();
-        for (int i = 0; i < getCount(); i++) {
-            if (cursor.moveToPosition(i)) {
-                if (NoteItemData.getNoteType(cursor) == Notes.TYPE_NOTE) {
-                    setCheckedItem(i, checked);
-                }
-            }
+    /**
+     * Select every note of the folder, including the rows not loaded yet. The cursor holds
+     * the id, widget id and widget type of all notes in the folder, see
+     * {@link #ALL_NOTES_PROJECTION}; it is not closed here.
+     */
+    public void selectAll(Cursor allNotes) {
+        mSelectedNotes.clear();
+        allNotes.moveToPosition(-1);
+        while (allNotes.moveToNext()) {
+            AppWidgetAttribute widget = new AppWidgetAttribute();
+            widget.widgetId = allNotes.getInt(1);
+            widget.widgetType = allNotes.getInt(2);
+            mSelectedNotes.put(allNotes.getLong(0), widget);
         }
+        mFolderNotesCount = mSelectedNotes.size();
+        notifyDataSetChanged();
+    }
+
+    public void deselectAll() {
+        mSelectedNotes.clear();
+        notifyDataSetChanged();
     }
 
     public HashSet<Long> getSelectedItemIds() {
         HashSet<Long> itemSet = new HashSet<Long>();
-        for (Integer position : mSelectedIndex.keySet()) {
-            if (mSelectedIndex.get(position) == true) {
-                Long id = getItemId(position);
-                if (id == Notes.ID_ROOT_FOLDER) {
-                    Log.d(TAG, "Wrong item id, should not happen");
-                } else {
-                    itemSet.add(id);
-                }
+        for (Long id : mSelectedNotes.keySet()) {
+            if (id == Notes.ID_ROOT_FOLDER) {
+                Log.d(TAG, "Wrong item id, should not happen");
+            } else {
+                itemSet.add(id);
             }
         }
-
         return itemSet;
     }
 
     public HashSet<AppWidgetAttribute> getSelectedWidget() {
-        HashSet<AppWidgetAttribute> itemSet = new HashSet<AppWidgetAttribute>();
-        for (Integer position : mSelectedIndex.keySet()) {
-            if (mSelectedIndex.get(position) == true) {
-                Cursor c = (Cursor) getItem(position);
-                if (c != null) {
-                    AppWidgetAttribute widget = new AppWidgetAttribute();
-                    NoteItemData item = new NoteItemData(mContext, c);
-                    widget.widgetId = item.getWidgetId();
-                    widget.widgetType = item.getWidgetType();
-                    itemSet.add(widget);
-                    /**
-                     * Don't close cursor here, only the adapter could close it
-                     */
-                } else {
-                    Log.e(TAG, "Invalid cursor");
-                    return null;
-                }
-            }
-        }
-        return itemSet;
+        return new HashSet<AppWidgetAttribute>(mSelectedNotes.values());
     }
 
     public int getSelectedCount() {
-        Collection<Boolean> values = mSelectedIndex.values();
-        if (null == values) {
-            return 0;
-        }
-        Iterator<Boolean> iter = values.iterator();
-        int count = 0;
-        while (iter.hasNext()) {
-            if (true == iter.next()) {
-                count++;
-            }
-        }
-        return count;
+        return mSelectedNotes.size();
     }
 
     public boolean isAllSelected() {
         int checkedCount = getSelectedCount();
-        return (checkedCount != 0 && checkedCount == mNotesCount);
+        // 还有未加载的行且未做过全选时，不知道文件夹中便签的总数
+        int notesCount = mFolderNotesCount >= 0 ? mFolderNotesCount
+                : (mHasMorePages ? -1 : mNotesCount);
+        return (checkedCount != 0 && checkedCount == notesCount);
     }
 
     public boolean isSelectedItem(final int position) {
-        if (null == mSelectedIndex.get(position)) {
-            return false;
-        }
-        return mSelectedIndex.get(position);
+        return mSelectedNotes.containsKey(getItemId(position));
     }
 
     @Override
     protected void onContentChanged() {
-        super.onContentChanged();
-        calcNotesCount();
+        // 数据变化时从第一页起逐页重新加载到可见区域为止，而不是重新查询所有已加载的行
+        if (mPageRequestListener != null) {
+            mPageRequestListener.onRequestReload();
+        }
     }
 
     @Override
     public void changeCursor(Cursor cursor) {
+        mPages.clear();
+        if (cursor != null) {
+            mPages.add(cursor);
+        }
+        mHasMorePages = false;
+        mPageLoading = false;
+        mPendingPageKey = null;
+        // 数据已变化，全选时得到的总数不再可靠
+        mFolderNotesCount = -1;
         super.changeCursor(cursor);
         calcNotesCount();
+        resolveCallNames(cursor);
+    }
+
+    /**
+     * Resolve contact names of the call notes in background as one batch, the names are
+     * read from contact cache when binding
+     */
+    private void resolveCallNames(Cursor cursor) {
+        if (cursor == null) {
+            return;
+        }
+        final ArrayList<String> numbers = new ArrayList<String>();
+        int position = cursor.getPosition();
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            String number = NoteItemData.getCallNumber(cursor);
+            if (!TextUtils.isEmpty(number) && !Contact.isContactCached(number)
+                    && mResolvingNumbers.add(number)) {
+                numbers.add(number);
+            }
+        }
+        cursor.moveToPosition(position);
+        if (numbers.isEmpty()) {
+            return;
+        }
+
+        new AsyncTask<Void, Void, Boolean>() {
+            protected Boolean doInBackground(Void... unused) {
+                boolean resolved = false;
+                for (String number : numbers) {
+                    if (Contact.getContact(mContext, number) != null) {
+                        resolved = true;
+                    }
+                }
+                return resolved;
+            }
+
+            protected void onPostExecute(Boolean resolved) {
+                mResolvingNumbers.removeAll(numbers);
+                if (resolved) {
+                    notifyDataSetChanged();
+                }
+            }
+        }.execute();
     }
 
     private void calcNotesCount() {
@@ -45,6 +45,7 @@ import android.widget.Toast;
 import net.micode.notes.R;
 import net.micode.notes.data.Notes;
 import net.micode.notes.data.Notes.NoteColumns;
+import net.micode.notes.gtask.remote.GTaskSyncScheduler;
 import net.micode.notes.gtask.remote.GTaskSyncService;
 
 
@@ -298,6 +299,7 @@ public class NotesPreferenceActivity extends PreferenceActivity {
                 editor.putString(PREFERENCE_SYNC_ACCOUNT_NAME, "");
             }
             editor.commit();
+            GTaskSyncScheduler.schedulePeriodicSync(this);
 
             // clean up last sync time
             setLastSyncTime(this, 0);
@@ -328,6 +330,7 @@ public class NotesPreferenceActivity extends PreferenceActivity {
             editor.remove(PREFERENCE_LAST_SYNC_TIME);
         }
         editor.commit();
+        GTaskSyncScheduler.cancelAll(this);
 
         // clean up local gtask related info
         new Thread(new Runnable() {
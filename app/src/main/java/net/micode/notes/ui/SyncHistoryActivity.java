@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2010-2011, The MiCode Open Source Community (www.micode.net)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package net.micode.notes.ui;
+
+import android.app.ListActivity;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.text.format.DateFormat;
+import android.view.ViewGroup;
+import android.widget.ArrayAdapter;
+import android.widget.TextView;
+
+import net.micode.notes.R;
+import net.micode.notes.gtask.remote.GTaskManager;
+import net.micode.notes.gtask.remote.GTaskSyncStats;
+
+import java.util.ArrayList;
+
+/**
+ * Debug screen listing the numbers of the latest syncs
+ */
+public class SyncHistoryActivity extends ListActivity {
+    // 最多显示的同步记录条数
+    private static final int MAX_ENTRIES = 50;
+
+    private ArrayAdapter<String> mAdapter;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        mAdapter = new ArrayAdapter<String>(this, android.R.layout.simple_list_item_1);
+        setListAdapter(mAdapter);
+
+        TextView empty = new TextView(this);
+        empty.setText(R.string.sync_history_empty);
+        empty.setPadding(32, 32, 32, 32);
+        ((ViewGroup) getListView().getParent()).addView(empty);
+        getListView().setEmptyView(empty);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        loadHistory();
+    }
+
+    private void loadHistory() {
+        new AsyncTask<Void, Void, ArrayList<String>>() {
+            @Override
+            protected ArrayList<String> doInBackground(Void... unused) {
+                ArrayList<String> entries = new ArrayList<String>();
+                // 正在进行的同步显示在最前面
+                GTaskSyncStats current = GTaskManager.getInstance().getCurrentStats();
+                if (current != null) {
+                    entries.add(format(current));
+                }
+                for (GTaskSyncStats stats : GTaskSyncStats.loadHistory(SyncHistoryActivity.this,
+                        MAX_ENTRIES)) {
+                    entries.add(format(stats));
+                }
+                return entries;
+            }
+
+            @Override
+            protected void onPostExecute(ArrayList<String> entries) {
+                mAdapter.clear();
+                mAdapter.addAll(entries);
+            }
+        }.execute();
+    }
+
+    private String format(GTaskSyncStats stats) {
+        return DateFormat.format(getString(R.string.preferences_last_sync_time_format),
+                stats.getStartTime()) + "\n" + stats.toString();
+    }
+}